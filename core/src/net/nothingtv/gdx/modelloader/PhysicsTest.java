@@ -86,7 +86,7 @@ public class PhysicsTest extends BasicSceneManagerScreen {
         terrainConfig.terrainDivideFactor = 8;
         terrainConfig.chunkLoadDistance = 100;
         terrainConfig.depthFactor = 1.07f;
-        terrainConfig.heightSampler = new CachingHeightSampler(new NoiseHeightSampler(1, 5, 4, 8, 4f), 10000);
+        terrainConfig.heightSampler = new CachingHeightSampler(new NoiseHeightSampler(1, 5, 4, 8, 4f), 32L << 20, 1f / tf);
 
         terrainConfig.addLayer(new Texture(layer1Tex), uvScale);
         terrainConfig.addLayer(new Texture(layer2Tex), uvScale);
@@ -326,9 +326,12 @@ public class PhysicsTest extends BasicSceneManagerScreen {
             player.moveTo(initialPos);
         }
 
-        if (useSplatGenerator && splatGeneratorUI.isMapUpdateRequested()) {
-            splatGenerator.update();
-            splatGeneratorUI.resetRequest();
+        if (useSplatGenerator) {
+            if (splatGeneratorUI.isMapUpdateRequested()) {
+                splatGenerator.updateProgressive();
+                splatGeneratorUI.resetRequest();
+            }
+            splatGenerator.updateRefined();
         }
 
         schedule.update();
@@ -1,64 +1,311 @@
 package net.nothingtv.gdx.terrain;
 
-import net.nothingtv.game.network.Tools;
-import net.nothingtv.gdx.tools.Async;
-
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Height sampler that caches the heights of another sampler in fixed size tiles.
+ * <p>
+ * Every tile holds {@code (TILE_SIZE+1) x (TILE_SIZE+1)} heights of a regular lattice with {@link #sampleSpacing} units between the
+ * samples, so a height between the lattice points is interpolated bilinearly without touching a neighbouring tile.
+ * Tiles are found through a lock-free open addressing table keyed by the tile coordinate and evicted with a CLOCK sweep
+ * once the byte budget is used up.
+ */
 public class CachingHeightSampler implements HeightSampler {
 
-    static class CachedValue {
-        float value;
-        long requested;
+    /**
+     * number of lattice cells per tile edge
+     */
+    public static final int TILE_SIZE = 64;
+    static final int TILE_SAMPLES = TILE_SIZE + 1;
+    static final long TILE_BYTES = (long) TILE_SAMPLES * TILE_SAMPLES * Float.BYTES;
+
+    static final class Tile {
+        final int tileX, tileZ;
+        final float[] heights;
+        boolean referenced;
+        int slot;
+
+        Tile(int tileX, int tileZ, float[] heights) {
+            this.tileX = tileX;
+            this.tileZ = tileZ;
+            this.heights = heights;
+        }
     }
 
+    private static final Tile REMOVED = new Tile(Integer.MIN_VALUE, Integer.MIN_VALUE, null);
+
     public final HeightSampler heightSampler;
-    public final int capacity;
-    private final ConcurrentHashMap<Long, CachedValue> cache;
-    private long lastCleanUp;
+    public final long byteBudget;
+    /**
+     * distance between two cached samples in sampler space
+     */
+    public final float sampleSpacing;
+    private final float inverseSpacing;
+    private final Tile[] slots;
+    private volatile Tile[] index;
+    private int indexUsed;
+    private int residentTiles;
+    private int clockHand;
+    private Tile lastTile;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
 
-    public CachingHeightSampler(HeightSampler heightSampler, int capacity) {
+    /**
+     * Create a tile cache for the given sampler
+     * @param heightSampler the sampler that computes the heights
+     * @param byteBudget the maximum number of bytes used for cached heights (at least two tiles are kept)
+     * @param sampleSpacing the distance between two cached samples in sampler space, e.g. 1/terrain.scale for one sample per world unit
+     */
+    public CachingHeightSampler(HeightSampler heightSampler, long byteBudget, float sampleSpacing) {
         this.heightSampler = heightSampler;
-        this.capacity = capacity;
-        this.cache = new ConcurrentHashMap<>(capacity);
-        lastCleanUp = System.currentTimeMillis();
-        Async.submit(this::cleanUp);
+        this.byteBudget = byteBudget;
+        this.sampleSpacing = sampleSpacing;
+        this.inverseSpacing = 1f / sampleSpacing;
+        int maxTiles = (int)Math.max(2, Math.min(1 << 24, byteBudget / TILE_BYTES));
+        slots = new Tile[maxTiles];
+        index = new Tile[Integer.highestOneBit(maxTiles * 4 - 1) << 1];
     }
 
-    private void cleanUp() {
-        while (true) {
-            if (cache.mappingCount() >= capacity) {
-                long deletion = lastCleanUp + 100;
-                while (cache.mappingCount() > capacity) {
-                    final long maxAge = deletion;
-                    cache.values().removeIf(e -> e.requested < maxAge);
-                    deletion += 100;
-                }
-                lastCleanUp = System.currentTimeMillis();
-            }
-            Tools.nap(5000);
-        }
+    /**
+     * Create a tile cache with one sample per unit
+     * @param heightSampler the sampler that computes the heights
+     * @param capacity the number of heights to keep in the cache. The cache holds whole tiles of
+     *                 {@code (TILE_SIZE+1) x (TILE_SIZE+1)} heights, so the capacity is rounded down to a multiple of
+     *                 that and at least two tiles are kept, e.g. a capacity of 10000 keeps two tiles
+     */
+    public CachingHeightSampler(HeightSampler heightSampler, int capacity) {
+        this(heightSampler, (long) capacity * Float.BYTES, 1f);
     }
 
     @Override
     public void init(Terrain terrain) {
         heightSampler.init(terrain);
+        clear();
+    }
+
+    /**
+     * Remove all cached tiles, e.g. when the underlying sampler changed
+     */
+    public synchronized void clear() {
+        Arrays.fill(slots, null);
+        index = new Tile[index.length];
+        indexUsed = 0;
+        residentTiles = 0;
+        clockHand = 0;
+        lastTile = null;
     }
 
     @Override
     public float getHeight(float x, float z) {
-        long key = (long) Float.floatToIntBits(x) << 32 | Float.floatToIntBits(z);
-        CachedValue cachedValue = cache.get(key);
-        if (cachedValue != null) {
-            cachedValue.requested = System.currentTimeMillis();
-            return cachedValue.value;
+        float gx = x * inverseSpacing;
+        float gz = z * inverseSpacing;
+        int ix = (int)Math.floor(gx);
+        int iz = (int)Math.floor(gz);
+        int tileX = Math.floorDiv(ix, TILE_SIZE);
+        int tileZ = Math.floorDiv(iz, TILE_SIZE);
+        Tile tile = getTile(tileX, tileZ);
+        return interpolate(tile.heights, ix - tileX * TILE_SIZE, iz - tileZ * TILE_SIZE, gx - ix, gz - iz);
+    }
+
+    /**
+     * Central differences over the cached lattice, the taps are served from the cache
+     */
+    @Override
+    public void getHeightAndGradient(float x, float z, float[] out) {
+        float halfInverse = 0.5f * inverseSpacing;
+        out[0] = getHeight(x, z);
+        out[1] = (getHeight(x + sampleSpacing, z) - getHeight(x - sampleSpacing, z)) * halfInverse;
+        out[2] = (getHeight(x, z + sampleSpacing) - getHeight(x, z - sampleSpacing)) * halfInverse;
+    }
+
+    @Override
+    public void sampleGrid(float x0, float z0, float stepX, float stepZ, int nx, int nz, float[] out) {
+        Tile tile = null;
+        long served = 0;
+        int i = 0;
+        for (int z = 0; z < nz; z++) {
+            float gz = (z0 + z * stepZ) * inverseSpacing;
+            int iz = (int)Math.floor(gz);
+            int tileZ = Math.floorDiv(iz, TILE_SIZE);
+            for (int x = 0; x < nx; x++) {
+                float gx = (x0 + x * stepX) * inverseSpacing;
+                int ix = (int)Math.floor(gx);
+                int tileX = Math.floorDiv(ix, TILE_SIZE);
+                if (tile == null || tile.tileX != tileX || tile.tileZ != tileZ)
+                    tile = getTile(tileX, tileZ);
+                else served++;
+                out[i++] = interpolate(tile.heights, ix - tileX * TILE_SIZE, iz - tileZ * TILE_SIZE, gx - ix, gz - iz);
+            }
         }
-        float value = heightSampler.getHeight(x, z);
-        cachedValue = new CachedValue();
-        cachedValue.value = value;
-        cachedValue.requested = System.currentTimeMillis();
-        cache.put(key, cachedValue);
-        return value;
+        hits.add(served);
+    }
+
+    @Override
+    public void samplePoints(float[] xs, float[] zs, int count, float[] out) {
+        Tile tile = null;
+        long served = 0;
+        for (int i = 0; i < count; i++) {
+            float gx = xs[i] * inverseSpacing;
+            float gz = zs[i] * inverseSpacing;
+            int ix = (int)Math.floor(gx);
+            int iz = (int)Math.floor(gz);
+            int tileX = Math.floorDiv(ix, TILE_SIZE);
+            int tileZ = Math.floorDiv(iz, TILE_SIZE);
+            if (tile == null || tile.tileX != tileX || tile.tileZ != tileZ)
+                tile = getTile(tileX, tileZ);
+            else served++;
+            out[i] = interpolate(tile.heights, ix - tileX * TILE_SIZE, iz - tileZ * TILE_SIZE, gx - ix, gz - iz);
+        }
+        hits.add(served);
+    }
+
+    /**
+     * Samples coarser than the cached lattice are taken from the wrapped sampler, it may answer from a prefiltered
+     * level and sparse distant samples don't fill the cache with tiles
+     */
+    @Override
+    public void samplePoints(float[] xs, float[] zs, int count, float footprint, float[] out) {
+        if (footprint > sampleSpacing)
+            heightSampler.samplePoints(xs, zs, count, footprint, out);
+        else
+            samplePoints(xs, zs, count, out);
+    }
+
+    private static float interpolate(float[] heights, int lx, int lz, float fx, float fz) {
+        int i = lz * TILE_SAMPLES + lx;
+        float h00 = heights[i];
+        float h10 = heights[i + 1];
+        float h01 = heights[i + TILE_SAMPLES];
+        float h11 = heights[i + TILE_SAMPLES + 1];
+        float h0 = h00 + fx * (h10 - h00);
+        float h1 = h01 + fx * (h11 - h01);
+        return h0 + fz * (h1 - h0);
+    }
+
+    private Tile getTile(int tileX, int tileZ) {
+        Tile tile = lastTile;
+        if (tile == null || tile.tileX != tileX || tile.tileZ != tileZ) {
+            tile = lookup(index, tileX, tileZ);
+            if (tile == null) {
+                misses.increment();
+                tile = insert(createTile(tileX, tileZ));
+            } else hits.increment();
+            lastTile = tile;
+        } else hits.increment();
+        if (!tile.referenced)
+            tile.referenced = true;
+        return tile;
+    }
+
+    private static int hash(int tileX, int tileZ) {
+        int h = tileX * 0x9E3779B1 + tileZ * 0x85EBCA77;
+        return h ^ (h >>> 15);
+    }
+
+    private static Tile lookup(Tile[] table, int tileX, int tileZ) {
+        int mask = table.length - 1;
+        for (int i = hash(tileX, tileZ) & mask; ; i = (i + 1) & mask) {
+            Tile tile = table[i];
+            if (tile == null)
+                return null;
+            if (tile.tileX == tileX && tile.tileZ == tileZ && tile != REMOVED)
+                return tile;
+        }
+    }
+
+    private Tile createTile(int tileX, int tileZ) {
+        float[] heights = new float[TILE_SAMPLES * TILE_SAMPLES];
+        heightSampler.sampleGrid(tileX * TILE_SIZE * sampleSpacing, tileZ * TILE_SIZE * sampleSpacing,
+                sampleSpacing, sampleSpacing, TILE_SAMPLES, TILE_SAMPLES, heights);
+        return new Tile(tileX, tileZ, heights);
+    }
+
+    private synchronized Tile insert(Tile tile) {
+        // another thread may have created the same tile in the meantime
+        Tile existing = lookup(index, tile.tileX, tile.tileZ);
+        if (existing != null)
+            return existing;
+        int slot;
+        if (residentTiles < slots.length) {
+            slot = residentTiles++;
+        } else {
+            slot = evict();
+        }
+        slots[slot] = null;
+        if ((indexUsed + 1) * 4 > index.length * 3)
+            rebuildIndex();
+        Tile[] table = index;
+        int mask = table.length - 1;
+        int i = hash(tile.tileX, tile.tileZ) & mask;
+        while (table[i] != null && table[i] != REMOVED)
+            i = (i + 1) & mask;
+        if (table[i] == null)
+            indexUsed++;
+        table[i] = tile;
+        tile.slot = slot;
+        slots[slot] = tile;
+        return tile;
+    }
+
+    private int evict() {
+        while (true) {
+            Tile candidate = slots[clockHand];
+            int slot = clockHand;
+            clockHand = (clockHand + 1) % slots.length;
+            if (candidate.referenced) {
+                candidate.referenced = false;
+                continue;
+            }
+            Tile[] table = index;
+            int mask = table.length - 1;
+            for (int i = hash(candidate.tileX, candidate.tileZ) & mask; table[i] != null; i = (i + 1) & mask) {
+                if (table[i] == candidate) {
+                    table[i] = REMOVED;
+                    break;
+                }
+            }
+            evictions.increment();
+            return slot;
+        }
+    }
+
+    private void rebuildIndex() {
+        Tile[] table = new Tile[index.length];
+        int mask = table.length - 1;
+        int used = 0;
+        for (int s = 0; s < residentTiles; s++) {
+            Tile tile = slots[s];
+            if (tile == null)
+                continue;
+            int i = hash(tile.tileX, tile.tileZ) & mask;
+            while (table[i] != null)
+                i = (i + 1) & mask;
+            table[i] = tile;
+            used++;
+        }
+        indexUsed = used;
+        index = table;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the number of bytes currently used by cached tiles
+     */
+    public synchronized long getResidentBytes() {
+        return residentTiles * TILE_BYTES;
     }
 
     @Override
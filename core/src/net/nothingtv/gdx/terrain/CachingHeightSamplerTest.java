@@ -0,0 +1,140 @@
+package net.nothingtv.gdx.terrain;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CachingHeightSamplerTest {
+
+    /**
+     * A plane, the bilinear interpolation of the cache reproduces it exactly up to rounding
+     */
+    private static class PlaneSampler implements HeightSampler {
+        final AtomicInteger grids = new AtomicInteger();
+
+        @Override
+        public void init(Terrain terrain) {
+        }
+
+        @Override
+        public float getHeight(float x, float z) {
+            return 2 * x - 3 * z + 1;
+        }
+
+        @Override
+        public void sampleGrid(float x0, float z0, float stepX, float stepZ, int nx, int nz, float[] out) {
+            grids.incrementAndGet();
+            HeightSampler.super.sampleGrid(x0, z0, stepX, stepZ, nx, nz, out);
+        }
+
+        @Override
+        public float getMinHeight() {
+            return 0;
+        }
+
+        @Override
+        public float getMaxHeight() {
+            return 0;
+        }
+    }
+
+    private static final int TILE = CachingHeightSampler.TILE_SIZE;
+
+    @Test
+    void lookupsAcrossTileBorders() {
+        PlaneSampler plane = new PlaneSampler();
+        CachingHeightSampler cache = new CachingHeightSampler(plane, 64 * CachingHeightSampler.TILE_BYTES, 1f);
+        float[] coordinates = {0, 0.001f, TILE - 0.001f, TILE, TILE + 0.001f, -0.001f, -TILE, -TILE - 0.5f, 3 * TILE + 17.25f};
+        for (float x : coordinates)
+            for (float z : coordinates)
+                assertEquals(plane.getHeight(x, z), cache.getHeight(x, z), 1e-3f, x + "/" + z);
+
+        // a grid and a point batch over several tiles return the same heights as single lookups
+        int nx = 150, nz = 90;
+        float[] grid = new float[nx * nz];
+        cache.sampleGrid(-70.5f, -20.25f, 1.5f, 2f, nx, nz, grid);
+        float[] xs = new float[nx * nz], zs = new float[nx * nz], points = new float[nx * nz];
+        for (int z = 0; z < nz; z++) {
+            for (int x = 0; x < nx; x++) {
+                xs[z * nx + x] = -70.5f + x * 1.5f;
+                zs[z * nx + x] = -20.25f + z * 2f;
+            }
+        }
+        cache.samplePoints(xs, zs, xs.length, points);
+        for (int i = 0; i < grid.length; i++) {
+            assertEquals(plane.getHeight(xs[i], zs[i]), grid[i], 1e-3f);
+            assertEquals(grid[i], points[i]);
+        }
+    }
+
+    @Test
+    void evictsUnderSmallBudget() {
+        PlaneSampler plane = new PlaneSampler();
+        CachingHeightSampler cache = new CachingHeightSampler(plane, 2 * CachingHeightSampler.TILE_BYTES, 1f);
+        cache.getHeight(1, 1);
+        cache.getHeight(TILE + 1, 1);
+        assertEquals(2, plane.grids.get());
+        assertEquals(0, cache.getEvictions());
+        // both tiles are cached
+        cache.getHeight(2, 2);
+        cache.getHeight(TILE + 2, 2);
+        assertEquals(2, plane.grids.get());
+
+        for (int i = 2; i < 10; i++)
+            assertEquals(plane.getHeight(i * TILE + 5, 7), cache.getHeight(i * TILE + 5, 7), 1e-3f);
+        assertEquals(10, plane.grids.get());
+        assertEquals(8, cache.getEvictions());
+        assertTrue(cache.getResidentBytes() <= 2 * CachingHeightSampler.TILE_BYTES);
+        // an evicted tile is sampled again
+        assertEquals(plane.getHeight(1, 1), cache.getHeight(1, 1), 1e-3f);
+        assertEquals(11, plane.grids.get());
+    }
+
+    @Test
+    void legacyCapacityCountsHeights() {
+        CachingHeightSampler cache = new CachingHeightSampler(new PlaneSampler(), 10000);
+        for (int i = 0; i < 5; i++)
+            cache.getHeight(i * TILE + 1, 1);
+        assertEquals(2 * CachingHeightSampler.TILE_BYTES, cache.getResidentBytes());
+    }
+
+    @Test
+    void concurrentReaders() throws Exception {
+        PlaneSampler plane = new PlaneSampler();
+        // fewer tiles than the readers touch, so they evict each other's tiles all the time
+        CachingHeightSampler cache = new CachingHeightSampler(plane, 6 * CachingHeightSampler.TILE_BYTES, 1f);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                int seed = t;
+                results.add(executor.submit(() -> {
+                    Random random = new Random(seed);
+                    int wrong = 0;
+                    for (int i = 0; i < 200000; i++) {
+                        float x = random.nextFloat() * 6 * TILE - 3 * TILE;
+                        float z = random.nextFloat() * 4 * TILE;
+                        if (Math.abs(cache.getHeight(x, z) - plane.getHeight(x, z)) > 1e-2f)
+                            wrong++;
+                    }
+                    return wrong;
+                }));
+            }
+            for (Future<Integer> result : results)
+                assertEquals(0, result.get());
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(cache.getEvictions() > 0);
+        assertTrue(cache.getResidentBytes() <= 6 * CachingHeightSampler.TILE_BYTES);
+    }
+}
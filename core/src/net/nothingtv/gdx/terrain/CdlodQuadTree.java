@@ -0,0 +1,400 @@
+package net.nothingtv.gdx.terrain;
+
+import com.badlogic.gdx.math.Frustum;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import net.nothingtv.gdx.tools.Async;
+
+/**
+ * The quadtree of a continuous distance-dependent level of detail (CDLOD) terrain, independent of any GL context.
+ * <p>
+ * Every node is drawn with the same grid patch of patchSize x patchSize cells, a node of level n is 2^n leaves wide so
+ * its cells are 2^n times larger. The leaves are as wide as patchSize vertices of the terrain. The minimum and maximum
+ * heights of all nodes are calculated once from the leaves' patches.
+ * <p>
+ * The selection walks the tree from the root and takes a node as a whole if it's out of the range of the next finer
+ * level, otherwise it descends. Children that are out of their own range are drawn by the parent as one quadrant of
+ * its patch, nodes outside the frustum are skipped. The vertices of a node morph towards the grid of the next coarser
+ * level between the morph start and the end of the node's range, so neighbours of different levels meet without cracks.
+ */
+public class CdlodQuadTree {
+
+    /**
+     * the morph starts at this fraction between the previous and the node's range
+     */
+    public static final float MORPH_START_RATIO = 0.66f;
+
+    /**
+     * A selected node, the quadrants bits 0..3 are x-/z-, x+/z-, x-/z+, x+/z+
+     */
+    public static class Selection {
+        int lod, x, z;
+        int quadrants;
+        float minX, minZ, size;
+        float minY, maxY;
+
+        public int getLod() {
+            return lod;
+        }
+
+        public int getQuadrants() {
+            return quadrants;
+        }
+
+        public boolean isFull() {
+            return quadrants == 0xf;
+        }
+
+        public float getMinX() {
+            return minX;
+        }
+
+        public float getMinZ() {
+            return minZ;
+        }
+
+        public float getSize() {
+            return size;
+        }
+
+        public float getMinY() {
+            return minY;
+        }
+
+        public float getMaxY() {
+            return maxY;
+        }
+
+        /**
+         * @return a key that identifies the node in the tree
+         */
+        public long key() {
+            return CdlodQuadTree.key(lod, x, z);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("lod %d %d/%d quadrants %x", lod, x, z, quadrants);
+        }
+    }
+
+    private final Terrain terrain;
+    private final int patchSize;
+    private final float leafSize;
+    private final int lodCount;
+    // number of nodes per row and column of each level
+    private final int[] countX, countZ;
+    private final float[][] minY, maxY;
+    private final float[] ranges, morphStart, morphEnd;
+    private final Array<Selection> selected = new Array<>(false, 64);
+    private final Array<Selection> pool = new Array<>(false, 64);
+
+    /**
+     * @param terrain the terrain, its heights are sampled to calculate the bounds of the nodes
+     * @param patchSize the number of cells per edge of a node's patch, an even number
+     * @param lodDistance the range of the finest level, it doubles with every coarser level. It must be at least
+     *                    three times the width of a leaf, otherwise a coarser node may still morph where it meets a
+     *                    finer node
+     */
+    public CdlodQuadTree(Terrain terrain, int patchSize, float lodDistance) {
+        if (patchSize < 2 || patchSize % 2 != 0 || patchSize > 254)
+            throw new GdxRuntimeException("invalid patch size: " + patchSize);
+        this.terrain = terrain;
+        this.patchSize = patchSize;
+        TerrainConfig config = terrain.config;
+        leafSize = patchSize * config.scale;
+        if (lodDistance < 3 * leafSize)
+            throw new GdxRuntimeException("the lod distance " + lodDistance + " is less than three leaves of " + leafSize);
+        float extentX = config.width * config.scale;
+        float extentZ = config.height * config.scale;
+        int lods = 1;
+        while (leafSize * (1L << (lods - 1)) < Math.max(extentX, extentZ))
+            lods++;
+        lodCount = lods;
+        countX = new int[lodCount];
+        countZ = new int[lodCount];
+        minY = new float[lodCount][];
+        maxY = new float[lodCount][];
+        ranges = new float[lodCount];
+        morphStart = new float[lodCount];
+        morphEnd = new float[lodCount];
+        for (int lod = 0; lod < lodCount; lod++) {
+            float size = nodeSize(lod);
+            countX[lod] = (int) Math.ceil(extentX / size);
+            countZ[lod] = (int) Math.ceil(extentZ / size);
+            minY[lod] = new float[countX[lod] * countZ[lod]];
+            maxY[lod] = new float[countX[lod] * countZ[lod]];
+            ranges[lod] = lodDistance * (1 << lod);
+            float previous = lod == 0 ? 0 : ranges[lod - 1];
+            morphEnd[lod] = ranges[lod];
+            morphStart[lod] = previous + (ranges[lod] - previous) * MORPH_START_RATIO;
+        }
+        // the coarsest level has nothing to morph to
+        morphStart[lodCount - 1] = morphEnd[lodCount - 1] = Float.POSITIVE_INFINITY;
+        calculateBounds();
+    }
+
+    static long key(int lod, int x, int z) {
+        return (long) lod << 56 | (long) x << 28 | z;
+    }
+
+    private void calculateBounds() {
+        int leavesX = countX[0];
+        Async.parallelFor(0, countZ[0], (from, to) -> {
+            float[] heights = new float[(patchSize + 1) * (patchSize + 1)];
+            for (int z = from; z < to; z++) {
+                for (int x = 0; x < leavesX; x++) {
+                    sampleHeights(0, x, z, heights);
+                    float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+                    for (float h : heights) {
+                        min = Math.min(min, h);
+                        max = Math.max(max, h);
+                    }
+                    minY[0][z * leavesX + x] = min;
+                    maxY[0][z * leavesX + x] = max;
+                }
+            }
+        });
+        for (int lod = 1; lod < lodCount; lod++) {
+            int finerX = countX[lod - 1], finerZ = countZ[lod - 1];
+            for (int z = 0; z < countZ[lod]; z++) {
+                for (int x = 0; x < countX[lod]; x++) {
+                    float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+                    for (int c = 0; c < 4; c++) {
+                        int cx = x * 2 + (c & 1);
+                        int cz = z * 2 + (c >> 1);
+                        if (cx >= finerX || cz >= finerZ)
+                            continue;
+                        min = Math.min(min, minY[lod - 1][cz * finerX + cx]);
+                        max = Math.max(max, maxY[lod - 1][cz * finerX + cx]);
+                    }
+                    minY[lod][z * countX[lod] + x] = min;
+                    maxY[lod][z * countX[lod] + x] = max;
+                }
+            }
+        }
+    }
+
+    public int getPatchSize() {
+        return patchSize;
+    }
+
+    public int getLodCount() {
+        return lodCount;
+    }
+
+    public float nodeSize(int lod) {
+        return leafSize * (1 << lod);
+    }
+
+    /**
+     * @return the distance up to which nodes of this level are drawn
+     */
+    public float getRange(int lod) {
+        return ranges[lod];
+    }
+
+    /**
+     * Select the nodes to draw, the returned array and its elements are reused by the next call
+     * @param camera the camera position
+     * @param frustum the frustum to cull the nodes with, null selects the nodes all around the camera
+     * @return the selected nodes
+     */
+    public Array<Selection> select(Vector3 camera, Frustum frustum) {
+        pool.addAll(selected);
+        selected.clear();
+        // the coarsest level is drawn beyond its range too
+        int top = lodCount - 1;
+        for (int z = 0; z < countZ[top]; z++)
+            for (int x = 0; x < countX[top]; x++)
+                if (!select(top, x, z, camera, frustum) && inFrustum(top, x, z, frustum))
+                    add(top, x, z, 0xf);
+        return selected;
+    }
+
+    /**
+     * @return false if the node is out of its range and its parent has to draw its area
+     */
+    private boolean select(int lod, int x, int z, Vector3 camera, Frustum frustum) {
+        float size = nodeSize(lod);
+        float x0 = x * size, z0 = z * size;
+        int index = z * countX[lod] + x;
+        float y0 = minY[lod][index], y1 = maxY[lod][index];
+        if (distance2(camera, x0, y0, z0, x0 + size, y1, z0 + size) > ranges[lod] * ranges[lod])
+            return false;
+        if (!inFrustum(lod, x, z, frustum))
+            return true;
+        if (lod == 0 || distance2(camera, x0, y0, z0, x0 + size, y1, z0 + size) > ranges[lod - 1] * ranges[lod - 1]) {
+            add(lod, x, z, 0xf);
+            return true;
+        }
+        int quadrants = 0;
+        for (int c = 0; c < 4; c++) {
+            int cx = x * 2 + (c & 1);
+            int cz = z * 2 + (c >> 1);
+            if (cx < countX[lod - 1] && cz < countZ[lod - 1] && !select(lod - 1, cx, cz, camera, frustum))
+                quadrants |= 1 << c;
+        }
+        if (quadrants != 0)
+            add(lod, x, z, quadrants);
+        return true;
+    }
+
+    private boolean inFrustum(int lod, int x, int z, Frustum frustum) {
+        if (frustum == null)
+            return true;
+        float size = nodeSize(lod);
+        int index = z * countX[lod] + x;
+        float y0 = minY[lod][index], y1 = maxY[lod][index];
+        return frustum.boundsInFrustum((x + 0.5f) * size, (y0 + y1) / 2, (z + 0.5f) * size, size / 2, (y1 - y0) / 2, size / 2);
+    }
+
+    private void add(int lod, int x, int z, int quadrants) {
+        Selection selection = pool.isEmpty() ? new Selection() : pool.pop();
+        int index = z * countX[lod] + x;
+        selection.lod = lod;
+        selection.x = x;
+        selection.z = z;
+        selection.quadrants = quadrants;
+        selection.size = nodeSize(lod);
+        selection.minX = x * selection.size;
+        selection.minZ = z * selection.size;
+        selection.minY = minY[lod][index];
+        selection.maxY = maxY[lod][index];
+        selected.add(selection);
+    }
+
+    private static float distance2(Vector3 p, float x0, float y0, float z0, float x1, float y1, float z1) {
+        float dx = Math.max(0, Math.max(x0 - p.x, p.x - x1));
+        float dy = Math.max(0, Math.max(y0 - p.y, p.y - y1));
+        float dz = Math.max(0, Math.max(z0 - p.z, p.z - z1));
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * @return the morph factor of a vertex of a node of this level, 0 keeps the vertex, 1 puts it on the coarser grid
+     */
+    public float morphFactor(int lod, float distance) {
+        if (distance <= morphStart[lod])
+            return 0;
+        if (distance >= morphEnd[lod])
+            return 1;
+        return (distance - morphStart[lod]) / (morphEnd[lod] - morphStart[lod]);
+    }
+
+    /**
+     * @return true if some vertices of the node are between the morph start and end, they change when the camera moves
+     */
+    public boolean isMorphing(Selection selection, Vector3 camera) {
+        float x1 = selection.minX + selection.size, z1 = selection.minZ + selection.size;
+        float near = (float) Math.sqrt(distance2(camera, selection.minX, selection.minY, selection.minZ, x1, selection.maxY, z1));
+        float dx = Math.max(Math.abs(camera.x - selection.minX), Math.abs(camera.x - x1));
+        float dy = Math.max(Math.abs(camera.y - selection.minY), Math.abs(camera.y - selection.maxY));
+        float dz = Math.max(Math.abs(camera.z - selection.minZ), Math.abs(camera.z - z1));
+        float far = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+        return near < morphEnd[selection.lod] && far > morphStart[selection.lod];
+    }
+
+    /**
+     * Sample the (patchSize+1)^2 heights of a node's patch
+     */
+    public void sampleHeights(int lod, int x, int z, float[] heights) {
+        float size = nodeSize(lod);
+        float step = size / patchSize;
+        terrain.getHeightsAt(x * size, z * size, step, step, patchSize + 1, patchSize + 1, heights);
+    }
+
+    /**
+     * Sample the (patchSize+1)^2 heights and normals of a node's patch
+     * @param normals receives three floats per vertex
+     */
+    public void sampleNode(Selection selection, float[] heights, float[] normals) {
+        sampleHeights(selection.lod, selection.x, selection.z, heights);
+        float step = selection.size / patchSize;
+        Vector3 normal = new Vector3();
+        int n = patchSize + 1;
+        for (int z = 0; z < n; z++) {
+            for (int x = 0; x < n; x++) {
+                terrain.getNormalAt(selection.minX + x * step, selection.minZ + z * step, normal);
+                int i = (z * n + x) * 3;
+                normals[i] = normal.x;
+                normals[i + 1] = normal.y;
+                normals[i + 2] = normal.z;
+            }
+        }
+    }
+
+    /**
+     * Calculate the morphed vertices of a node's patch: position, normal and texture coordinates
+     * @param heights the heights from {@link #sampleNode(Selection, float[], float[])}
+     * @param normals the normals from {@link #sampleNode(Selection, float[], float[])}
+     * @param camera the camera position the morph factors are calculated for
+     * @param uvScale the factor from world coordinates to texture coordinates
+     * @param out receives 8 floats per vertex
+     */
+    public void buildVertices(Selection selection, float[] heights, float[] normals, Vector3 camera, float uvScale, float[] out) {
+        int n = patchSize + 1;
+        float step = selection.size / patchSize;
+        int lod = selection.lod;
+        int o = 0;
+        for (int z = 0; z < n; z++) {
+            float wz = selection.minZ + z * step;
+            for (int x = 0; x < n; x++) {
+                float wx = selection.minX + x * step;
+                int i = z * n + x;
+                float h = heights[i];
+                // the height on the coarser grid, its cells are split along the same diagonal as the patch's cells
+                float coarse;
+                boolean oddX = (x & 1) != 0, oddZ = (z & 1) != 0;
+                if (oddX && oddZ)
+                    coarse = (heights[i + n - 1] + heights[i - n + 1]) * 0.5f;
+                else if (oddX)
+                    coarse = (heights[i - 1] + heights[i + 1]) * 0.5f;
+                else if (oddZ)
+                    coarse = (heights[i - n] + heights[i + n]) * 0.5f;
+                else
+                    coarse = h;
+                float dx = wx - camera.x, dy = h - camera.y, dz = wz - camera.z;
+                float k = morphFactor(lod, (float) Math.sqrt(dx * dx + dy * dy + dz * dz));
+                out[o++] = wx;
+                out[o++] = h + (coarse - h) * k;
+                out[o++] = wz;
+                out[o++] = normals[i * 3];
+                out[o++] = normals[i * 3 + 1];
+                out[o++] = normals[i * 3 + 2];
+                out[o++] = wx * uvScale;
+                out[o++] = wz * uvScale;
+            }
+        }
+    }
+
+    /**
+     * Create the indices of the shared patch, quadrant by quadrant so every quadrant is a contiguous range
+     * of {@link #quadrantIndexCount()} indices
+     */
+    public short[] createPatchIndices() {
+        int n = patchSize + 1;
+        int half = patchSize / 2;
+        short[] indices = new short[patchSize * patchSize * 6];
+        int ii = 0;
+        for (int q = 0; q < 4; q++) {
+            int qx = (q & 1) * half, qz = (q >> 1) * half;
+            for (int z = qz; z < qz + half; z++) {
+                for (int x = qx; x < qx + half; x++) {
+                    indices[ii++] = (short) (x + n * z);
+                    indices[ii++] = (short) (x + n * (z + 1));
+                    indices[ii++] = (short) (x + 1 + n * z);
+                    indices[ii++] = (short) (x + 1 + n * z);
+                    indices[ii++] = (short) (x + n * (z + 1));
+                    indices[ii++] = (short) (x + 1 + n * (z + 1));
+                }
+            }
+        }
+        return indices;
+    }
+
+    public int quadrantIndexCount() {
+        return patchSize * patchSize / 4 * 6;
+    }
+}
@@ -0,0 +1,133 @@
+package net.nothingtv.gdx.terrain;
+
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.utils.Array;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CdlodQuadTreeTest {
+
+    private static final int PATCH_SIZE = 16;
+
+    private static CdlodQuadTree createTree() {
+        TerrainConfig config = new TerrainConfig(1024, 1024, 1);
+        config.heightSampler = new TestHeightSampler(30, 0.01f, 1);
+        return new CdlodQuadTree(new Terrain(config), PATCH_SIZE, 64);
+    }
+
+    @Test
+    void selectionCoversTerrainOnce() {
+        CdlodQuadTree tree = createTree();
+        int leaves = 1024 / PATCH_SIZE;
+        int[] covered = new int[leaves * leaves];
+        for (CdlodQuadTree.Selection selection : tree.select(new Vector3(300, 50, 700), null)) {
+            int leafCount = 1 << selection.getLod();
+            int x0 = (int) (selection.getMinX() / PATCH_SIZE), z0 = (int) (selection.getMinZ() / PATCH_SIZE);
+            for (int z = 0; z < leafCount; z++) {
+                for (int x = 0; x < leafCount; x++) {
+                    int quadrant = (x < leafCount / 2 ? 0 : 1) + (z < leafCount / 2 ? 0 : 2);
+                    if ((selection.getQuadrants() & (1 << quadrant)) != 0)
+                        covered[(z0 + z) * leaves + x0 + x]++;
+                }
+            }
+        }
+        for (int count : covered)
+            assertEquals(1, count);
+    }
+
+    @Test
+    void levelsIncreaseWithDistance() {
+        CdlodQuadTree tree = createTree();
+        Vector3 camera = new Vector3(500, 40, 500);
+        Array<CdlodQuadTree.Selection> selected = tree.select(camera, null);
+        int maxLod = 0;
+        for (CdlodQuadTree.Selection selection : selected) {
+            // only the coarsest level is drawn beyond its range
+            if (selection.getLod() < tree.getLodCount() - 1)
+                assertTrue(distance(selection, camera) <= tree.getRange(selection.getLod()), selection.toString());
+            maxLod = Math.max(maxLod, selection.getLod());
+        }
+        assertTrue(maxLod > 1);
+        for (CdlodQuadTree.Selection selection : selected)
+            if (camera.x >= selection.getMinX() && camera.x < selection.getMinX() + selection.getSize()
+                    && camera.z >= selection.getMinZ() && camera.z < selection.getMinZ() + selection.getSize())
+                assertEquals(0, selection.getLod());
+    }
+
+    private static float distance(CdlodQuadTree.Selection selection, Vector3 p) {
+        float dx = Math.max(0, Math.max(selection.getMinX() - p.x, p.x - selection.getMinX() - selection.getSize()));
+        float dy = Math.max(0, Math.max(selection.getMinY() - p.y, p.y - selection.getMaxY()));
+        float dz = Math.max(0, Math.max(selection.getMinZ() - p.z, p.z - selection.getMinZ() - selection.getSize()));
+        return (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    @Test
+    void neighboursMeetWithoutCracks() {
+        CdlodQuadTree tree = createTree();
+        Vector3 camera = new Vector3(450, 60, 520);
+        Array<CdlodQuadTree.Selection> selected = tree.select(camera, null);
+        int n = PATCH_SIZE + 1;
+        float[][] vertices = new float[selected.size][];
+        for (int i = 0; i < selected.size; i++) {
+            float[] heights = new float[n * n];
+            float[] normals = new float[n * n * 3];
+            vertices[i] = new float[n * n * 8];
+            tree.sampleNode(selected.get(i), heights, normals);
+            tree.buildVertices(selected.get(i), heights, normals, camera, 1, vertices[i]);
+        }
+        int edges = 0;
+        for (int a = 0; a < selected.size; a++) {
+            CdlodQuadTree.Selection fine = selected.get(a);
+            for (int b = 0; b < selected.size; b++) {
+                CdlodQuadTree.Selection coarse = selected.get(b);
+                if (coarse.getLod() != fine.getLod() + 1)
+                    continue;
+                // every vertex on the fine node's border that touches the coarse node lies on its mesh
+                for (int v = 0; v < n * n; v++) {
+                    int x = v % n, z = v / n;
+                    if (x != 0 && x != n - 1 && z != 0 && z != n - 1)
+                        continue;
+                    float wx = vertices[a][v * 8], wy = vertices[a][v * 8 + 1], wz = vertices[a][v * 8 + 2];
+                    Float expected = heightOnGridLine(coarse, vertices[b], n, wx, wz);
+                    if (expected != null) {
+                        assertEquals(expected, wy, 1e-3f, fine + " meets " + coarse);
+                        edges++;
+                    }
+                }
+            }
+        }
+        assertTrue(edges > 0);
+    }
+
+    /**
+     * @return the height of the node's mesh interpolated at x/z if it's on a grid line of a drawn quadrant, null otherwise
+     */
+    private static Float heightOnGridLine(CdlodQuadTree.Selection node, float[] vertices, int n, float x, float z) {
+        float step = node.getSize() / (n - 1);
+        float gx = (x - node.getMinX()) / step, gz = (z - node.getMinZ()) / step;
+        if (gx < 0 || gz < 0 || gx > n - 1 || gz > n - 1)
+            return null;
+        boolean drawn = false;
+        float half = (n - 1) / 2f;
+        for (int q = 0; q < 4; q++) {
+            float qx = (q & 1) * half, qz = (q >> 1) * half;
+            if ((node.getQuadrants() & (1 << q)) != 0 && gx >= qx && gx <= qx + half && gz >= qz && gz <= qz + half)
+                drawn = true;
+        }
+        if (!drawn)
+            return null;
+        if (gx == (int) gx) {
+            int ix = (int) gx, iz = Math.min((int) gz, n - 2);
+            float t = gz - iz;
+            return vertices[(iz * n + ix) * 8 + 1] * (1 - t) + vertices[((iz + 1) * n + ix) * 8 + 1] * t;
+        }
+        if (gz == (int) gz) {
+            int iz = (int) gz, ix = Math.min((int) gx, n - 2);
+            float t = gx - ix;
+            return vertices[(iz * n + ix) * 8 + 1] * (1 - t) + vertices[(iz * n + ix + 1) * 8 + 1] * t;
+        }
+        return null;
+    }
+}
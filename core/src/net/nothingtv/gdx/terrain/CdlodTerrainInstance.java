@@ -0,0 +1,170 @@
+package net.nothingtv.gdx.terrain;
+
+import com.badlogic.gdx.graphics.Camera;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.Mesh;
+import com.badlogic.gdx.graphics.VertexAttribute;
+import com.badlogic.gdx.graphics.VertexAttributes;
+import com.badlogic.gdx.graphics.g3d.Material;
+import com.badlogic.gdx.graphics.g3d.Model;
+import com.badlogic.gdx.graphics.g3d.model.MeshPart;
+import com.badlogic.gdx.graphics.g3d.model.Node;
+import com.badlogic.gdx.graphics.g3d.model.NodePart;
+import com.badlogic.gdx.graphics.glutils.IndexBufferObject;
+import com.badlogic.gdx.graphics.glutils.VertexBufferObject;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.LongMap;
+
+/**
+ * Renders the terrain with a {@link CdlodQuadTree}: the nodes are selected by distance and frustum and drawn with one
+ * shared grid patch.
+ * <p>
+ * Every selected node has a vertex buffer with its morphed patch, all of them use the same index buffer. The heights and
+ * normals of a node are sampled when it's selected, the vertices are calculated again only while the node is morphing.
+ */
+public class CdlodTerrainInstance extends TerrainInstance {
+
+    /**
+     * The vertex buffer of a selected node
+     */
+    private static class Slot {
+        final Mesh mesh;
+        final float[] heights, normals, vertices;
+        boolean morphing;
+        int frame;
+
+        Slot(Mesh mesh, int vertexCount) {
+            this.mesh = mesh;
+            heights = new float[vertexCount];
+            normals = new float[vertexCount * 3];
+            vertices = new float[vertexCount * 8];
+        }
+    }
+
+    private CdlodQuadTree tree;
+    private Node cdlodNode;
+    private Material material;
+    private IndexBufferObject patchIndices;
+    private final LongMap<Slot> slots = new LongMap<>();
+    private final Array<Slot> freeSlots = new Array<>();
+    private final Array<NodePart> partPool = new Array<>();
+    private final Vector3 lastCamPosition = new Vector3();
+    private final float uvScale = 0.1f;
+    private int frame;
+
+    public CdlodTerrainInstance(Model model, Terrain terrain) {
+        super(model, terrain);
+    }
+
+    public CdlodQuadTree getTree() {
+        return tree;
+    }
+
+    public void cdlodNodes(Camera camera) {
+        if (cdlodNode == null)
+            createNodes();
+        frame++;
+        boolean moved = !camera.position.epsilonEquals(lastCamPosition, 0.01f);
+        lastCamPosition.set(camera.position);
+        Array<CdlodQuadTree.Selection> selection = tree.select(camera.position, camera.frustum);
+
+        partPool.addAll(cdlodNode.parts);
+        cdlodNode.parts.clear();
+        int updated = 0;
+        for (CdlodQuadTree.Selection node : selection) {
+            long key = node.key();
+            Slot slot = slots.get(key);
+            boolean build = false;
+            if (slot == null) {
+                slot = obtainSlot();
+                slots.put(key, slot);
+                tree.sampleNode(node, slot.heights, slot.normals);
+                build = true;
+            }
+            boolean morphing = tree.isMorphing(node, camera.position);
+            // a node that stopped morphing is built once more to settle on its final shape
+            if (build || (moved && (morphing || slot.morphing))) {
+                tree.buildVertices(node, slot.heights, slot.normals, camera.position, uvScale, slot.vertices);
+                slot.mesh.setVertices(slot.vertices);
+                updated++;
+            }
+            slot.morphing = morphing;
+            slot.frame = frame;
+            addParts(slot, node);
+        }
+        // release the nodes that are not selected anymore
+        for (LongMap.Entries<Slot> it = slots.entries(); it.hasNext(); ) {
+            LongMap.Entry<Slot> entry = it.next();
+            if (entry.value.frame != frame) {
+                freeSlots.add(entry.value);
+                it.remove();
+            }
+        }
+        vertices = updated * (tree.getPatchSize() + 1) * (tree.getPatchSize() + 1);
+        visibleNodes = selection.size;
+    }
+
+    private void createNodes() {
+        TerrainConfig config = terrain.config;
+        float lodDistance = Math.max(config.cdlodLodDistance, 3 * config.cdlodPatchSize * config.scale);
+        tree = new CdlodQuadTree(terrain, config.cdlodPatchSize, lodDistance);
+        System.out.printf("CdlodTerrainInstance: create a quadtree of %d levels with patches of %d cells%n",
+                tree.getLodCount(), tree.getPatchSize());
+        short[] indices = tree.createPatchIndices();
+        patchIndices = new IndexBufferObject(true, indices.length);
+        patchIndices.setIndices(indices, 0, indices.length);
+        material = nodes.first().parts.first().material;
+        nodes.forEach(n -> n.parts.forEach(p -> p.enabled = false));
+        cdlodNode = new Node();
+        nodes.add(cdlodNode);
+    }
+
+    private Slot obtainSlot() {
+        if (!freeSlots.isEmpty())
+            return freeSlots.pop();
+        int vertexCount = (tree.getPatchSize() + 1) * (tree.getPatchSize() + 1);
+        VertexBufferObject vertexData = new VertexBufferObject(false, vertexCount,
+                new VertexAttributes(VertexAttribute.Position(), VertexAttribute.Normal(), VertexAttribute.TexCoords(0)));
+        // all slots share the patch indices
+        return new Slot(new Mesh(vertexData, patchIndices, false) {}, vertexCount);
+    }
+
+    /**
+     * Add one part for a whole node or one per selected quadrant
+     */
+    private void addParts(Slot slot, CdlodQuadTree.Selection node) {
+        int quadrantSize = tree.quadrantIndexCount();
+        if (node.isFull()) {
+            addPart(slot, 0, quadrantSize * 4);
+            return;
+        }
+        for (int q = 0; q < 4; q++)
+            if ((node.getQuadrants() & (1 << q)) != 0)
+                addPart(slot, q * quadrantSize, quadrantSize);
+    }
+
+    private void addPart(Slot slot, int offset, int size) {
+        NodePart part = partPool.isEmpty() ? new NodePart() : partPool.pop();
+        if (part.meshPart == null)
+            part.meshPart = new MeshPart();
+        part.material = material;
+        part.meshPart.mesh = slot.mesh;
+        part.meshPart.primitiveType = GL20.GL_TRIANGLES;
+        part.meshPart.offset = offset;
+        part.meshPart.size = size;
+        cdlodNode.parts.add(part);
+    }
+
+    @Override
+    public void invalidate() {
+        // the heights are sampled again when the nodes are selected the next time
+        freeSlots.addAll(slots.values().toArray());
+        slots.clear();
+    }
+
+    @Override
+    public void update(Camera camera, float delta) {
+        cdlodNodes(camera);
+    }
+}
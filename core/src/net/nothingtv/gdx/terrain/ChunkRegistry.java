@@ -0,0 +1,253 @@
+package net.nothingtv.gdx.terrain;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+
+/**
+ * Spatial index of the terrain chunks.
+ * <p>
+ * Chunks are stored in an open addressing table keyed by the Morton code (Z-order) of their chunk coordinates,
+ * so neighbouring chunks have close keys and a lookup doesn't box the key. Rectangle and radius queries look up
+ * only the cells they cover. The registry counts the chunks per state, the chunks report their lock-free state
+ * transitions to it.
+ * <p>
+ * Lookups don't lock, they read the table optimistically and only look again under the read lock if a chunk was
+ * added or removed meanwhile. Adding and removing chunks takes the write lock.
+ */
+public class ChunkRegistry {
+
+    private Terrain.TerrainChunk[] values;
+    private long[] keys;
+    private int size;
+    private final StampedLock lock = new StampedLock();
+    private final AtomicIntegerArray stateCounts = new AtomicIntegerArray(Terrain.TerrainChunk.ChunkState.values().length);
+
+    public ChunkRegistry() {
+        this(64);
+    }
+
+    public ChunkRegistry(int initialCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(4, initialCapacity * 2) - 1) << 1;
+        values = new Terrain.TerrainChunk[capacity];
+        keys = new long[capacity];
+    }
+
+    /**
+     * Interleave the bits of the chunk coordinates, the coordinates are offset to be unsigned first
+     * @param chunkX the chunk x coordinate
+     * @param chunkZ the chunk z coordinate
+     * @return the Morton code with x in the even and z in the odd bits
+     */
+    public static long mortonKey(int chunkX, int chunkZ) {
+        return spread(chunkX ^ Integer.MIN_VALUE) | (spread(chunkZ ^ Integer.MIN_VALUE) << 1);
+    }
+
+    private static long spread(int value) {
+        long v = value & 0xffffffffL;
+        v = (v | (v << 16)) & 0x0000ffff0000ffffL;
+        v = (v | (v << 8)) & 0x00ff00ff00ff00ffL;
+        v = (v | (v << 4)) & 0x0f0f0f0f0f0f0f0fL;
+        v = (v | (v << 2)) & 0x3333333333333333L;
+        v = (v | (v << 1)) & 0x5555555555555555L;
+        return v;
+    }
+
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & mask;
+    }
+
+    public Terrain.TerrainChunk get(int chunkX, int chunkZ) {
+        long key = mortonKey(chunkX, chunkZ);
+        long stamp = lock.tryOptimisticRead();
+        Terrain.TerrainChunk chunk = find(keys, values, key);
+        if (lock.validate(stamp))
+            return chunk;
+        stamp = lock.readLock();
+        try {
+            return find(keys, values, key);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Probe the table for a key, an optimistic read may see a table in the middle of a change and the result is
+     * validated afterwards, so the probe must not fail or loop forever on an inconsistent table
+     */
+    private static Terrain.TerrainChunk find(long[] keys, Terrain.TerrainChunk[] values, long key) {
+        // the arrays differ while the table is resized
+        if (keys.length != values.length)
+            return null;
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        for (int probes = 0; probes <= mask; probes++, i = (i + 1) & mask) {
+            Terrain.TerrainChunk chunk = values[i];
+            if (chunk == null)
+                return null;
+            if (keys[i] == key)
+                return chunk;
+        }
+        return null;
+    }
+
+    /**
+     * Add a chunk at its chunk coordinates
+     * @return false if there is a chunk at these coordinates already
+     */
+    public boolean add(Terrain.TerrainChunk chunk) {
+        long stamp = lock.writeLock();
+        try {
+            return insert(chunk);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private boolean insert(Terrain.TerrainChunk chunk) {
+        if ((size + 1) * 4 > keys.length * 3)
+            resize(keys.length * 2);
+        long key = mortonKey(chunk.chunkX, chunk.chunkZ);
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        while (values[i] != null) {
+            if (keys[i] == key)
+                return false;
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = chunk;
+        size++;
+        chunk.registry = this;
+        stateCounts.incrementAndGet(chunk.getState().ordinal());
+        return true;
+    }
+
+    public Terrain.TerrainChunk remove(int chunkX, int chunkZ) {
+        long stamp = lock.writeLock();
+        try {
+            return delete(chunkX, chunkZ);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private Terrain.TerrainChunk delete(int chunkX, int chunkZ) {
+        long key = mortonKey(chunkX, chunkZ);
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        while (values[i] != null && keys[i] != key)
+            i = (i + 1) & mask;
+        Terrain.TerrainChunk chunk = values[i];
+        if (chunk == null)
+            return null;
+        // shift the following entries of the cluster back instead of leaving a tombstone
+        int gap = i;
+        for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+            int home = slot(keys[j], mask);
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        values[gap] = null;
+        size--;
+        chunk.registry = null;
+        stateCounts.decrementAndGet(chunk.getState().ordinal());
+        return chunk;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Terrain.TerrainChunk[] oldValues = values;
+        keys = new long[capacity];
+        values = new Terrain.TerrainChunk[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldValues[j] == null)
+                continue;
+            int i = slot(oldKeys[j], mask);
+            while (values[i] != null)
+                i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+    }
+
+    /**
+     * Visit all chunks with chunk coordinates in the given range (inclusive)
+     */
+    public void forEachInRect(int minChunkX, int minChunkZ, int maxChunkX, int maxChunkZ, Consumer<Terrain.TerrainChunk> consumer) {
+        for (int z = minChunkZ; z <= maxChunkZ; z++) {
+            for (int x = minChunkX; x <= maxChunkX; x++) {
+                Terrain.TerrainChunk chunk = get(x, z);
+                if (chunk != null)
+                    consumer.accept(chunk);
+            }
+        }
+    }
+
+    /**
+     * Visit all chunks whose center is within the radius around the location
+     * @param x the x coordinate in world units
+     * @param z the z coordinate in world units
+     * @param radius the radius in world units
+     * @param chunkEdgeLength the edge length of a chunk in world units
+     */
+    public void forEachInRadius(float x, float z, float radius, float chunkEdgeLength, Consumer<Terrain.TerrainChunk> consumer) {
+        int minX = (int)Math.floor((x - radius) / chunkEdgeLength);
+        int maxX = (int)Math.floor((x + radius) / chunkEdgeLength);
+        int minZ = (int)Math.floor((z - radius) / chunkEdgeLength);
+        int maxZ = (int)Math.floor((z + radius) / chunkEdgeLength);
+        float radius2 = radius * radius;
+        forEachInRect(minX, minZ, maxX, maxZ, chunk -> {
+            float dx = (chunk.chunkX + 0.5f) * chunkEdgeLength - x;
+            float dz = (chunk.chunkZ + 0.5f) * chunkEdgeLength - z;
+            if (dx * dx + dz * dz <= radius2)
+                consumer.accept(chunk);
+        });
+    }
+
+    /**
+     * Visit all chunks, this is meant for disposing or debugging, not for per frame work. The consumer gets a snapshot
+     * and may add or remove chunks.
+     */
+    public void forEach(Consumer<Terrain.TerrainChunk> consumer) {
+        List<Terrain.TerrainChunk> chunks = new ArrayList<>();
+        long stamp = lock.readLock();
+        try {
+            for (Terrain.TerrainChunk chunk : values) {
+                if (chunk != null)
+                    chunks.add(chunk);
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        chunks.forEach(consumer);
+    }
+
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return the number of registered chunks in the given state
+     */
+    public int getCount(Terrain.TerrainChunk.ChunkState state) {
+        return stateCounts.get(state.ordinal());
+    }
+
+    void transition(Terrain.TerrainChunk.ChunkState from, Terrain.TerrainChunk.ChunkState to) {
+        stateCounts.decrementAndGet(from.ordinal());
+        stateCounts.incrementAndGet(to.ordinal());
+    }
+}
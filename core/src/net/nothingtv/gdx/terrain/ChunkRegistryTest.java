@@ -0,0 +1,161 @@
+package net.nothingtv.gdx.terrain;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChunkRegistryTest {
+
+    private static Terrain.TerrainChunk chunk(int chunkX, int chunkZ) {
+        Terrain.TerrainChunk chunk = new Terrain.TerrainChunk();
+        chunk.chunkX = chunkX;
+        chunk.chunkZ = chunkZ;
+        return chunk;
+    }
+
+    private static long pair(int chunkX, int chunkZ) {
+        return ((long)chunkX << 32) | (chunkZ & 0xffffffffL);
+    }
+
+    @Test
+    void mortonKeyInterleavesTheCoordinates() {
+        Random random = new Random(1);
+        for (int i = 0; i < 5000; i++) {
+            int x = random.nextInt(), z = random.nextInt();
+            long key = ChunkRegistry.mortonKey(x, z);
+            // the even bits hold x, the odd bits z, both offset to be unsigned
+            int decodedX = 0, decodedZ = 0;
+            for (int bit = 0; bit < 32; bit++) {
+                decodedX |= (int)((key >>> (2 * bit)) & 1) << bit;
+                decodedZ |= (int)((key >>> (2 * bit + 1)) & 1) << bit;
+            }
+            assertEquals(x, decodedX ^ Integer.MIN_VALUE);
+            assertEquals(z, decodedZ ^ Integer.MIN_VALUE);
+        }
+        int[] extremes = {0, 1, -1, 2, -2, Integer.MAX_VALUE, Integer.MIN_VALUE, 65535, -65536};
+        Set<Long> keys = new HashSet<>();
+        for (int x : extremes)
+            for (int z : extremes)
+                keys.add(ChunkRegistry.mortonKey(x, z));
+        assertEquals(extremes.length * extremes.length, keys.size());
+        // the offset keeps the unsigned order across 0
+        assertTrue(Long.compareUnsigned(ChunkRegistry.mortonKey(-1, 0), ChunkRegistry.mortonKey(0, 0)) < 0);
+        assertTrue(Long.compareUnsigned(ChunkRegistry.mortonKey(0, -1), ChunkRegistry.mortonKey(0, 0)) < 0);
+    }
+
+    @Test
+    void matchesHashMap() {
+        Random random = new Random(2);
+        // a small capacity resizes the table several times, a small coordinate range gives long clusters
+        ChunkRegistry registry = new ChunkRegistry(1);
+        Map<Long, Terrain.TerrainChunk> reference = new HashMap<>();
+        for (int step = 0; step < 200000; step++) {
+            int range = step < 100000 ? 40 : 2000;
+            int x = random.nextInt(range) - range / 2, z = random.nextInt(range) - range / 2;
+            if (step % 1000 == 999) {
+                x = random.nextBoolean() ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+                z = random.nextInt();
+            }
+            long key = pair(x, z);
+            switch (random.nextInt(3)) {
+                case 0 -> {
+                    Terrain.TerrainChunk chunk = chunk(x, z);
+                    boolean added = registry.add(chunk);
+                    assertEquals(!reference.containsKey(key), added);
+                    if (added) {
+                        reference.put(key, chunk);
+                        assertSame(registry, chunk.registry);
+                    }
+                }
+                case 1 -> {
+                    Terrain.TerrainChunk removed = registry.remove(x, z);
+                    assertSame(reference.remove(key), removed);
+                    if (removed != null)
+                        assertNull(removed.registry);
+                }
+                default -> assertSame(reference.get(key), registry.get(x, z));
+            }
+            if (step % 10000 == 0) {
+                assertEquals(reference.size(), registry.size());
+                assertEquals(reference.size(), registry.getCount(Terrain.TerrainChunk.ChunkState.Init));
+                // every chunk is still found after the removals shifted the clusters
+                for (Terrain.TerrainChunk chunk : reference.values())
+                    assertSame(chunk, registry.get(chunk.chunkX, chunk.chunkZ));
+                List<Terrain.TerrainChunk> visited = new ArrayList<>();
+                registry.forEach(visited::add);
+                assertEquals(reference.size(), visited.size());
+                for (Terrain.TerrainChunk chunk : visited)
+                    assertSame(reference.get(pair(chunk.chunkX, chunk.chunkZ)), chunk);
+            }
+        }
+        // remove all, the table ends up empty
+        for (Terrain.TerrainChunk chunk : new ArrayList<>(reference.values()))
+            assertSame(chunk, registry.remove(chunk.chunkX, chunk.chunkZ));
+        assertEquals(0, registry.size());
+        assertEquals(0, registry.getCount(Terrain.TerrainChunk.ChunkState.Init));
+        assertNull(registry.remove(0, 0));
+    }
+
+    /**
+     * A registry the writer fills while the readers look up the chunks added so far
+     */
+    private static class Round {
+        final ChunkRegistry registry = new ChunkRegistry(1);
+        volatile int published;
+    }
+
+    @Test
+    void readersSeeChunksWhileOthersChange() throws InterruptedException {
+        int stable = 300;
+        AtomicReference<Round> current = new AtomicReference<>(new Round());
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicInteger missing = new AtomicInteger();
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < 3; t++) {
+            Thread reader = new Thread(() -> {
+                while (running.get()) {
+                    Round round = current.get();
+                    int published = round.published;
+                    for (int i = 0; i < published; i++) {
+                        Terrain.TerrainChunk chunk = round.registry.get(i % 20 - 10, i / 20 - 5);
+                        if (chunk == null || chunk.chunkX != i % 20 - 10 || chunk.chunkZ != i / 20 - 5)
+                            missing.incrementAndGet();
+                    }
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+        // every round grows a new table several times, other chunks are added and removed in between
+        Random random = new Random(3);
+        for (int r = 0; r < 2000; r++) {
+            Round round = new Round();
+            current.set(round);
+            for (int i = 0; i < stable; i++) {
+                round.registry.add(chunk(i % 20 - 10, i / 20 - 5));
+                round.published = i + 1;
+                Terrain.TerrainChunk other = chunk(random.nextInt(60) - 30, random.nextInt(60) + 10);
+                if (round.registry.add(other) && random.nextBoolean())
+                    round.registry.remove(other.chunkX, other.chunkZ);
+            }
+        }
+        running.set(false);
+        for (Thread reader : readers)
+            reader.join();
+        assertEquals(0, missing.get());
+    }
+}
@@ -0,0 +1,238 @@
+package net.nothingtv.gdx.terrain;
+
+import com.badlogic.gdx.physics.bullet.collision.btOptimizedBvh;
+import com.badlogic.gdx.physics.bullet.linearmath.LinearMath;
+import com.badlogic.gdx.utils.BufferUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Disk cache of the triangle mesh collision shapes of terrain chunks.
+ * <p>
+ * One file per chunk holds the vertices and the quantized BVH serialized by Bullet, the indices are the shared
+ * {@link GridIndices} of the chunk's size. The file name contains the fingerprint of the terrain, the chunk
+ * coordinates and the resolution. A file is mapped copy-on-write
+ * and the BVH is deserialized in place, Bullet only fixes up the pointers in its header so loading a chunk neither
+ * samples the heights nor builds the BVH. The data is stored in native byte order together with the Bullet version,
+ * files written by another platform or Bullet build are ignored.
+ */
+public class ChunkShapeCache {
+
+    static final int MAGIC = 0x54434853;
+    static final int VERSION = 2;
+    static final int HEADER_BYTES = 64;
+    // Bullet expects the serialized BVH 16 byte aligned, the mapping itself starts at a page
+    static final int BVH_ALIGNMENT = 16;
+
+    /**
+     * A chunk read from the cache, the buffers are views of the mapped file which stays mapped while they are referenced
+     */
+    public static class Entry {
+        final ByteBuffer data;
+        final FloatBuffer vertices;
+        final ByteBuffer bvhData;
+        final int vertexCount;
+        final float minY, maxY;
+
+        Entry(ByteBuffer data, FloatBuffer vertices, ByteBuffer bvhData, int vertexCount, float minY, float maxY) {
+            this.data = data;
+            this.vertices = vertices;
+            this.bvhData = bvhData;
+            this.vertexCount = vertexCount;
+            this.minY = minY;
+            this.maxY = maxY;
+        }
+
+        /**
+         * @return the address of the serialized BVH for {@link btOptimizedBvh#deSerializeInPlace(long, long, boolean)}
+         */
+        long bvhAddress() {
+            return BufferUtils.getUnsafeBufferAddress(bvhData);
+        }
+    }
+
+    private final Path directory;
+    private final long fingerprint;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder stores = new LongAdder();
+
+    /**
+     * @param directory the directory of the cache files, it's created if it doesn't exist
+     * @param fingerprint identifies the terrain the chunks belong to, see {@link #fingerprint(Terrain)}
+     * @throws IOException if the directory can't be created
+     */
+    public ChunkShapeCache(Path directory, long fingerprint) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Calculate a fingerprint of the terrain's heights and chunk layout from the sampler class, the configuration
+     * and the heights of a coarse grid over the whole terrain
+     */
+    public static long fingerprint(Terrain terrain) {
+        TerrainConfig config = terrain.config;
+        long hash = 0xcbf29ce484222325L;
+        hash = mix(hash, config.heightSampler == null ? 0 : config.heightSampler.getClass().getName().hashCode());
+        hash = mix(hash, config.width);
+        hash = mix(hash, config.height);
+        hash = mix(hash, Float.floatToIntBits(config.scale));
+        hash = mix(hash, Float.floatToIntBits(config.chunkEdgeLength));
+        int n = 33;
+        float[] heights = new float[n * n];
+        terrain.getHeightsAt(0, 0, config.width * config.scale / (n - 1), config.height * config.scale / (n - 1), n, n, heights);
+        for (float h : heights)
+            hash = mix(hash, Float.floatToIntBits(h));
+        return hash;
+    }
+
+    private static long mix(long hash, int value) {
+        return (hash ^ value) * 0x100000001B3L;
+    }
+
+    Path entryPath(int chunkX, int chunkZ, float resolution) {
+        return directory.resolve(String.format("%016x_%d_%d_%08x.chunk", fingerprint, chunkX, chunkZ, Float.floatToIntBits(resolution)));
+    }
+
+    /**
+     * Read a chunk from the cache
+     * @param terrain the terrain the chunk belongs to, a few cached heights are compared against it
+     * @param chunkX the chunk x coordinate
+     * @param chunkZ the chunk z coordinate
+     * @param resolution the resolution of the collision mesh
+     * @param vx the number of vertices per row
+     * @param vy the number of rows
+     * @return the cached chunk or null if there is no valid entry
+     */
+    public Entry load(Terrain terrain, int chunkX, int chunkZ, float resolution, int vx, int vy) {
+        Path path = entryPath(chunkX, chunkZ, resolution);
+        if (!Files.isRegularFile(path)) {
+            misses.increment();
+            return null;
+        }
+        // a private mapping because deserializing the BVH writes to it, nothing is written back to the file
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            if (size >= HEADER_BYTES && size <= Integer.MAX_VALUE) {
+                MappedByteBuffer data = channel.map(FileChannel.MapMode.PRIVATE, 0, size);
+                data.order(ByteOrder.nativeOrder());
+                Entry entry = read(data, chunkX, chunkZ, resolution, vx, vy);
+                if (entry != null && matches(terrain, entry, vx, vy)) {
+                    hits.increment();
+                    return entry;
+                }
+            }
+        } catch (IOException e) {
+            // treated like a missing entry, it's written again
+        }
+        misses.increment();
+        return null;
+    }
+
+    private Entry read(ByteBuffer data, int chunkX, int chunkZ, float resolution, int vx, int vy) {
+        if (data.getInt(0) != MAGIC || data.getInt(4) != VERSION || data.getInt(8) != LinearMath.btGetVersion()
+                || data.getLong(16) != fingerprint || data.getInt(24) != chunkX || data.getInt(28) != chunkZ
+                || data.getFloat(32) != resolution || data.getInt(12) != vx || data.getInt(36) != vy)
+            return null;
+        int vertexFloats = vx * vy * 3;
+        long bvhOffset = data.getLong(48);
+        long bvhSize = data.getLong(56);
+        if (bvhOffset != bvhOffset(vertexFloats) || bvhOffset + bvhSize > data.capacity())
+            return null;
+        FloatBuffer vertices = data.slice(HEADER_BYTES, vertexFloats * Float.BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        ByteBuffer bvhData = data.slice((int)bvhOffset, (int)bvhSize).order(ByteOrder.nativeOrder());
+        return new Entry(data, vertices, bvhData, vx * vy, data.getFloat(40), data.getFloat(44));
+    }
+
+    /**
+     * Compare the corners and the center of the cached mesh with the current heights,
+     * this catches local changes of the heights that the coarse fingerprint misses
+     */
+    private static boolean matches(Terrain terrain, Entry entry, int vx, int vy) {
+        int[] probes = { 0, vx - 1, (vy - 1) * vx, vx * vy - 1, (vy / 2) * vx + vx / 2 };
+        float tolerance = 1e-3f * Math.max(1, terrain.getMaxHeight() - terrain.getMinHeight());
+        for (int probe : probes) {
+            float x = entry.vertices.get(probe * 3);
+            float y = entry.vertices.get(probe * 3 + 1);
+            float z = entry.vertices.get(probe * 3 + 2);
+            if (!(Math.abs(terrain.getHeightAt(x, z) - y) <= tolerance))
+                return false;
+        }
+        return true;
+    }
+
+    private static long bvhOffset(int vertexFloats) {
+        long end = HEADER_BYTES + (long) vertexFloats * Float.BYTES;
+        return (end + BVH_ALIGNMENT - 1) / BVH_ALIGNMENT * BVH_ALIGNMENT;
+    }
+
+    /**
+     * Write a chunk to the cache, the file is written under a temporary name and moved in place when it's complete
+     * @param bvh the BVH of the chunk's shape
+     * @throws IOException if the file can't be written
+     */
+    public void store(int chunkX, int chunkZ, float resolution, int vx, int vy, FloatBuffer vertices,
+                      btOptimizedBvh bvh, float minY, float maxY) throws IOException {
+        int vertexFloats = vx * vy * 3;
+        long bvhOffset = bvhOffset(vertexFloats);
+        long bvhSize = bvh.calculateSerializeBufferSize();
+        Path path = entryPath(chunkX, chunkZ, resolution);
+        Path temp = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_WRITE, 0, bvhOffset + bvhSize);
+                data.order(ByteOrder.nativeOrder());
+                data.putInt(0, MAGIC);
+                data.putInt(4, VERSION);
+                data.putInt(8, LinearMath.btGetVersion());
+                data.putInt(12, vx);
+                data.putLong(16, fingerprint);
+                data.putInt(24, chunkX);
+                data.putInt(28, chunkZ);
+                data.putFloat(32, resolution);
+                data.putInt(36, vy);
+                data.putFloat(40, minY);
+                data.putFloat(44, maxY);
+                data.putLong(48, bvhOffset);
+                data.putLong(56, bvhSize);
+                data.slice(HEADER_BYTES, vertexFloats * Float.BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer()
+                        .put(vertices.duplicate().position(0).limit(vertexFloats));
+                ByteBuffer bvhData = data.slice((int)bvhOffset, (int)bvhSize);
+                if (!bvh.serializeInPlace(BufferUtils.getUnsafeBufferAddress(bvhData), bvhSize, false))
+                    throw new IOException("cannot serialize the BVH of chunk " + chunkX + "/" + chunkZ);
+                data.force();
+            }
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            stores.increment();
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getStores() {
+        return stores.sum();
+    }
+}
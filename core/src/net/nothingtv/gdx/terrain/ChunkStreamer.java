@@ -0,0 +1,195 @@
+package net.nothingtv.gdx.terrain;
+
+import com.badlogic.gdx.math.Vector3;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Decides which terrain chunks are prepared and added to the physics world.
+ * <p>
+ * Every {@link TerrainObserver} has its own streamer. On every update the chunks around the observer and around the
+ * position it reaches in {@link TerrainConfig#chunkPredictionTime} are ordered by their distance, chunks in the
+ * direction of movement count less than the ones behind. The closest ones are prepared, at most
+ * {@link TerrainConfig#chunkMaxInFlight} at a time for the whole terrain, and prepared chunks are added to the
+ * physics world, at most {@link TerrainConfig#chunkActivationsPerUpdate} per update. Preparations of chunks that fell
+ * out of range and aren't held by any observer are cancelled.
+ */
+public class ChunkStreamer {
+
+    private static class Request {
+        final int chunkX, chunkZ;
+        final Terrain.TerrainChunk chunk;
+        final float priority;
+
+        Request(int chunkX, int chunkZ, Terrain.TerrainChunk chunk, float priority) {
+            this.chunkX = chunkX;
+            this.chunkZ = chunkZ;
+            this.chunk = chunk;
+            this.priority = priority;
+        }
+    }
+
+    // a position change above this many seconds or beyond the unload distance is a teleport, not a movement
+    private static final float MAX_VELOCITY_INTERVAL = 5f;
+    // below this speed in units per second the direction of movement is ignored
+    private static final float MIN_SPEED = 0.5f;
+
+    private final Terrain terrain;
+    private final TerrainObserver observer;
+    private final PriorityQueue<Request> queue = new PriorityQueue<>(Comparator.comparingDouble(r -> r.priority));
+    private final List<Terrain.TerrainChunk> inFlight = new ArrayList<>();
+    private final Vector3 lastPosition = new Vector3();
+    private final Vector3 velocity = new Vector3();
+    private final Vector3 predicted = new Vector3();
+    private final Vector3 tmp = new Vector3();
+    private long lastUpdate;
+    private long submitted, cancelled, activated;
+
+    ChunkStreamer(Terrain terrain, TerrainObserver observer) {
+        this.terrain = terrain;
+        this.observer = observer;
+    }
+
+    public void update() {
+        TerrainConfig config = terrain.config;
+        Vector3 pos = observer.position;
+        updateVelocity(pos);
+        predicted.set(pos).mulAdd(velocity, config.chunkPredictionTime);
+
+        // forget finished jobs and cancel the ones that aren't needed anymore
+        for (int i = inFlight.size() - 1; i >= 0; i--) {
+            Terrain.TerrainChunk chunk = inFlight.get(i);
+            boolean done = !chunk.isPreparing();
+            if (!done && chunk.holders <= 0 && !inRange(chunk, pos, observer.unloadDistance) && !inRange(chunk, predicted, observer.unloadDistance)) {
+                if (terrain.cancelPreparation(chunk))
+                    cancelled++;
+                done = true;
+            }
+            if (done) {
+                inFlight.set(i, inFlight.get(inFlight.size() - 1));
+                inFlight.remove(inFlight.size() - 1);
+            }
+        }
+
+        collectRequests(pos, config);
+        int activations = config.chunkActivationsPerUpdate;
+        // only the chunks right around the player are prepared while the chunks use more memory than the budget allows
+        boolean overBudget = terrain.isOverBudget();
+        int slots = config.chunkMaxInFlight - terrain.getChunks().getCount(Terrain.TerrainChunk.ChunkState.InPreparation);
+        while ((activations > 0 || slots > 0) && !queue.isEmpty()) {
+            Request request = queue.poll();
+            Terrain.TerrainChunk chunk = request.chunk;
+            boolean preparationAllowed = slots > 0 && (!overBudget || request.priority < config.chunkEdgeLength);
+            if (chunk == null) {
+                if (!preparationAllowed)
+                    continue;
+                chunk = terrain.getOrCreateChunk(request.chunkX, request.chunkZ, pos.y);
+            }
+            switch (chunk.getState()) {
+                case Prepared -> {
+                    // chunks only around the predicted position are prepared but not held, they'd be unloaded at once
+                    if (activations > 0 && chunk.holders > 0) {
+                        terrain.activateChunk(chunk);
+                        activations--;
+                        activated++;
+                    }
+                }
+                case Init -> {
+                    if (preparationAllowed && terrain.requestPreparation(chunk)) {
+                        inFlight.add(chunk);
+                        slots--;
+                        submitted++;
+                    }
+                }
+                default -> {
+                }
+            }
+        }
+        queue.clear();
+    }
+
+    private void updateVelocity(Vector3 pos) {
+        long now = System.nanoTime();
+        float delta = (now - lastUpdate) / 1e9f;
+        if (lastUpdate == 0 || delta <= 0 || delta > MAX_VELOCITY_INTERVAL || lastPosition.dst(pos) > observer.unloadDistance) {
+            velocity.setZero();
+        } else {
+            tmp.set(pos).sub(lastPosition).scl(1f / delta);
+            tmp.y = 0;
+            // smooth the measured velocity a bit against jitter of the update interval
+            velocity.lerp(tmp, 0.5f);
+        }
+        lastPosition.set(pos);
+        lastUpdate = now;
+    }
+
+    /**
+     * Queue all chunks that are within the load distance of the player or the predicted position and not in the physics world
+     */
+    private void collectRequests(Vector3 pos, TerrainConfig config) {
+        float load = observer.loadDistance;
+        float edge = config.chunkEdgeLength;
+        int minX = terrain.chunkCoordinate(Math.min(pos.x, predicted.x) - load);
+        int maxX = terrain.chunkCoordinate(Math.max(pos.x, predicted.x) + load);
+        int minZ = terrain.chunkCoordinate(Math.min(pos.z, predicted.z) - load);
+        int maxZ = terrain.chunkCoordinate(Math.max(pos.z, predicted.z) + load);
+        ChunkRegistry chunks = terrain.getChunks();
+        for (int cz = minZ; cz <= maxZ; cz++) {
+            for (int cx = minX; cx <= maxX; cx++) {
+                if (!touches(cx, cz, pos, load, edge) && !touches(cx, cz, predicted, load, edge))
+                    continue;
+                Terrain.TerrainChunk chunk = chunks.get(cx, cz);
+                if (chunk != null && (chunk.isVisible() || chunk.isPreparing()))
+                    continue;
+                queue.add(new Request(cx, cz, chunk, priority(cx, cz, pos, config)));
+            }
+        }
+    }
+
+    static boolean touches(int chunkX, int chunkZ, Vector3 center, float distance, float edge) {
+        return chunkX * edge <= center.x + distance && (chunkX + 1) * edge >= center.x - distance
+                && chunkZ * edge <= center.z + distance && (chunkZ + 1) * edge >= center.z - distance;
+    }
+
+    private float priority(int chunkX, int chunkZ, Vector3 pos, TerrainConfig config) {
+        float edge = config.chunkEdgeLength;
+        float dx = (chunkX + 0.5f) * edge - pos.x;
+        float dz = (chunkZ + 0.5f) * edge - pos.z;
+        float distance = (float)Math.sqrt(dx * dx + dz * dz);
+        float speed = velocity.len();
+        if (distance < edge || speed < MIN_SPEED)
+            return distance;
+        // the player arrives earlier at chunks ahead, they count up to half their distance, the ones behind up to 1.5 times
+        float cosine = (velocity.x * dx + velocity.z * dz) / (distance * speed);
+        return distance * (1 - 0.5f * cosine);
+    }
+
+    private boolean inRange(Terrain.TerrainChunk chunk, Vector3 pos, float distance) {
+        float dx = Math.abs(chunk.boundingBox.getCenterX() - pos.x);
+        float dz = Math.abs(chunk.boundingBox.getCenterZ() - pos.z);
+        return dx + dz <= distance;
+    }
+
+    public Vector3 getVelocity() {
+        return velocity;
+    }
+
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    public long getSubmitted() {
+        return submitted;
+    }
+
+    public long getCancelled() {
+        return cancelled;
+    }
+
+    public long getActivated() {
+        return activated;
+    }
+}
@@ -0,0 +1,54 @@
+package net.nothingtv.gdx.terrain;
+
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.physics.bullet.collision.btCollisionShape;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChunkStreamerTest {
+
+    /**
+     * A terrain whose preparations never finish, the streamer can only cancel them
+     */
+    private static class PendingTerrain extends Terrain {
+        PendingTerrain(TerrainConfig config) {
+            super(config);
+        }
+
+        @Override
+        protected Future<btCollisionShape> prepareChunkAsync(TerrainChunk chunk, int preparation) {
+            return new CompletableFuture<>();
+        }
+    }
+
+    @Test
+    void cancelledChunksAreDeleted() throws InterruptedException {
+        TerrainConfig config = new TerrainConfig(4096, 4096, 1);
+        config.heightSampler = new TestHeightSampler(30, 0.01f, 1);
+        config.chunkEdgeLength = 64;
+        config.chunkDeletionTime = 0;
+        Terrain terrain = new PendingTerrain(config);
+        ChunkRegistry chunks = terrain.getChunks();
+        Vector3 pos = new Vector3();
+        for (int jump = 0; jump < 30; jump++) {
+            // every jump leaves the preparations around the previous position behind
+            pos.set(400 + (jump % 3) * 1200, 0, 400 + (jump / 3 % 3) * 1200);
+            terrain.update(pos);
+            assertEquals(config.chunkMaxInFlight, chunks.getCount(Terrain.TerrainChunk.ChunkState.InPreparation));
+            // the chunks cancelled by this update are deleted by the next one
+            assertTrue(chunks.size() <= 2 * config.chunkMaxInFlight, "registered chunks " + chunks.size());
+            Thread.sleep(2);
+        }
+        long cancelled = terrain.getStreamer().getCancelled();
+        assertTrue(cancelled >= 29L * config.chunkMaxInFlight, "cancelled " + cancelled);
+
+        // only the chunks in preparation are left once the cancelled ones are deleted
+        terrain.update(pos);
+        assertEquals(config.chunkMaxInFlight, chunks.size());
+    }
+}
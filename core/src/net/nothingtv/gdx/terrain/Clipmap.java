@@ -0,0 +1,423 @@
+package net.nothingtv.gdx.terrain;
+
+import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+
+import java.util.Arrays;
+
+/**
+ * The vertices and indices of a geometry clipmap around a position, independent of any GL context.
+ * <p>
+ * Level n is a square grid of size x size cells with a spacing of spacing * 2^n, centered on the position and snapped
+ * to even vertices of its own grid so it lines up with the next coarser level. Each level leaves a hole where the finer
+ * level is. The vertices are addressed toroidally: the vertex at grid coordinates gx/gz is stored at
+ * (gz mod (size+1)) * (size+1) + (gx mod (size+1)), so when a level moves only the vertices of the newly exposed strips
+ * are sampled, all others stay where they are. The indices don't depend on the position either, every storage cell has
+ * a fixed slot of six indices that is degenerated while the cell is on the seam of the toroidal grid or in the hole.
+ * <p>
+ * The vertices on the border of a level are sampled like the coarser level and the ones between two coarse vertices
+ * are interpolated, so the levels meet without cracks.
+ */
+public class Clipmap {
+
+    public static final int FLOATS_PER_VERTEX = 8;
+
+    /**
+     * One ring of the clipmap, the ranges of changed data are reset by {@link #clearDirty()}
+     */
+    public static class Level {
+        final int index;
+        final float spacing;
+        final float[] vertices;
+        final short[] indices;
+        // grid coordinates of the first vertex, valid if placed is set
+        int originX, originZ;
+        boolean placed;
+        // the cells of the finer level in cell coordinates, to is exclusive
+        int holeX0, holeZ0, holeX1, holeZ1;
+        int dirtyVertexFrom = Integer.MAX_VALUE, dirtyVertexTo;
+        int dirtyIndexFrom = Integer.MAX_VALUE, dirtyIndexTo;
+
+        Level(int index, float spacing, int n) {
+            this.index = index;
+            this.spacing = spacing;
+            vertices = new float[n * n * FLOATS_PER_VERTEX];
+            indices = new short[n * n * 6];
+        }
+
+        public float getSpacing() {
+            return spacing;
+        }
+
+        public float[] getVertices() {
+            return vertices;
+        }
+
+        public short[] getIndices() {
+            return indices;
+        }
+
+        /**
+         * @return the first changed vertex, there is none if it isn't less than {@link #getDirtyVertexTo()}
+         */
+        public int getDirtyVertexFrom() {
+            return dirtyVertexFrom;
+        }
+
+        public int getDirtyVertexTo() {
+            return dirtyVertexTo;
+        }
+
+        /**
+         * @return the first changed index, there is none if it isn't less than {@link #getDirtyIndexTo()}
+         */
+        public int getDirtyIndexFrom() {
+            return dirtyIndexFrom;
+        }
+
+        public int getDirtyIndexTo() {
+            return dirtyIndexTo;
+        }
+
+        public void clearDirty() {
+            dirtyVertexFrom = dirtyIndexFrom = Integer.MAX_VALUE;
+            dirtyVertexTo = dirtyIndexTo = 0;
+        }
+
+        /**
+         * @return the world x coordinate of the first vertex
+         */
+        public float getMinX() {
+            return originX * spacing;
+        }
+
+        /**
+         * @return the world z coordinate of the first vertex
+         */
+        public float getMinZ() {
+            return originZ * spacing;
+        }
+    }
+
+    private final Terrain terrain;
+    private final int size;
+    // vertices per edge
+    private final int n;
+    private final float uvScale;
+    private final Level[] levels;
+    // scratch for the vertices sampled in one batch
+    private final int[] batchX, batchZ;
+    private float[] sampleX, sampleZ, sampleHeights;
+    private final Vector3 tmpNormal = new Vector3();
+
+    /**
+     * @param terrain the terrain to sample
+     * @param size the number of cells per edge of a level, a multiple of 4 of at least 8
+     * @param levelCount the number of levels
+     * @param spacing the distance between the vertices of the finest level in world units
+     * @param uvScale the factor from world coordinates to texture coordinates
+     */
+    public Clipmap(Terrain terrain, int size, int levelCount, float spacing, float uvScale) {
+        if (size < 8 || size % 4 != 0 || (size + 1) * (size + 1) > 65536)
+            throw new GdxRuntimeException("invalid clipmap size: " + size);
+        if (levelCount < 1)
+            throw new GdxRuntimeException("invalid number of clipmap levels: " + levelCount);
+        this.terrain = terrain;
+        this.size = size;
+        this.n = size + 1;
+        this.uvScale = uvScale;
+        levels = new Level[levelCount];
+        for (int i = 0; i < levelCount; i++)
+            levels[i] = new Level(i, spacing * (1 << i), n);
+        batchX = new int[n];
+        batchZ = new int[n];
+        sampleX = new float[n * 4];
+        sampleZ = new float[n * 4];
+        sampleHeights = new float[n * 4];
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getLevelCount() {
+        return levels.length;
+    }
+
+    public Level getLevel(int index) {
+        return levels[index];
+    }
+
+    /**
+     * Sample all vertices again on the next update, e.g. after the heights of the terrain changed
+     */
+    public void invalidate() {
+        for (Level level : levels)
+            level.placed = false;
+    }
+
+    /**
+     * Move the levels to a new center, only the vertices that entered a level or changed their role on its border
+     * are sampled
+     * @param x the world x coordinate of the center
+     * @param z the world z coordinate of the center
+     * @return the number of sampled vertices
+     */
+    public int update(float x, float z) {
+        int sampled = 0;
+        for (Level level : levels) {
+            int originX = 2 * MathUtils.floor(x / (2 * level.spacing)) - size / 2;
+            int originZ = 2 * MathUtils.floor(z / (2 * level.spacing)) - size / 2;
+            int holeX0 = 0, holeZ0 = 0, holeX1 = 0, holeZ1 = 0;
+            if (level.index > 0) {
+                Level finer = levels[level.index - 1];
+                holeX0 = finer.originX / 2;
+                holeZ0 = finer.originZ / 2;
+                holeX1 = holeX0 + size / 2;
+                holeZ1 = holeZ0 + size / 2;
+            }
+            // the strips must not reach the hole, see updateCells
+            boolean incremental = level.placed && Math.abs(originX - level.originX) < size / 4
+                    && Math.abs(originZ - level.originZ) < size / 4;
+            if (incremental && originX == level.originX && originZ == level.originZ
+                    && holeX0 == level.holeX0 && holeZ0 == level.holeZ0)
+                continue;
+            int oldX = level.originX;
+            int oldZ = level.originZ;
+            int oldHoleX0 = level.holeX0, oldHoleZ0 = level.holeZ0, oldHoleX1 = level.holeX1, oldHoleZ1 = level.holeZ1;
+            level.originX = originX;
+            level.originZ = originZ;
+            level.holeX0 = holeX0;
+            level.holeZ0 = holeZ0;
+            level.holeX1 = holeX1;
+            level.holeZ1 = holeZ1;
+            if (incremental) {
+                if (originX != oldX || originZ != oldZ)
+                    sampled += updateVertices(level, oldX, oldZ);
+                updateCells(level, oldX, oldZ, oldHoleX0, oldHoleZ0, oldHoleX1, oldHoleZ1);
+            } else {
+                sampled += updateVertices(level, Integer.MIN_VALUE / 2, Integer.MIN_VALUE / 2);
+                for (int c = 0; c < n * n; c++)
+                    writeCell(level, c % n, c / n);
+                level.placed = true;
+            }
+        }
+        return sampled;
+    }
+
+    /**
+     * Sample the vertices that weren't in the interior of the level at its old origin or that are on its new border
+     */
+    private int updateVertices(Level level, int oldX, int oldZ) {
+        int sampled = 0;
+        int x0 = level.originX;
+        int z0 = level.originZ;
+        for (int gz = z0; gz <= z0 + size; gz++) {
+            int count = 0;
+            if (gz == z0 || gz == z0 + size || gz <= oldZ || gz >= oldZ + size) {
+                for (int gx = x0; gx <= x0 + size; gx++) {
+                    batchX[count] = gx;
+                    batchZ[count++] = gz;
+                }
+            } else {
+                for (int gx = x0; gx <= x0 + size; gx++) {
+                    if (gx == x0 || gx == x0 + size || gx <= oldX || gx >= oldX + size) {
+                        batchX[count] = gx;
+                        batchZ[count++] = gz;
+                    }
+                }
+            }
+            sampleBatch(level, count);
+            sampled += count;
+        }
+        return sampled;
+    }
+
+    /**
+     * Calculate the vertices in batchX/batchZ, border vertices use the footprint of the coarser level and the ones
+     * between two vertices of the coarser level are interpolated
+     */
+    private void sampleBatch(Level level, int count) {
+        if (count == 0)
+            return;
+        boolean matchCoarser = level.index < levels.length - 1;
+        float spacing = level.spacing;
+        int x0 = level.originX, z0 = level.originZ;
+        // interior vertices first, the border vertices are appended with one or two samples each
+        int interior = 0;
+        for (int i = 0; i < count; i++) {
+            int gx = batchX[i], gz = batchZ[i];
+            if (matchCoarser && isBorder(gx, gz, x0, z0))
+                continue;
+            sampleX[interior] = gx * spacing;
+            sampleZ[interior++] = gz * spacing;
+        }
+        int samples = interior;
+        if (matchCoarser) {
+            for (int i = 0; i < count; i++) {
+                int gx = batchX[i], gz = batchZ[i];
+                if (!isBorder(gx, gz, x0, z0))
+                    continue;
+                samples = addBorderSamples(gx, gz, x0, z0, spacing, samples);
+            }
+        }
+        if (samples > sampleHeights.length)
+            sampleHeights = new float[samples];
+        terrain.getHeightsAt(sampleX, sampleZ, interior, spacing, sampleHeights);
+        if (samples > interior) {
+            float[] borderHeights = new float[samples - interior];
+            float[] borderX = Arrays.copyOfRange(sampleX, interior, samples);
+            float[] borderZ = Arrays.copyOfRange(sampleZ, interior, samples);
+            terrain.getHeightsAt(borderX, borderZ, borderHeights.length, spacing * 2, borderHeights);
+            System.arraycopy(borderHeights, 0, sampleHeights, interior, borderHeights.length);
+        }
+        int next = 0;
+        int nextBorder = interior;
+        for (int i = 0; i < count; i++) {
+            int gx = batchX[i], gz = batchZ[i];
+            float height;
+            if (matchCoarser && isBorder(gx, gz, x0, z0)) {
+                if (isBetweenCoarse(gx, gz, x0, z0)) {
+                    height = (sampleHeights[nextBorder] + sampleHeights[nextBorder + 1]) * 0.5f;
+                    nextBorder += 2;
+                } else {
+                    height = sampleHeights[nextBorder++];
+                }
+            } else {
+                height = sampleHeights[next++];
+            }
+            writeVertex(level, gx, gz, height);
+        }
+    }
+
+    private boolean isBorder(int gx, int gz, int x0, int z0) {
+        return gx == x0 || gx == x0 + size || gz == z0 || gz == z0 + size;
+    }
+
+    /**
+     * @return true if the border vertex lies between two vertices of the coarser level, the origins are even
+     */
+    private boolean isBetweenCoarse(int gx, int gz, int x0, int z0) {
+        boolean vertical = gx == x0 || gx == x0 + size;
+        boolean horizontal = gz == z0 || gz == z0 + size;
+        return (horizontal && (gx & 1) != 0) || (vertical && (gz & 1) != 0);
+    }
+
+    private int addBorderSamples(int gx, int gz, int x0, int z0, float spacing, int samples) {
+        ensureSamples(samples + 2);
+        if (isBetweenCoarse(gx, gz, x0, z0)) {
+            boolean horizontal = (gz == z0 || gz == z0 + size) && (gx & 1) != 0;
+            int dx = horizontal ? 1 : 0;
+            int dz = horizontal ? 0 : 1;
+            sampleX[samples] = (gx - dx) * spacing;
+            sampleZ[samples++] = (gz - dz) * spacing;
+            sampleX[samples] = (gx + dx) * spacing;
+            sampleZ[samples++] = (gz + dz) * spacing;
+        } else {
+            sampleX[samples] = gx * spacing;
+            sampleZ[samples++] = gz * spacing;
+        }
+        return samples;
+    }
+
+    private void ensureSamples(int count) {
+        if (count > sampleX.length) {
+            sampleX = Arrays.copyOf(sampleX, count * 2);
+            sampleZ = Arrays.copyOf(sampleZ, count * 2);
+        }
+    }
+
+    private void writeVertex(Level level, int gx, int gz, float height) {
+        float x = gx * level.spacing;
+        float z = gz * level.spacing;
+        terrain.getNormalAt(x, z, tmpNormal);
+        int v = storageIndex(gx, gz);
+        int i = v * FLOATS_PER_VERTEX;
+        float[] vertices = level.vertices;
+        vertices[i] = x;
+        vertices[i + 1] = height;
+        vertices[i + 2] = z;
+        vertices[i + 3] = tmpNormal.x;
+        vertices[i + 4] = tmpNormal.y;
+        vertices[i + 5] = tmpNormal.z;
+        vertices[i + 6] = x * uvScale;
+        vertices[i + 7] = z * uvScale;
+        level.dirtyVertexFrom = Math.min(level.dirtyVertexFrom, v);
+        level.dirtyVertexTo = Math.max(level.dirtyVertexTo, v + 1);
+    }
+
+    private int storageIndex(int gx, int gz) {
+        return Math.floorMod(gz, n) * n + Math.floorMod(gx, n);
+    }
+
+    /**
+     * Rewrite the cells whose visibility may have changed: the old and the new seam of the toroidal grid and the
+     * difference of the old and the new hole. The newly exposed strips are less than size/4 cells wide so they never
+     * held the hole, which keeps at least size/4-1 cells away from the border.
+     */
+    private void updateCells(Level level, int oldX, int oldZ, int oldHoleX0, int oldHoleZ0, int oldHoleX1, int oldHoleZ1) {
+        int[] seamColumns = { Math.floorMod(oldX + size, n), Math.floorMod(level.originX + size, n) };
+        int[] seamRows = { Math.floorMod(oldZ + size, n), Math.floorMod(level.originZ + size, n) };
+        for (int c : seamColumns)
+            for (int r = 0; r < n; r++)
+                writeCell(level, c, r);
+        for (int r : seamRows)
+            for (int c = 0; c < n; c++)
+                writeCell(level, c, r);
+        rewriteOutside(level, oldHoleX0, oldHoleZ0, oldHoleX1, oldHoleZ1, level.holeX0, level.holeZ0, level.holeX1, level.holeZ1);
+        rewriteOutside(level, level.holeX0, level.holeZ0, level.holeX1, level.holeZ1, oldHoleX0, oldHoleZ0, oldHoleX1, oldHoleZ1);
+    }
+
+    /**
+     * Rewrite the cells of the rectangle a that are not in the rectangle b, both in cell coordinates with exclusive ends
+     */
+    private void rewriteOutside(Level level, int ax0, int az0, int ax1, int az1, int bx0, int bz0, int bx1, int bz1) {
+        for (int cz = az0; cz < az1; cz++) {
+            if (cz < bz0 || cz >= bz1) {
+                for (int cx = ax0; cx < ax1; cx++)
+                    writeCell(level, Math.floorMod(cx, n), Math.floorMod(cz, n));
+            } else {
+                for (int cx = ax0; cx < Math.min(ax1, bx0); cx++)
+                    writeCell(level, Math.floorMod(cx, n), Math.floorMod(cz, n));
+                for (int cx = Math.max(ax0, bx1); cx < ax1; cx++)
+                    writeCell(level, Math.floorMod(cx, n), Math.floorMod(cz, n));
+            }
+        }
+    }
+
+    /**
+     * @return true if the storage cell is drawn: it's not on the seam and not in the hole
+     */
+    boolean isCellVisible(Level level, int column, int row) {
+        int cx = level.originX + Math.floorMod(column - level.originX, n);
+        int cz = level.originZ + Math.floorMod(row - level.originZ, n);
+        if (cx == level.originX + size || cz == level.originZ + size)
+            return false;
+        return cx < level.holeX0 || cx >= level.holeX1 || cz < level.holeZ0 || cz >= level.holeZ1;
+    }
+
+    private void writeCell(Level level, int column, int row) {
+        int slot = (row * n + column) * 6;
+        short[] indices = level.indices;
+        if (isCellVisible(level, column, row)) {
+            int next = (column + 1) % n;
+            int below = (row + 1) % n;
+            short v00 = (short) (row * n + column);
+            short v10 = (short) (row * n + next);
+            short v01 = (short) (below * n + column);
+            short v11 = (short) (below * n + next);
+            indices[slot] = v00;
+            indices[slot + 1] = v01;
+            indices[slot + 2] = v10;
+            indices[slot + 3] = v10;
+            indices[slot + 4] = v01;
+            indices[slot + 5] = v11;
+        } else {
+            for (int i = 0; i < 6; i++)
+                indices[slot + i] = 0;
+        }
+        level.dirtyIndexFrom = Math.min(level.dirtyIndexFrom, slot);
+        level.dirtyIndexTo = Math.max(level.dirtyIndexTo, slot + 6);
+    }
+}
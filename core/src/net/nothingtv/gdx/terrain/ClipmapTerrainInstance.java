@@ -0,0 +1,126 @@
+package net.nothingtv.gdx.terrain;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.Camera;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.Mesh;
+import com.badlogic.gdx.graphics.VertexAttribute;
+import com.badlogic.gdx.graphics.VertexAttributes;
+import com.badlogic.gdx.graphics.g3d.Model;
+import com.badlogic.gdx.graphics.g3d.model.MeshPart;
+import com.badlogic.gdx.graphics.g3d.model.Node;
+import com.badlogic.gdx.graphics.g3d.model.NodePart;
+import com.badlogic.gdx.graphics.glutils.IndexBufferObjectSubData;
+import com.badlogic.gdx.graphics.glutils.VertexBufferObjectSubData;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Renders the terrain as a geometry clipmap instead of the radial mesh of {@link TerrainInstance}.
+ * <p>
+ * Every level of the {@link Clipmap} is one mesh. The meshes don't depend on the camera's direction, a rotation costs
+ * nothing and a movement samples only the strips that entered the levels. The changed vertex ranges are uploaded with
+ * glBufferSubData, the indices change only when a level moves and are uploaded as a whole.
+ */
+public class ClipmapTerrainInstance extends TerrainInstance {
+
+    private Clipmap clipmap;
+    private Node clipmapNode;
+    private VertexBufferObjectSubData[] vertexData;
+    private IndexBufferObjectSubData[] indexData;
+    private final float uvScale = 0.1f;
+
+    public ClipmapTerrainInstance(Model model, Terrain terrain) {
+        super(model, terrain);
+    }
+
+    public Clipmap getClipmap() {
+        return clipmap;
+    }
+
+    public void clipmapNodes(Camera camera) {
+        if (clipmapNode == null)
+            createNodes(camera);
+        vertices = clipmap.update(camera.position.x, camera.position.z);
+        for (int i = 0; i < clipmap.getLevelCount(); i++)
+            upload(i);
+    }
+
+    private void createNodes(Camera camera) {
+        TerrainConfig config = terrain.config;
+        int size = config.clipmapSize;
+        int levels = config.clipmapLevels;
+        // the vertices of the finest level are as far apart as the terrain's vertices
+        float spacing = config.scale;
+        if (levels <= 0) {
+            // the finest level reaches size/2 vertices, every further level twice as far
+            levels = Math.max(1, (int) Math.ceil(Math.log(camera.far / (size / 2f * spacing)) / Math.log(2)) + 1);
+        }
+        clipmap = new Clipmap(terrain, size, levels, spacing, uvScale);
+        System.out.printf("ClipmapTerrainInstance: create %d levels of %d cells%n", levels, size);
+
+        nodes.forEach(n -> n.parts.forEach(p -> p.enabled = false));
+        clipmapNode = new Node();
+        vertexData = new VertexBufferObjectSubData[levels];
+        indexData = new IndexBufferObjectSubData[levels];
+        int vertexCount = (size + 1) * (size + 1);
+        for (int i = 0; i < levels; i++) {
+            Clipmap.Level level = clipmap.getLevel(i);
+            vertexData[i] = new VertexBufferObjectSubData(false, vertexCount,
+                    new VertexAttributes(VertexAttribute.Position(), VertexAttribute.Normal(), VertexAttribute.TexCoords(0)));
+            indexData[i] = new IndexBufferObjectSubData(false, level.getIndices().length);
+            MeshPart meshPart = new MeshPart();
+            meshPart.mesh = new Mesh(vertexData[i], indexData[i], false) {};
+            meshPart.mesh.setVertices(level.getVertices());
+            meshPart.mesh.setIndices(level.getIndices());
+            meshPart.primitiveType = GL20.GL_TRIANGLES;
+            meshPart.offset = 0;
+            meshPart.size = level.getIndices().length;
+            NodePart part = new NodePart();
+            part.material = nodes.first().parts.first().material;
+            part.meshPart = meshPart;
+            clipmapNode.parts.add(part);
+        }
+        nodes.add(clipmapNode);
+        visibleNodes = levels;
+    }
+
+    /**
+     * Upload the changed vertices and indices of a level
+     */
+    private void upload(int index) {
+        Clipmap.Level level = clipmap.getLevel(index);
+        int from = level.getDirtyVertexFrom();
+        int to = level.getDirtyVertexTo();
+        if (from < to) {
+            int floats = Clipmap.FLOATS_PER_VERTEX;
+            FloatBuffer buffer = vertexData[index].getBuffer(false);
+            int limit = buffer.limit();
+            buffer.position(from * floats);
+            buffer.put(level.getVertices(), from * floats, (to - from) * floats);
+            buffer.limit(to * floats);
+            buffer.position(from * floats);
+            Gdx.gl.glBindBuffer(GL20.GL_ARRAY_BUFFER, vertexData[index].getBufferHandle());
+            Gdx.gl.glBufferSubData(GL20.GL_ARRAY_BUFFER, from * floats * Float.BYTES, (to - from) * floats * Float.BYTES, buffer);
+            Gdx.gl.glBindBuffer(GL20.GL_ARRAY_BUFFER, 0);
+            buffer.limit(limit);
+            buffer.position(0);
+        }
+        from = level.getDirtyIndexFrom();
+        to = level.getDirtyIndexTo();
+        if (from < to)
+            indexData[index].updateIndices(from, level.getIndices(), from, to - from);
+        level.clearDirty();
+    }
+
+    @Override
+    public void invalidate() {
+        if (clipmap != null)
+            clipmap.invalidate();
+    }
+
+    @Override
+    public void update(Camera camera, float delta) {
+        clipmapNodes(camera);
+    }
+}
@@ -0,0 +1,132 @@
+package net.nothingtv.gdx.terrain;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class ClipmapTest {
+
+    private static final int SIZE = 16;
+    private static final int LEVELS = 4;
+    private static final int N = SIZE + 1;
+
+    private static Clipmap createClipmap() {
+        TerrainConfig config = new TerrainConfig(4096, 4096, 1);
+        config.heightSampler = new TestHeightSampler(30, 0.01f, 1);
+        return new Clipmap(new Terrain(config), SIZE, LEVELS, 1f, 0.1f);
+    }
+
+    @Test
+    void incrementalMoveMatchesRebuild() {
+        Clipmap moved = createClipmap();
+        float x = 2000.5f, z = 1800.25f;
+        moved.update(x, z);
+        // small steps keep every level incremental, some of them cross several vertices of the finest level
+        float[][] steps = {{1.5f, 0}, {0, -2.75f}, {3, 3}, {-1, 2}, {-3.5f, -0.5f}, {2.25f, -3}, {0.5f, 0.5f}};
+        for (int i = 0; i < 40; i++) {
+            float[] step = steps[i % steps.length];
+            x += step[0];
+            z += step[1];
+            moved.update(x, z);
+            Clipmap rebuilt = createClipmap();
+            rebuilt.update(x, z);
+            for (int l = 0; l < LEVELS; l++) {
+                Clipmap.Level expected = rebuilt.getLevel(l);
+                Clipmap.Level actual = moved.getLevel(l);
+                assertEquals(expected.originX, actual.originX);
+                assertEquals(expected.originZ, actual.originZ);
+                assertArrayEquals(expected.getVertices(), actual.getVertices(), "vertices of level " + l + " after step " + i);
+                assertArrayEquals(expected.getIndices(), actual.getIndices(), "indices of level " + l + " after step " + i);
+            }
+        }
+    }
+
+    @Test
+    void bordersLineUpWithCoarserLevel() {
+        Clipmap clipmap = createClipmap();
+        clipmap.update(1234.5f, 987.75f);
+        for (int l = 0; l < LEVELS - 1; l++) {
+            Clipmap.Level fine = clipmap.getLevel(l);
+            Clipmap.Level coarse = clipmap.getLevel(l + 1);
+            int x0 = fine.originX, z0 = fine.originZ;
+            // the fine level covers exactly the hole of the coarser one
+            assertEquals(x0, 2 * coarse.holeX0);
+            assertEquals(z0, 2 * coarse.holeZ0);
+            for (int gz = z0; gz <= z0 + SIZE; gz++) {
+                for (int gx = x0; gx <= x0 + SIZE; gx++) {
+                    if (gx != x0 && gx != x0 + SIZE && gz != z0 && gz != z0 + SIZE)
+                        continue;
+                    float height = height(fine, gx, gz);
+                    float expected;
+                    if ((gx & 1) == 0 && (gz & 1) == 0) {
+                        expected = height(coarse, gx / 2, gz / 2);
+                    } else if ((gx & 1) != 0) {
+                        expected = (height(coarse, (gx - 1) / 2, gz / 2) + height(coarse, (gx + 1) / 2, gz / 2)) * 0.5f;
+                    } else {
+                        expected = (height(coarse, gx / 2, (gz - 1) / 2) + height(coarse, gx / 2, (gz + 1) / 2)) * 0.5f;
+                    }
+                    assertEquals(expected, height, 1e-4f, "level " + l + " vertex " + gx + "/" + gz);
+                    // the position matches too
+                    assertEquals(gx * fine.getSpacing(), vertex(fine, gx, gz)[0]);
+                    assertEquals(gz * fine.getSpacing(), vertex(fine, gx, gz)[2]);
+                }
+            }
+        }
+    }
+
+    @Test
+    void holeAndSeamSlotsAreDegenerate() {
+        Clipmap clipmap = createClipmap();
+        float x = 3000, z = 500;
+        for (int i = 0; i < 25; i++) {
+            clipmap.update(x, z);
+            for (int l = 0; l < LEVELS; l++) {
+                Clipmap.Level level = clipmap.getLevel(l);
+                short[] indices = level.getIndices();
+                int visible = 0;
+                for (int row = 0; row < N; row++) {
+                    for (int column = 0; column < N; column++) {
+                        // the cell coordinates of the storage cell at the current origin
+                        int cx = level.originX + Math.floorMod(column - level.originX, N);
+                        int cz = level.originZ + Math.floorMod(row - level.originZ, N);
+                        boolean seam = cx == level.originX + SIZE || cz == level.originZ + SIZE;
+                        boolean hole = l > 0 && cx >= level.holeX0 && cx < level.holeX1 && cz >= level.holeZ0 && cz < level.holeZ1;
+                        int slot = (row * N + column) * 6;
+                        if (seam || hole) {
+                            for (int k = 0; k < 6; k++)
+                                assertEquals(0, indices[slot + k], "level " + l + " cell " + cx + "/" + cz);
+                            continue;
+                        }
+                        visible++;
+                        // both triangles span the cell's own four vertices
+                        assertEquals(storageIndex(cx, cz), indices[slot]);
+                        assertEquals(storageIndex(cx, cz + 1), indices[slot + 1]);
+                        assertEquals(storageIndex(cx + 1, cz), indices[slot + 2]);
+                        assertEquals(storageIndex(cx + 1, cz + 1), indices[slot + 5]);
+                        assertNotEquals(indices[slot], indices[slot + 5]);
+                    }
+                }
+                int holeCells = l > 0 ? (SIZE / 2) * (SIZE / 2) : 0;
+                assertEquals(SIZE * SIZE - holeCells, visible);
+            }
+            x += 1.75f * (i % 3 - 1) + 0.5f;
+            z -= 2.5f;
+        }
+    }
+
+    private static int storageIndex(int gx, int gz) {
+        return Math.floorMod(gz, N) * N + Math.floorMod(gx, N);
+    }
+
+    private static float height(Clipmap.Level level, int gx, int gz) {
+        return vertex(level, gx, gz)[1];
+    }
+
+    private static float[] vertex(Clipmap.Level level, int gx, int gz) {
+        int i = storageIndex(gx, gz) * Clipmap.FLOATS_PER_VERTEX;
+        float[] vertices = level.getVertices();
+        return new float[] {vertices[i], vertices[i + 1], vertices[i + 2]};
+    }
+}
@@ -0,0 +1,283 @@
+package net.nothingtv.gdx.terrain;
+
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import net.nothingtv.gdx.tools.Async;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Height sampler that serves the heights of another sampler after hydraulic erosion, eroded tile by tile when needed.
+ * <p>
+ * Every tile covers {@link #tileSize} lattice cells plus an overlap of {@link #margin} cells on each side and is eroded
+ * on its own with a seed derived from the tile coordinate. Within the overlap the heights of the neighbouring tiles
+ * are cross-faded, so the eroded terrain is continuous across the tile borders. The eroded tiles are cached, the oldest
+ * ones are dropped once more than the maximum number of tiles are cached.
+ * <p>
+ * A tile that is not cached yet is eroded on the calling thread, {@link #prefetch(float, float, float, float)} and
+ * {@link #sampleGrid(float, float, float, float, int, int, float[])} erode all tiles of an area on worker threads.
+ * Every thread remembers the last few tiles it used, so most samples don't look up the cache at all.
+ */
+public class ErodedHeightSampler implements HeightSampler {
+
+    public final HeightSampler heightSampler;
+    /**
+     * the erosion parameters, changes apply to tiles that are eroded after {@link #clear()}
+     */
+    public final Erosion erosion;
+    /**
+     * distance between two lattice points in sampler space
+     */
+    public final float sampleSpacing;
+    /**
+     * number of lattice cells of a tile without the overlap
+     */
+    public final int tileSize;
+    /**
+     * number of lattice cells a tile overlaps its neighbours on each side
+     */
+    public final int margin;
+    public final int maxTiles;
+    /**
+     * the number of droplets per lattice cell of a tile
+     */
+    public float dropletsPerCell = 1f;
+
+    private final float inverseSpacing;
+    private final int tileSamples;
+    private final ConcurrentHashMap<Long, Future<float[]>> tiles = new ConcurrentHashMap<>();
+    private final Queue<Long> tileOrder = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<RecentTiles> recentTiles = ThreadLocal.withInitial(RecentTiles::new);
+    // incremented by clear, the recent tiles of a thread are dropped when it changed
+    private volatile int generation;
+
+    /**
+     * The tiles a thread used last, a sample needs up to four of them
+     */
+    private static final class RecentTiles {
+        static final int SIZE = 4;
+        final int[] tileX = new int[SIZE], tileZ = new int[SIZE];
+        final float[][] heights = new float[SIZE][];
+        int generation;
+        int next;
+    }
+
+    /**
+     * Create an eroding sampler
+     * @param heightSampler the sampler that computes the heights before erosion
+     * @param erosion the erosion parameters
+     * @param sampleSpacing the distance between two lattice points in sampler space, e.g. 1/terrain.scale for one sample per world unit
+     * @param tileSize the number of lattice cells per tile edge
+     * @param margin the number of lattice cells the tiles overlap on each side, at most half the tile size
+     * @param maxTiles the number of eroded tiles to keep
+     */
+    public ErodedHeightSampler(HeightSampler heightSampler, Erosion erosion, float sampleSpacing, int tileSize, int margin, int maxTiles) {
+        if (margin < 0 || 2 * margin > tileSize)
+            throw new GdxRuntimeException("margin must be between 0 and half the tile size");
+        this.heightSampler = heightSampler;
+        this.erosion = erosion;
+        this.sampleSpacing = sampleSpacing;
+        this.tileSize = tileSize;
+        this.margin = margin;
+        this.maxTiles = Math.max(4, maxTiles);
+        inverseSpacing = 1f / sampleSpacing;
+        tileSamples = tileSize + 2 * margin + 1;
+    }
+
+    /**
+     * Create an eroding sampler with one sample per unit and tiles of 128 cells that overlap by 16 cells
+     * @param heightSampler the sampler that computes the heights before erosion
+     * @param erosion the erosion parameters
+     */
+    public ErodedHeightSampler(HeightSampler heightSampler, Erosion erosion) {
+        this(heightSampler, erosion, 1f, 128, 16, 256);
+    }
+
+    @Override
+    public void init(Terrain terrain) {
+        heightSampler.init(terrain);
+        clear();
+    }
+
+    /**
+     * Remove all eroded tiles, e.g. when the erosion parameters or the underlying sampler changed
+     */
+    public synchronized void clear() {
+        generation++;
+        tiles.clear();
+        tileOrder.clear();
+    }
+
+    @Override
+    public float getHeight(float x, float z) {
+        float gx = x * inverseSpacing;
+        float gz = z * inverseSpacing;
+        int tileX = Math.floorDiv((int)Math.floor(gx), tileSize);
+        int tileZ = Math.floorDiv((int)Math.floor(gz), tileSize);
+        float lx = gx - tileX * tileSize;
+        float lz = gz - tileZ * tileSize;
+        // the neighbour tile along each axis and its weight, the weights of overlapping tiles sum up to one
+        int neighbourX = tileX, neighbourZ = tileZ;
+        float wx = 0, wz = 0;
+        if (margin > 0) {
+            if (lx < margin) {
+                neighbourX = tileX - 1;
+                wx = (margin - lx) / (2f * margin);
+            } else if (lx > tileSize - margin) {
+                neighbourX = tileX + 1;
+                wx = (lx - (tileSize - margin)) / (2f * margin);
+            }
+            if (lz < margin) {
+                neighbourZ = tileZ - 1;
+                wz = (margin - lz) / (2f * margin);
+            } else if (lz > tileSize - margin) {
+                neighbourZ = tileZ + 1;
+                wz = (lz - (tileSize - margin)) / (2f * margin);
+            }
+        }
+        RecentTiles recent = recentTiles.get();
+        if (recent.generation != generation) {
+            Arrays.fill(recent.heights, null);
+            recent.generation = generation;
+        }
+        float h = (1 - wx) * (1 - wz) * sampleTile(recent, tileX, tileZ, gx, gz);
+        if (wx > 0)
+            h += wx * (1 - wz) * sampleTile(recent, neighbourX, tileZ, gx, gz);
+        if (wz > 0)
+            h += (1 - wx) * wz * sampleTile(recent, tileX, neighbourZ, gx, gz);
+        if (wx > 0 && wz > 0)
+            h += wx * wz * sampleTile(recent, neighbourX, neighbourZ, gx, gz);
+        return h;
+    }
+
+    @Override
+    public void sampleGrid(float x0, float z0, float stepX, float stepZ, int nx, int nz, float[] out) {
+        prefetch(Math.min(x0, x0 + (nx - 1) * stepX), Math.min(z0, z0 + (nz - 1) * stepZ),
+                Math.max(x0, x0 + (nx - 1) * stepX), Math.max(z0, z0 + (nz - 1) * stepZ));
+        HeightSampler.super.sampleGrid(x0, z0, stepX, stepZ, nx, nz, out);
+    }
+
+    /**
+     * Start eroding all tiles needed for the heights of an area on worker threads, the method doesn't wait for them
+     * @param x0 the smallest x coordinate in sampler space
+     * @param z0 the smallest z coordinate in sampler space
+     * @param x1 the largest x coordinate in sampler space
+     * @param z1 the largest z coordinate in sampler space
+     */
+    public void prefetch(float x0, float z0, float x1, float z1) {
+        int fromX = Math.floorDiv((int)Math.floor(x0 * inverseSpacing) - margin, tileSize);
+        int fromZ = Math.floorDiv((int)Math.floor(z0 * inverseSpacing) - margin, tileSize);
+        int toX = Math.floorDiv((int)Math.floor(x1 * inverseSpacing) + margin, tileSize);
+        int toZ = Math.floorDiv((int)Math.floor(z1 * inverseSpacing) + margin, tileSize);
+        for (int tileZ = fromZ; tileZ <= toZ; tileZ++)
+            for (int tileX = fromX; tileX <= toX; tileX++)
+                requestTile(tileX, tileZ, false);
+    }
+
+    /**
+     * @return the height of a tile interpolated at the lattice coordinate gx/gz
+     */
+    private float sampleTile(RecentTiles recent, int tileX, int tileZ, float gx, float gz) {
+        float[] heights = getTile(recent, tileX, tileZ);
+        float px = gx - (tileX * tileSize - margin);
+        float pz = gz - (tileZ * tileSize - margin);
+        int ix = Math.min((int)px, tileSamples - 2);
+        int iz = Math.min((int)pz, tileSamples - 2);
+        float fx = px - ix, fz = pz - iz;
+        int i = iz * tileSamples + ix;
+        float h0 = heights[i] + fx * (heights[i + 1] - heights[i]);
+        float h1 = heights[i + tileSamples] + fx * (heights[i + tileSamples + 1] - heights[i + tileSamples]);
+        return h0 + fz * (h1 - h0);
+    }
+
+    /**
+     * Get the eroded heights of a tile from the thread's recent tiles or the cache, a tile that was dropped from the
+     * cache may still be used by a thread but it's the same as a new erosion of the tile
+     */
+    private float[] getTile(RecentTiles recent, int tileX, int tileZ) {
+        for (int i = 0; i < RecentTiles.SIZE; i++) {
+            if (recent.heights[i] != null && recent.tileX[i] == tileX && recent.tileZ[i] == tileZ)
+                return recent.heights[i];
+        }
+        try {
+            float[] heights = requestTile(tileX, tileZ, true).get();
+            int i = recent.next;
+            recent.next = (i + 1) % RecentTiles.SIZE;
+            recent.tileX[i] = tileX;
+            recent.tileZ[i] = tileZ;
+            recent.heights[i] = heights;
+            return heights;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GdxRuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new GdxRuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Get the cached or running erosion of a tile or start it
+     * @param runHere true to erode a new tile on the calling thread, false to erode it on a worker thread
+     */
+    private Future<float[]> requestTile(int tileX, int tileZ, boolean runHere) {
+        long key = ((long)tileX << 32) | (tileZ & 0xffffffffL);
+        Future<float[]> tile = tiles.get(key);
+        if (tile != null)
+            return tile;
+        FutureTask<float[]> task = new FutureTask<>(() -> erodeTile(tileX, tileZ));
+        tile = tiles.putIfAbsent(key, task);
+        if (tile != null)
+            return tile;
+        tileOrder.add(key);
+        while (tiles.size() > maxTiles) {
+            Long oldest = tileOrder.poll();
+            if (oldest == null)
+                break;
+            tiles.remove(oldest);
+        }
+        if (runHere)
+            task.run();
+        else Async.submit(task);
+        return task;
+    }
+
+    private float[] erodeTile(int tileX, int tileZ) {
+        float[] heights = new float[tileSamples * tileSamples];
+        heightSampler.sampleGrid((tileX * tileSize - margin) * sampleSpacing, (tileZ * tileSize - margin) * sampleSpacing,
+                sampleSpacing, sampleSpacing, tileSamples, tileSamples, heights);
+        // the erosion expects heights from 0 up, all tiles use the same scale so the slopes are eroded alike
+        float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+        for (float h : heights) {
+            min = Math.min(min, h);
+            max = Math.max(max, h);
+        }
+        float range = heightSampler.getMaxHeight() - heightSampler.getMinHeight();
+        if (range <= 0) {
+            // the sampler doesn't know its range, the tile's own has to do
+            range = max > min ? max - min : 1;
+        }
+        for (int i = 0; i < heights.length; i++)
+            heights[i] = (heights[i] - min) / range;
+        Erosion tileErosion = new Erosion().set(erosion);
+        tileErosion.seed = erosion.seed * 31 + tileX * 0x9E3779B1 + tileZ * 0x85EBCA77;
+        tileErosion.Erode(heights, tileSamples, (int)(dropletsPerCell * tileSamples * tileSamples), true);
+        for (int i = 0; i < heights.length; i++)
+            heights[i] = heights[i] * range + min;
+        return heights;
+    }
+
+    @Override
+    public float getMinHeight() {
+        return heightSampler.getMinHeight();
+    }
+
+    @Override
+    public float getMaxHeight() {
+        return heightSampler.getMaxHeight();
+    }
+}
@@ -0,0 +1,91 @@
+package net.nothingtv.gdx.terrain;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ErodedHeightSamplerTest {
+
+    private static final int TILE = 32;
+    private static final int MARGIN = 8;
+
+    /**
+     * Counts the grids sampled, every eroded tile samples one
+     */
+    private static class CountingSampler extends TestHeightSampler {
+        final AtomicInteger grids = new AtomicInteger();
+
+        CountingSampler() {
+            super(30, 0.05f, 9);
+        }
+
+        @Override
+        public void sampleGrid(float x0, float z0, float stepX, float stepZ, int nx, int nz, float[] out) {
+            grids.incrementAndGet();
+            super.sampleGrid(x0, z0, stepX, stepZ, nx, nz, out);
+        }
+    }
+
+    private static ErodedHeightSampler createSampler(HeightSampler source, int maxTiles) {
+        Erosion erosion = new Erosion();
+        erosion.seed = 5;
+        return new ErodedHeightSampler(source, erosion, 1, TILE, MARGIN, maxTiles);
+    }
+
+    @Test
+    void continuousAcrossTileBorders() {
+        ErodedHeightSampler sampler = createSampler(new TestHeightSampler(30, 0.05f, 9), 64);
+        float epsilon = 1e-3f;
+        float maxStep = 0;
+        for (int tile = -1; tile <= 2; tile++) {
+            float border = tile * TILE;
+            // the tile border itself and both edges of the overlap
+            for (float edge : new float[] {border, border - MARGIN, border + MARGIN}) {
+                for (float v = -40.3f; v < 100; v += 3.7f) {
+                    maxStep = Math.max(maxStep, Math.abs(sampler.getHeight(edge - epsilon, v) - sampler.getHeight(edge + epsilon, v)));
+                    maxStep = Math.max(maxStep, Math.abs(sampler.getHeight(v, edge - epsilon) - sampler.getHeight(v, edge + epsilon)));
+                }
+            }
+        }
+        // the slopes are a few units per cell at most, a seam between differently eroded tiles is much larger
+        assertTrue(maxStep < 0.05f, "step " + maxStep);
+    }
+
+    @Test
+    void evictedTileIsErodedAgain() {
+        CountingSampler source = new CountingSampler();
+        ErodedHeightSampler sampler = createSampler(source, 4);
+        float[] first = new float[TILE * TILE];
+        // the inner part of tile 0/0 doesn't need the neighbours
+        sampler.sampleGrid(MARGIN, MARGIN, 0.5f, 0.5f, TILE, TILE, first);
+        assertEquals(1, source.grids.get());
+
+        for (int tile = 1; tile <= 8; tile++)
+            sampler.getHeight(tile * TILE + TILE / 2f, 0.5f * TILE);
+        int eroded = source.grids.get();
+
+        float[] again = new float[TILE * TILE];
+        sampler.sampleGrid(MARGIN, MARGIN, 0.5f, 0.5f, TILE, TILE, again);
+        assertEquals(eroded + 1, source.grids.get(), "the tile wasn't dropped");
+        for (int i = 0; i < first.length; i++)
+            assertEquals(Float.floatToIntBits(first[i]), Float.floatToIntBits(again[i]), "height " + i);
+    }
+
+    @Test
+    void gridMatchesPoints() {
+        ErodedHeightSampler sampler = createSampler(new TestHeightSampler(30, 0.05f, 9), 64);
+        int nx = 45, nz = 38;
+        float x0 = -20.25f, z0 = 13.5f, stepX = 1.75f, stepZ = 2.5f;
+        float[] grid = new float[nx * nz];
+        sampler.sampleGrid(x0, z0, stepX, stepZ, nx, nz, grid);
+        for (int z = 0; z < nz; z++) {
+            for (int x = 0; x < nx; x++) {
+                float h = sampler.getHeight(x0 + x * stepX, z0 + z * stepZ);
+                assertEquals(Float.floatToIntBits(h), Float.floatToIntBits(grid[z * nx + x]), x + "/" + z);
+            }
+        }
+    }
+}
@@ -20,14 +20,34 @@ public class Erosion {
     public float initialWaterVolume = 1;
     public float initialSpeed = 1;
 
-    // Indices and weights of erosion brush precomputed for every node
-    int[][] erosionBrushIndices;
-    float[][] erosionBrushWeights;
+    // The erosion brush is precomputed once and clipped for the nodes near the borders
+    ErosionBrush erosionBrush;
+    DropletScratch scratch;
 
     int currentSeed;
     int currentErosionRadius;
     int currentMapSize;
 
+    /**
+     * Copy the parameters of another erosion, the state of a running erosion is not copied
+     * @return this for chaining
+     */
+    public Erosion set(Erosion other) {
+        seed = other.seed;
+        erosionRadius = other.erosionRadius;
+        inertia = other.inertia;
+        sedimentCapacityFactor = other.sedimentCapacityFactor;
+        minSedimentCapacity = other.minSedimentCapacity;
+        erodeSpeed = other.erodeSpeed;
+        depositSpeed = other.depositSpeed;
+        evaporateSpeed = other.evaporateSpeed;
+        gravity = other.gravity;
+        maxDropletLifetime = other.maxDropletLifetime;
+        initialWaterVolume = other.initialWaterVolume;
+        initialSpeed = other.initialSpeed;
+        return this;
+    }
+
     // Initialization creates a System.Random object and precomputes indices and weights of erosion brush
     void Initialize (int mapSize, boolean resetSeed) {
         if (resetSeed || prng == null || currentSeed != seed) {
@@ -35,7 +55,7 @@ public class Erosion {
             currentSeed = seed;
         }
 
-        if (erosionBrushIndices == null || currentErosionRadius != erosionRadius || currentMapSize != mapSize) {
+        if (erosionBrush == null || currentErosionRadius != erosionRadius || currentMapSize != mapSize) {
             InitializeBrushIndices (mapSize, erosionRadius);
             currentErosionRadius = erosionRadius;
             currentMapSize = mapSize;
@@ -67,86 +87,105 @@ public class Erosion {
             // Create water droplet at random point on map
             float posX = prng.nextFloat (0, mapSize - 1);
             float posY = prng.nextFloat (0, mapSize - 1);
-            float dirX = 0;
-            float dirY = 0;
-            float speed = initialSpeed;
-            float water = initialWaterVolume;
-            float sediment = 0;
-
-            for (int lifetime = 0; lifetime < maxDropletLifetime; lifetime++) {
-                int nodeX = (int) posX;
-                int nodeY = (int) posY;
-                int dropletIndex = nodeY * mapSize + nodeX;
-                // Calculate droplet's offset inside the cell (0,0) = at NW node, (1,1) = at SE node
-                float cellOffsetX = posX - nodeX;
-                float cellOffsetY = posY - nodeY;
-
-                // Calculate droplet's height and direction of flow with bilinear interpolation of surrounding heights
-                HeightAndGradient heightAndGradient = CalculateHeightAndGradient (map, mapSize, posX, posY);
-
-                // Update the droplet's direction and position (move position 1 unit regardless of speed)
-                dirX = (dirX * inertia - heightAndGradient.gradientX * (1 - inertia));
-                dirY = (dirY * inertia - heightAndGradient.gradientY * (1 - inertia));
-                // Normalize direction
-                float len = (float)Math.sqrt (dirX * dirX + dirY * dirY);
-                if (len != 0) {
-                    dirX /= len;
-                    dirY /= len;
-                }
-                posX += dirX;
-                posY += dirY;
+            SimulateDroplet (map, mapSize, posX, posY, scratch);
+        }
+    }
 
-                // Stop simulating droplet if it's not moving or has flowed over edge of map
-                if ((dirX == 0 && dirY == 0) || posX < 0 || posX >= mapSize - 1 || posY < 0 || posY >= mapSize - 1) {
-                    break;
-                }
+    /**
+     * Simulate one droplet from its start position until it stops or leaves the map, nothing is allocated.
+     * The nodes it touches are at most {@link #dropletReach()} away from the start position.
+     */
+    void SimulateDroplet (float[] map, int mapSize, float posX, float posY, DropletScratch scratch) {
+        float dirX = 0;
+        float dirY = 0;
+        float speed = initialSpeed;
+        float water = initialWaterVolume;
+        float sediment = 0;
+
+        for (int lifetime = 0; lifetime < maxDropletLifetime; lifetime++) {
+            int nodeX = (int) posX;
+            int nodeY = (int) posY;
+            int dropletIndex = nodeY * mapSize + nodeX;
+            // Calculate droplet's offset inside the cell (0,0) = at NW node, (1,1) = at SE node
+            float cellOffsetX = posX - nodeX;
+            float cellOffsetY = posY - nodeY;
+
+            // Calculate droplet's height and direction of flow with bilinear interpolation of surrounding heights
+            CalculateHeightAndGradient (map, mapSize, posX, posY, scratch);
+            float height = scratch.height;
+
+            // Update the droplet's direction and position (move position 1 unit regardless of speed)
+            dirX = (dirX * inertia - scratch.gradientX * (1 - inertia));
+            dirY = (dirY * inertia - scratch.gradientY * (1 - inertia));
+            // Normalize direction
+            float len = (float)Math.sqrt (dirX * dirX + dirY * dirY);
+            if (len != 0) {
+                dirX /= len;
+                dirY /= len;
+            }
+            posX += dirX;
+            posY += dirY;
 
-                // Find the droplet's new height and calculate the deltaHeight
-                float newHeight = CalculateHeightAndGradient (map, mapSize, posX, posY).height;
-                float deltaHeight = newHeight - heightAndGradient.height;
-
-                // Calculate the droplet's sediment capacity (higher when moving fast down a slope and contains lots of water)
-                float sedimentCapacity = Math.max (-deltaHeight * speed * water * sedimentCapacityFactor, minSedimentCapacity);
-
-                // If carrying more sediment than capacity, or if flowing uphill:
-                if (sediment > sedimentCapacity || deltaHeight > 0) {
-                    // If moving uphill (deltaHeight > 0) try fill up to the current height, otherwise deposit a fraction of the excess sediment
-                    float amountToDeposit = (deltaHeight > 0) ? Math.min (deltaHeight, sediment) : (sediment - sedimentCapacity) * depositSpeed;
-                    sediment -= amountToDeposit;
-
-                    // Add the sediment to the four nodes of the current cell using bilinear interpolation
-                    // Deposition is not distributed over a radius (like erosion) so that it can fill small pits
-                    map[dropletIndex] += amountToDeposit * (1 - cellOffsetX) * (1 - cellOffsetY);
-                    map[dropletIndex + 1] += amountToDeposit * cellOffsetX * (1 - cellOffsetY);
-                    map[dropletIndex + mapSize] += amountToDeposit * (1 - cellOffsetX) * cellOffsetY;
-                    map[dropletIndex + mapSize + 1] += amountToDeposit * cellOffsetX * cellOffsetY;
-
-                    //checkMapValidity(map, "b1 iteration " + iteration + ", lifetime " + lifetime);
-                } else {
-                    // Erode a fraction of the droplet's current carry capacity.
-                    // Clamp the erosion to the change in height so that it doesn't dig a hole in the terrain behind the droplet
-                    float amountToErode = Math.min ((sedimentCapacity - sediment) * erodeSpeed, -deltaHeight);
-
-                    // Use erosion brush to erode from all nodes inside the droplet's erosion radius
-                    for (int brushPointIndex = 0; brushPointIndex < erosionBrushIndices[dropletIndex].length; brushPointIndex++) {
-                        int nodeIndex = erosionBrushIndices[dropletIndex][brushPointIndex];
-                        float weighedErodeAmount = amountToErode * erosionBrushWeights[dropletIndex][brushPointIndex];
-                        float deltaSediment = (map[nodeIndex] < weighedErodeAmount) ? map[nodeIndex] : weighedErodeAmount;
-                        map[nodeIndex] -= deltaSediment;
-                        sediment += deltaSediment;
+            // Stop simulating droplet if it's not moving or has flowed over edge of map
+            if ((dirX == 0 && dirY == 0) || posX < 0 || posX >= mapSize - 1 || posY < 0 || posY >= mapSize - 1) {
+                break;
+            }
+
+            // Find the droplet's new height and calculate the deltaHeight
+            CalculateHeightAndGradient (map, mapSize, posX, posY, scratch);
+            float deltaHeight = scratch.height - height;
+
+            // Calculate the droplet's sediment capacity (higher when moving fast down a slope and contains lots of water)
+            float sedimentCapacity = Math.max (-deltaHeight * speed * water * sedimentCapacityFactor, minSedimentCapacity);
+
+            // If carrying more sediment than capacity, or if flowing uphill:
+            if (sediment > sedimentCapacity || deltaHeight > 0) {
+                // If moving uphill (deltaHeight > 0) try fill up to the current height, otherwise deposit a fraction of the excess sediment
+                float amountToDeposit = (deltaHeight > 0) ? Math.min (deltaHeight, sediment) : (sediment - sedimentCapacity) * depositSpeed;
+                sediment -= amountToDeposit;
+
+                // Add the sediment to the four nodes of the current cell using bilinear interpolation
+                // Deposition is not distributed over a radius (like erosion) so that it can fill small pits
+                map[dropletIndex] += amountToDeposit * (1 - cellOffsetX) * (1 - cellOffsetY);
+                map[dropletIndex + 1] += amountToDeposit * cellOffsetX * (1 - cellOffsetY);
+                map[dropletIndex + mapSize] += amountToDeposit * (1 - cellOffsetX) * cellOffsetY;
+                map[dropletIndex + mapSize + 1] += amountToDeposit * cellOffsetX * cellOffsetY;
+
+                //checkMapValidity(map, "b1 iteration " + iteration + ", lifetime " + lifetime);
+            } else {
+                // Erode a fraction of the droplet's current carry capacity.
+                // Clamp the erosion to the change in height so that it doesn't dig a hole in the terrain behind the droplet
+                float amountToErode = Math.min ((sedimentCapacity - sediment) * erodeSpeed, -deltaHeight);
+
+                // Use erosion brush to erode from all nodes inside the droplet's erosion radius
+                int[] brushIndexOffsets = erosionBrush.indexOffsets;
+                float[] brushWeights = erosionBrush.weights;
+                int brushSize = brushWeights.length;
+                int brushCentre = dropletIndex;
+                if (!erosionBrush.isInside(nodeX, nodeY)) {
+                    brushSize = erosionBrush.brushAt(nodeX, nodeY, scratch.brushIndices, scratch.brushWeights);
+                    brushIndexOffsets = scratch.brushIndices;
+                    brushWeights = scratch.brushWeights;
+                    brushCentre = 0;
+                }
+                for (int brushPointIndex = 0; brushPointIndex < brushSize; brushPointIndex++) {
+                    int nodeIndex = brushCentre + brushIndexOffsets[brushPointIndex];
+                    float weighedErodeAmount = amountToErode * brushWeights[brushPointIndex];
+                    float deltaSediment = (map[nodeIndex] < weighedErodeAmount) ? map[nodeIndex] : weighedErodeAmount;
+                    map[nodeIndex] -= deltaSediment;
+                    sediment += deltaSediment;
 //                        if (!checkMapValidity(map, "b2 iteration " + iteration + ", lifetime " + lifetime))
 //                            System.out.println("First occurrence of an invalid point");
-                    }
                 }
-
-                // Update droplet's speed and water content
-                speed = (float)Math.sqrt (speed * speed + Math.max(0, deltaHeight) * gravity);
-                water *= (1 - evaporateSpeed);
             }
+
+            // Update droplet's speed and water content
+            speed = (float)Math.sqrt (speed * speed + Math.max(0, deltaHeight) * gravity);
+            water *= (1 - evaporateSpeed);
         }
     }
 
-    HeightAndGradient CalculateHeightAndGradient (float[] nodes, int mapSize, float posX, float posY) {
+    void CalculateHeightAndGradient (float[] nodes, int mapSize, float posX, float posY, DropletScratch result) {
         int coordX = (int) posX;
         int coordY = (int) posY;
 
@@ -168,69 +207,37 @@ public class Erosion {
         // Calculate height with bilinear interpolation of the heights of the nodes of the cell
         float height = heightNW * (1 - x) * (1 - y) + heightNE * x * (1 - y) + heightSW * (1 - x) * y + heightSE * x * y;
 
-        return new HeightAndGradient (height, gradientX, gradientY);
+        result.height = height;
+        result.gradientX = gradientX;
+        result.gradientY = gradientY;
     }
 
     void InitializeBrushIndices (int mapSize, int radius) {
-        erosionBrushIndices = new int[mapSize * mapSize][];
-        erosionBrushWeights = new float[mapSize * mapSize][];
-
-        int[] xOffsets = new int[radius * radius * 4];
-        int[] yOffsets = new int[radius * radius * 4];
-        float[] weights = new float[radius * radius * 4];
-        float weightSum = 0;
-        int addIndex = 0;
-
-        for (int i = 0; i < erosionBrushIndices.length; i++) {
-            int centreX = i % mapSize;
-            int centreY = i / mapSize;
-
-            if (centreY <= radius || centreY >= mapSize - radius || centreX <= radius + 1 || centreX >= mapSize - radius) {
-                weightSum = 0;
-                addIndex = 0;
-                for (int y = -radius; y <= radius; y++) {
-                    for (int x = -radius; x <= radius; x++) {
-                        float sqrDst = x * x + y * y;
-                        if (sqrDst < radius * radius) {
-                            int coordX = centreX + x;
-                            int coordY = centreY + y;
-
-                            if (coordX >= 0 && coordX < mapSize && coordY >= 0 && coordY < mapSize) {
-                                float weight = 1 - (float)Math.sqrt (sqrDst) / radius;
-                                weightSum += weight;
-                                weights[addIndex] = weight;
-                                xOffsets[addIndex] = x;
-                                yOffsets[addIndex] = y;
-                                addIndex++;
-                            }
-                        }
-                    }
-                }
-            }
-
-            int numEntries = addIndex;
-            erosionBrushIndices[i] = new int[numEntries];
-            erosionBrushWeights[i] = new float[numEntries];
-
-            for (int j = 0; j < numEntries; j++) {
-                erosionBrushIndices[i][j] = (yOffsets[j] + centreY) * mapSize + xOffsets[j] + centreX;
-                if (weightSum > 0)
-                    erosionBrushWeights[i][j] = weights[j] / weightSum;
-                else
-                    erosionBrushWeights[i][j] = 0;
-            }
-        }
+        erosionBrush = new ErosionBrush(mapSize, radius);
+        scratch = new DropletScratch(erosionBrush);
     }
 
-    static class HeightAndGradient {
-        public float height;
-        public float gradientX;
-        public float gradientY;
+    /**
+     * @return the largest distance in nodes from a droplet's start position to a node it reads or changes
+     */
+    int dropletReach() {
+        // a droplet moves up to one unit per step, the brush and the bilinear interpolation reach further
+        return maxDropletLifetime + Math.max(erosionBrush.extent, 1) + 2;
+    }
 
-        public HeightAndGradient(float height, float gradientX, float gradientY) {
-            this.height = height;
-            this.gradientX = gradientX;
-            this.gradientY = gradientY;
+    /**
+     * The state a droplet needs besides the map, one per thread
+     */
+    static class DropletScratch {
+        final int[] brushIndices;
+        final float[] brushWeights;
+        float height;
+        float gradientX;
+        float gradientY;
+
+        DropletScratch(ErosionBrush brush) {
+            brushIndices = new int[brush.size()];
+            brushWeights = new float[brush.size()];
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,99 @@
+package net.nothingtv.gdx.terrain;
+
+/**
+ * The radial erosion brush of {@link Erosion}, stored once instead of per map node.
+ * <p>
+ * The kernel holds the offsets and normalized weights of all nodes inside the radius. A droplet whose brush lies
+ * completely inside the map uses it as it is, one near the borders gets a copy clipped to the map with the weights
+ * normalized over the remaining nodes.
+ */
+class ErosionBrush {
+
+    final int radius;
+    final int mapSize;
+    // the largest offset of a node in the kernel
+    final int extent;
+    final int[] offsetX, offsetY;
+    // the offsets as index into the map
+    final int[] indexOffsets;
+    // the raw weights and the ones normalized over the whole kernel
+    final float[] rawWeights, weights;
+
+    ErosionBrush(int mapSize, int radius) {
+        this.mapSize = mapSize;
+        this.radius = radius;
+        int count = 0;
+        for (int y = -radius; y <= radius; y++)
+            for (int x = -radius; x <= radius; x++)
+                if (x * x + y * y < radius * radius)
+                    count++;
+        offsetX = new int[count];
+        offsetY = new int[count];
+        indexOffsets = new int[count];
+        rawWeights = new float[count];
+        weights = new float[count];
+        float weightSum = 0;
+        int maxOffset = 0;
+        int i = 0;
+        for (int y = -radius; y <= radius; y++) {
+            for (int x = -radius; x <= radius; x++) {
+                float sqrDst = x * x + y * y;
+                if (sqrDst < radius * radius) {
+                    float weight = 1 - (float)Math.sqrt(sqrDst) / radius;
+                    weightSum += weight;
+                    rawWeights[i] = weight;
+                    offsetX[i] = x;
+                    offsetY[i] = y;
+                    indexOffsets[i] = y * mapSize + x;
+                    maxOffset = Math.max(maxOffset, Math.max(Math.abs(x), Math.abs(y)));
+                    i++;
+                }
+            }
+        }
+        extent = maxOffset;
+        for (i = 0; i < count; i++)
+            weights[i] = rawWeights[i] / weightSum;
+    }
+
+    int size() {
+        return weights.length;
+    }
+
+    /**
+     * @return true if the kernel around the node doesn't need to be clipped
+     */
+    boolean isInside(int centreX, int centreY) {
+        return centreX >= extent && centreX < mapSize - extent && centreY >= extent && centreY < mapSize - extent;
+    }
+
+    /**
+     * Calculate the brush of a node, clipped to the map if necessary.
+     * @param indices receives the map indices of the brush nodes, needs at least {@link #size()} elements
+     * @param brushWeights receives the weights of the brush nodes, needs at least {@link #size()} elements
+     * @return the number of brush nodes
+     */
+    int brushAt(int centreX, int centreY, int[] indices, float[] brushWeights) {
+        int centre = centreY * mapSize + centreX;
+        if (isInside(centreX, centreY)) {
+            for (int i = 0; i < weights.length; i++)
+                indices[i] = centre + indexOffsets[i];
+            System.arraycopy(weights, 0, brushWeights, 0, weights.length);
+            return weights.length;
+        }
+        float weightSum = 0;
+        int count = 0;
+        for (int i = 0; i < weights.length; i++) {
+            int x = centreX + offsetX[i];
+            int y = centreY + offsetY[i];
+            if (x >= 0 && x < mapSize && y >= 0 && y < mapSize) {
+                weightSum += rawWeights[i];
+                indices[count] = centre + indexOffsets[i];
+                brushWeights[count] = rawWeights[i];
+                count++;
+            }
+        }
+        for (int i = 0; i < count; i++)
+            brushWeights[i] = weightSum > 0 ? brushWeights[i] / weightSum : 0;
+        return count;
+    }
+}
@@ -0,0 +1,84 @@
+package net.nothingtv.gdx.terrain;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ErosionBrushTest {
+
+    @Test
+    void brushMatchesPerNodeBrush() {
+        for (int radius : new int[] {1, 3, 5}) {
+            int mapSize = 24;
+            ErosionBrush brush = new ErosionBrush(mapSize, radius);
+            int[][] expectedIndices = new int[mapSize * mapSize][];
+            float[][] expectedWeights = new float[mapSize * mapSize][];
+            perNodeBrush(mapSize, radius, expectedIndices, expectedWeights);
+            int[] indices = new int[brush.size()];
+            float[] weights = new float[brush.size()];
+            for (int i = 0; i < mapSize * mapSize; i++) {
+                int count = brush.brushAt(i % mapSize, i / mapSize, indices, weights);
+                assertEquals(expectedIndices[i].length, count);
+                for (int j = 0; j < count; j++) {
+                    assertEquals(expectedIndices[i][j], indices[j]);
+                    // the weights have to be bitwise equal to reproduce the erosion of the per node brushes
+                    assertEquals(Float.floatToIntBits(expectedWeights[i][j]), Float.floatToIntBits(weights[j]));
+                }
+                if (brush.isInside(i % mapSize, i / mapSize)) {
+                    for (int j = 0; j < count; j++)
+                        assertEquals(expectedIndices[i][j], i + brush.indexOffsets[j]);
+                    assertArrayEquals(expectedWeights[i], brush.weights);
+                }
+            }
+        }
+    }
+
+    /**
+     * The brush precomputation Erosion used before, one brush for every node of the map
+     */
+    static void perNodeBrush(int mapSize, int radius, int[][] erosionBrushIndices, float[][] erosionBrushWeights) {
+        int[] xOffsets = new int[radius * radius * 4];
+        int[] yOffsets = new int[radius * radius * 4];
+        float[] weights = new float[radius * radius * 4];
+        float weightSum = 0;
+        int addIndex = 0;
+
+        for (int i = 0; i < erosionBrushIndices.length; i++) {
+            int centreX = i % mapSize;
+            int centreY = i / mapSize;
+
+            if (centreY <= radius || centreY >= mapSize - radius || centreX <= radius + 1 || centreX >= mapSize - radius) {
+                weightSum = 0;
+                addIndex = 0;
+                for (int y = -radius; y <= radius; y++) {
+                    for (int x = -radius; x <= radius; x++) {
+                        float sqrDst = x * x + y * y;
+                        if (sqrDst < radius * radius) {
+                            int coordX = centreX + x;
+                            int coordY = centreY + y;
+
+                            if (coordX >= 0 && coordX < mapSize && coordY >= 0 && coordY < mapSize) {
+                                float weight = 1 - (float) Math.sqrt(sqrDst) / radius;
+                                weightSum += weight;
+                                weights[addIndex] = weight;
+                                xOffsets[addIndex] = x;
+                                yOffsets[addIndex] = y;
+                                addIndex++;
+                            }
+                        }
+                    }
+                }
+            }
+
+            int numEntries = addIndex;
+            erosionBrushIndices[i] = new int[numEntries];
+            erosionBrushWeights[i] = new float[numEntries];
+
+            for (int j = 0; j < numEntries; j++) {
+                erosionBrushIndices[i][j] = (yOffsets[j] + centreY) * mapSize + xOffsets[j] + centreX;
+                erosionBrushWeights[i][j] = weightSum > 0 ? weights[j] / weightSum : 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package net.nothingtv.gdx.terrain;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ErosionTest {
+
+    private static final int MAP_SIZE = 128;
+    private static final int DROPLETS = 20000;
+
+    private static float[] createMap() {
+        TestHeightSampler sampler = new TestHeightSampler(30, 0.01f, 1);
+        float[] map = new float[MAP_SIZE * MAP_SIZE];
+        for (int i = 0; i < map.length; i++)
+            map[i] = sampler.getHeight(i % MAP_SIZE, i / MAP_SIZE) / 60f + 0.5f;
+        return map;
+    }
+
+    /**
+     * Runs the tiles of every phase one after the other in reverse order, concurrent tiles that touched the same nodes
+     * would give a different map
+     */
+    private static class SequentialSchedule extends ParallelErosion {
+        @Override
+        void erodePhase(float[] map, int mapSize, int[] tiles, int[] tileDroplets, int first) {
+            DropletScratch dropletScratch = new DropletScratch(erosionBrush);
+            for (int i = tiles.length - 1; i >= 0; i--)
+                erodeTile(map, mapSize, tiles[i], Math.min(dropletsPerBatch, tileDroplets[tiles[i]] - first), dropletScratch);
+        }
+    }
+
+    private static float[] erodeParallel(ParallelErosion erosion) {
+        float[] map = createMap();
+        erosion.seed = 7;
+        // short droplets give small tiles, every phase runs many tiles at once
+        erosion.maxDropletLifetime = 6;
+        erosion.Erode(map, MAP_SIZE, DROPLETS, true);
+        return map;
+    }
+
+    @Test
+    void parallelErosionIsDeterministic() {
+        ParallelErosion erosion = new ParallelErosion();
+        float[] first = erodeParallel(erosion);
+        int tilesPerRow = MAP_SIZE / (2 * erosion.dropletReach());
+        assertTrue(tilesPerRow >= 4, "tiles per row " + tilesPerRow);
+
+        assertBitwiseEqual(first, erodeParallel(new ParallelErosion()));
+        // the same instance reproduces the map once the seed is reset
+        assertBitwiseEqual(first, erodeParallel(erosion));
+        // the result doesn't depend on the threads or the order of the tiles within a phase
+        assertBitwiseEqual(first, erodeParallel(new SequentialSchedule()));
+
+        float[] original = createMap();
+        boolean changed = false;
+        for (int i = 0; i < original.length && !changed; i++)
+            changed = original[i] != first[i];
+        assertTrue(changed, "the erosion didn't change the map");
+    }
+
+    @Test
+    void sequentialErosionMatchesReference() {
+        for (int radius : new int[] {2, 3}) {
+            float[] map = createMap();
+            Erosion erosion = new Erosion();
+            erosion.seed = 11;
+            erosion.erosionRadius = radius;
+            erosion.Erode(map, MAP_SIZE, DROPLETS / 2, true);
+            // a second call continues the random sequence
+            erosion.Erode(map, MAP_SIZE, DROPLETS / 2, false);
+
+            float[] expected = createMap();
+            Random random = new Random(11);
+            referenceErosion(expected, MAP_SIZE, DROPLETS / 2, random, erosion);
+            referenceErosion(expected, MAP_SIZE, DROPLETS / 2, random, erosion);
+            assertBitwiseEqual(expected, map);
+        }
+    }
+
+    private static void assertBitwiseEqual(float[] expected, float[] actual) {
+        for (int i = 0; i < expected.length; i++)
+            assertEquals(Float.floatToIntBits(expected[i]), Float.floatToIntBits(actual[i]), "height " + i);
+    }
+
+    /**
+     * The droplet simulation Erosion used before the shared brush, with the brushes precomputed for every node
+     */
+    private static void referenceErosion(float[] map, int mapSize, int numIterations, Random prng, Erosion p) {
+        int[][] brushIndices = new int[mapSize * mapSize][];
+        float[][] brushWeights = new float[mapSize * mapSize][];
+        ErosionBrushTest.perNodeBrush(mapSize, p.erosionRadius, brushIndices, brushWeights);
+        float[] hg = new float[3];
+        for (int iteration = 0; iteration < numIterations; iteration++) {
+            float posX = prng.nextFloat(0, mapSize - 1);
+            float posY = prng.nextFloat(0, mapSize - 1);
+            float dirX = 0;
+            float dirY = 0;
+            float speed = p.initialSpeed;
+            float water = p.initialWaterVolume;
+            float sediment = 0;
+
+            for (int lifetime = 0; lifetime < p.maxDropletLifetime; lifetime++) {
+                int nodeX = (int) posX;
+                int nodeY = (int) posY;
+                int dropletIndex = nodeY * mapSize + nodeX;
+                float cellOffsetX = posX - nodeX;
+                float cellOffsetY = posY - nodeY;
+
+                heightAndGradient(map, mapSize, posX, posY, hg);
+                float height = hg[0];
+                dirX = (dirX * p.inertia - hg[1] * (1 - p.inertia));
+                dirY = (dirY * p.inertia - hg[2] * (1 - p.inertia));
+                float len = (float) Math.sqrt(dirX * dirX + dirY * dirY);
+                if (len != 0) {
+                    dirX /= len;
+                    dirY /= len;
+                }
+                posX += dirX;
+                posY += dirY;
+                if ((dirX == 0 && dirY == 0) || posX < 0 || posX >= mapSize - 1 || posY < 0 || posY >= mapSize - 1)
+                    break;
+
+                heightAndGradient(map, mapSize, posX, posY, hg);
+                float deltaHeight = hg[0] - height;
+                float sedimentCapacity = Math.max(-deltaHeight * speed * water * p.sedimentCapacityFactor, p.minSedimentCapacity);
+                if (sediment > sedimentCapacity || deltaHeight > 0) {
+                    float amountToDeposit = (deltaHeight > 0) ? Math.min(deltaHeight, sediment) : (sediment - sedimentCapacity) * p.depositSpeed;
+                    sediment -= amountToDeposit;
+                    map[dropletIndex] += amountToDeposit * (1 - cellOffsetX) * (1 - cellOffsetY);
+                    map[dropletIndex + 1] += amountToDeposit * cellOffsetX * (1 - cellOffsetY);
+                    map[dropletIndex + mapSize] += amountToDeposit * (1 - cellOffsetX) * cellOffsetY;
+                    map[dropletIndex + mapSize + 1] += amountToDeposit * cellOffsetX * cellOffsetY;
+                } else {
+                    float amountToErode = Math.min((sedimentCapacity - sediment) * p.erodeSpeed, -deltaHeight);
+                    for (int b = 0; b < brushIndices[dropletIndex].length; b++) {
+                        int nodeIndex = brushIndices[dropletIndex][b];
+                        float weighedErodeAmount = amountToErode * brushWeights[dropletIndex][b];
+                        float deltaSediment = (map[nodeIndex] < weighedErodeAmount) ? map[nodeIndex] : weighedErodeAmount;
+                        map[nodeIndex] -= deltaSediment;
+                        sediment += deltaSediment;
+                    }
+                }
+                speed = (float) Math.sqrt(speed * speed + Math.max(0, deltaHeight) * p.gravity);
+                water *= (1 - p.evaporateSpeed);
+            }
+        }
+    }
+
+    private static void heightAndGradient(float[] nodes, int mapSize, float posX, float posY, float[] out) {
+        int coordX = (int) posX;
+        int coordY = (int) posY;
+        float x = posX - coordX;
+        float y = posY - coordY;
+        int nodeIndexNW = coordY * mapSize + coordX;
+        float heightNW = nodes[nodeIndexNW];
+        float heightNE = nodes[nodeIndexNW + 1];
+        float heightSW = nodes[nodeIndexNW + mapSize];
+        float heightSE = nodes[nodeIndexNW + mapSize + 1];
+        out[0] = heightNW * (1 - x) * (1 - y) + heightNE * x * (1 - y) + heightSW * (1 - x) * y + heightSE * x * y;
+        out[1] = (heightNE - heightNW) * (1 - y) + (heightSE - heightSW) * y;
+        out[2] = (heightSW - heightNW) * (1 - x) + (heightSE - heightNE) * x;
+    }
+}
@@ -145,17 +145,27 @@ public class Foliage implements RenderableProvider {
                     if (area.instanceData == null) {
                         area.instanceData = BufferUtils.newFloatBuffer(area.numberInstances * 16);
                         RandomXS128 prng = new RandomXS128(area.seed);
+                        boolean randomRotation = (area.flags & RandomizeYRotation) != 0;
+                        float[] xs = new float[area.numberInstances];
+                        float[] zs = new float[area.numberInstances];
+                        float[] ys = new float[area.numberInstances];
+                        float[] rotations = new float[area.numberInstances];
+                        // keep the order of the random numbers, the heights are fetched in one go afterwards
                         for (int i = 0; i < area.numberInstances; i++) {
                             float t = 2 * MathUtils.PI * prng.nextFloat();
                             float u = prng.nextFloat() + prng.nextFloat();
                             float r = u > 1f ? 2f - u : u;
-                            float x = r * MathUtils.cos(t) * area.radius + area.center.x;
-                            float z = r * MathUtils.sin(t) * area.radius + area.center.z;
-                            float y = area.terrain.getHeightAt(x, z);
+                            xs[i] = r * MathUtils.cos(t) * area.radius + area.center.x;
+                            zs[i] = r * MathUtils.sin(t) * area.radius + area.center.z;
+                            if (randomRotation)
+                                rotations[i] = prng.nextFloat(360);
+                        }
+                        area.terrain.getHeightsAt(xs, zs, area.numberInstances, ys);
+                        for (int i = 0; i < area.numberInstances; i++) {
                             tmpMatrix.idt();
-                            if ((area.flags & RandomizeYRotation) != 0)
-                                tmpMatrix.rotate(0, 1, 0, prng.nextFloat(360));
-                            tmpMatrix.setTranslation(x, y, z);
+                            if (randomRotation)
+                                tmpMatrix.rotate(0, 1, 0, rotations[i]);
+                            tmpMatrix.setTranslation(xs[i], ys[i], zs[i]);
                             tmpMatrix.tra();
                             area.instanceData.put(tmpMatrix.getValues());
                         }
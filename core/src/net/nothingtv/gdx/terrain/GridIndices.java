@@ -0,0 +1,86 @@
+package net.nothingtv.gdx.terrain;
+
+import com.badlogic.gdx.physics.bullet.collision.PHY_ScalarType;
+import com.badlogic.gdx.physics.bullet.collision.btIndexedMesh;
+import com.badlogic.gdx.utils.BufferUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The triangle indices of a regular grid of vertices, row by row with x varying fastest.
+ * <p>
+ * The indices depend on the size of the grid only, so all physics chunks of the same resolution share one buffer
+ * which is never changed after it was created. Grids with more than 65536 vertices use 32 bit indices.
+ */
+final class GridIndices {
+
+    private static final Map<Long, GridIndices> grids = new ConcurrentHashMap<>();
+
+    final int vx, vy;
+    final int indexCount;
+    final boolean wide;
+    private final ByteBuffer data;
+
+    private GridIndices(int vx, int vy) {
+        this.vx = vx;
+        this.vy = vy;
+        indexCount = (vx - 1) * (vy - 1) * 6;
+        wide = vx * vy > 65536;
+        data = BufferUtils.newByteBuffer(indexCount * (wide ? 4 : 2));
+        if (wide) {
+            IntBuffer ib = data.asIntBuffer();
+            for (int z = 0; z < vy-1; z++) {
+                for (int x = 0; x < vx-1; x++) {
+                    ib.put(x + vx*z);
+                    ib.put(x + vx*(z+1));
+                    ib.put(x+1 + vx*z);
+                    ib.put(x+1 + vx*z);
+                    ib.put(x + vx*(z+1));
+                    ib.put(x+1 + vx*(z+1));
+                }
+            }
+        } else {
+            ShortBuffer ib = data.asShortBuffer();
+            for (int z = 0; z < vy-1; z++) {
+                for (int x = 0; x < vx-1; x++) {
+                    ib.put((short)(x + vx*z));
+                    ib.put((short)(x + vx*(z+1)));
+                    ib.put((short)(x+1 + vx*z));
+                    ib.put((short)(x+1 + vx*z));
+                    ib.put((short)(x + vx*(z+1)));
+                    ib.put((short)(x+1 + vx*(z+1)));
+                }
+            }
+        }
+    }
+
+    /**
+     * @param vx the number of vertices per row
+     * @param vy the number of rows
+     * @return the shared indices for grids of this size
+     */
+    static GridIndices get(int vx, int vy) {
+        return grids.computeIfAbsent((long) vx << 32 | vy, key -> new GridIndices(vx, vy));
+    }
+
+    /**
+     * @return the index type to pass to {@link com.badlogic.gdx.physics.bullet.collision.btTriangleIndexVertexArray#addIndexedMesh(btIndexedMesh, int)}
+     */
+    int indexType() {
+        return wide ? PHY_ScalarType.PHY_INTEGER : PHY_ScalarType.PHY_SHORT;
+    }
+
+    /**
+     * Let the mesh use these indices, the buffer's position isn't touched so this is safe from any thread
+     */
+    void apply(btIndexedMesh mesh) {
+        mesh.setTriangleIndexBase(data);
+        mesh.setTriangleIndexStride(3 * (wide ? 4 : 2));
+        mesh.setNumTriangles(indexCount / 3);
+        mesh.setIndexType(indexType());
+    }
+}
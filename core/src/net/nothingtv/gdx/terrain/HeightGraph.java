@@ -0,0 +1,748 @@
+package net.nothingtv.gdx.terrain;
+
+import net.nothingtv.gdx.tools.OpenSimplex2S;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Declarative description of a composed height function, e.g. noise octaves that are added, shaped by an exponent
+ * and blended with a height map.
+ * <p>
+ * A graph is built with the static factory methods and handed to a {@link HeightGraphSampler} which compiles it
+ * into a tree of batch kernels when the terrain initializes the sampler. Every kernel works on a whole batch of
+ * locations, so the virtual calls happen once per node and batch instead of once per node and sample.
+ * Constant inputs are folded while compiling.
+ * <p>
+ * Coordinates inside the graph are normalized to 0..1 over the terrain's width and height.
+ */
+public abstract class HeightGraph {
+
+    /**
+     * A batch of locations and the scratch buffers for the compiled kernels
+     */
+    static final class Batch {
+        final float[] x, z;
+        final float[] u, v;
+        final float[][] scratch;
+        final float[] result;
+        int count;
+
+        Batch(int capacity, int scratchBuffers) {
+            x = new float[capacity];
+            z = new float[capacity];
+            u = new float[capacity];
+            v = new float[capacity];
+            scratch = new float[scratchBuffers][capacity];
+            result = new float[capacity];
+        }
+    }
+
+    /**
+     * The compiled form of a node, evaluates the node for all locations of the batch
+     */
+    interface Kernel {
+        void eval(Batch batch, float[] out);
+    }
+
+    /**
+     * Hands out scratch buffers while compiling
+     */
+    static final class Compiler {
+        int scratchBuffers;
+
+        int allocate() {
+            return scratchBuffers++;
+        }
+    }
+
+    abstract Kernel compile(Compiler compiler);
+
+    /**
+     * @return a lower bound of the values this node produces
+     */
+    public abstract float getMin();
+
+    /**
+     * @return an upper bound of the values this node produces
+     */
+    public abstract float getMax();
+
+    /**
+     * @return an equivalent graph with constant parts folded
+     */
+    HeightGraph simplify() {
+        return this;
+    }
+
+    void init(Terrain terrain) {
+    }
+
+    boolean isConstant() {
+        return false;
+    }
+
+    /*
+     * Factories
+     */
+
+    public static HeightGraph constant(float value) {
+        return new Constant(value);
+    }
+
+    public static HeightGraph add(HeightGraph... inputs) {
+        return new Add(List.of(inputs));
+    }
+
+    public static HeightGraph multiply(HeightGraph a, HeightGraph b) {
+        return new Multiply(a, b);
+    }
+
+    public static HeightGraph scale(HeightGraph input, float factor) {
+        return new Scale(input, factor, 0);
+    }
+
+    /**
+     * @param input the input, it should not be negative if the exponent is not integral
+     * @param exponent the exponent applied to the input
+     */
+    public static HeightGraph exponent(HeightGraph input, float exponent) {
+        return new Exponent(input, exponent);
+    }
+
+    /**
+     * Map the input through a piecewise linear curve, inputs outside the control points are clamped
+     * @param input the input
+     * @param xs the x values of the control points in ascending order
+     * @param ys the y values of the control points
+     */
+    public static HeightGraph curve(HeightGraph input, float[] xs, float[] ys) {
+        if (xs.length != ys.length || xs.length == 0)
+            throw new IllegalArgumentException("curve needs the same number of x and y values");
+        return new Curve(input, xs.clone(), ys.clone());
+    }
+
+    public static HeightGraph clamp(HeightGraph input, float min, float max) {
+        return new Clamp(input, min, max);
+    }
+
+    /**
+     * One octave of OpenSimplex2S noise, centered at the terrain's center
+     * @param seed the seed of this octave
+     * @param frequency the number of noise features over the terrain's extent
+     * @param amplitude the factor for the noise value
+     */
+    public static HeightGraph noiseOctave(long seed, float frequency, float amplitude) {
+        return new NoiseOctave(seed, frequency, amplitude);
+    }
+
+    /**
+     * Fractal noise the way {@link NoiseHeightSampler} sums its octaves, the result is in the range of about 0..1.5
+     * @param seed the seed of the first octave, the following octaves use seed+1, seed+2, ...
+     * @param octaves the number of octaves
+     * @param frequency the frequency of the first octave, each following octave doubles it
+     */
+    public static HeightGraph fractalNoise(int seed, int octaves, float frequency) {
+        float gain = 0;
+        for (int i = 0; i < octaves; i++)
+            gain += 1f / (1 << i);
+        HeightGraph[] inputs = new HeightGraph[octaves + 1];
+        for (int i = 0; i < octaves; i++)
+            inputs[i] = noiseOctave(seed + i, frequency * (1 << i), 1f / (1 << i) / gain);
+        inputs[octaves] = constant(1);
+        return add(inputs);
+    }
+
+    /**
+     * Heights from an array that is stretched over the terrain and interpolated bilinearly
+     * @param data the height values, row by row
+     * @param width the number of values per row
+     * @param height the number of rows
+     */
+    public static HeightGraph heightMap(float[] data, int width, int height) {
+        if (data.length < width * height)
+            throw new IllegalArgumentException("height map data is too small for " + width + "x" + height);
+        return new HeightMap(data, width, height);
+    }
+
+    /**
+     * Blend between two inputs, a mask of 0 selects a, 1 selects b
+     */
+    public static HeightGraph blend(HeightGraph a, HeightGraph b, HeightGraph mask) {
+        return new Blend(a, b, mask);
+    }
+
+    /**
+     * Use an existing sampler as a node, it's sampled in vertex space
+     */
+    public static HeightGraph sampler(HeightSampler sampler) {
+        return new SamplerNode(sampler);
+    }
+
+    /*
+     * Nodes
+     */
+
+    private static final class Constant extends HeightGraph {
+        final float value;
+
+        Constant(float value) {
+            this.value = value;
+        }
+
+        @Override
+        Kernel compile(Compiler compiler) {
+            return (batch, out) -> {
+                for (int i = 0; i < batch.count; i++)
+                    out[i] = value;
+            };
+        }
+
+        @Override
+        boolean isConstant() {
+            return true;
+        }
+
+        @Override
+        public float getMin() {
+            return value;
+        }
+
+        @Override
+        public float getMax() {
+            return value;
+        }
+    }
+
+    private static final class Add extends HeightGraph {
+        final List<HeightGraph> inputs;
+
+        Add(List<HeightGraph> inputs) {
+            this.inputs = inputs;
+        }
+
+        @Override
+        HeightGraph simplify() {
+            // flatten nested sums and fold the constants into one offset
+            List<HeightGraph> terms = new ArrayList<>();
+            float offset = 0;
+            List<HeightGraph> pending = new ArrayList<>(inputs);
+            while (!pending.isEmpty()) {
+                HeightGraph input = pending.remove(0).simplify();
+                if (input instanceof Add add)
+                    pending.addAll(0, add.inputs);
+                else if (input instanceof Constant constant)
+                    offset += constant.value;
+                else
+                    terms.add(input);
+            }
+            if (terms.isEmpty())
+                return new Constant(offset);
+            HeightGraph sum = terms.size() == 1 ? terms.get(0) : new Add(terms);
+            return offset == 0 ? sum : new Scale(sum, 1, offset).simplify();
+        }
+
+        @Override
+        Kernel compile(Compiler compiler) {
+            Kernel[] kernels = new Kernel[inputs.size()];
+            for (int i = 0; i < kernels.length; i++)
+                kernels[i] = inputs.get(i).compile(compiler);
+            int tmp = compiler.allocate();
+            return (batch, out) -> {
+                kernels[0].eval(batch, out);
+                float[] buffer = batch.scratch[tmp];
+                for (int k = 1; k < kernels.length; k++) {
+                    kernels[k].eval(batch, buffer);
+                    for (int i = 0; i < batch.count; i++)
+                        out[i] += buffer[i];
+                }
+            };
+        }
+
+        @Override
+        void init(Terrain terrain) {
+            inputs.forEach(input -> input.init(terrain));
+        }
+
+        @Override
+        public float getMin() {
+            float min = 0;
+            for (HeightGraph input : inputs)
+                min += input.getMin();
+            return min;
+        }
+
+        @Override
+        public float getMax() {
+            float max = 0;
+            for (HeightGraph input : inputs)
+                max += input.getMax();
+            return max;
+        }
+    }
+
+    /**
+     * input * factor + offset, evaluated in place
+     */
+    private static final class Scale extends HeightGraph {
+        final HeightGraph input;
+        final float factor, offset;
+
+        Scale(HeightGraph input, float factor, float offset) {
+            this.input = input;
+            this.factor = factor;
+            this.offset = offset;
+        }
+
+        @Override
+        HeightGraph simplify() {
+            HeightGraph in = input.simplify();
+            if (in instanceof Constant constant)
+                return new Constant(constant.value * factor + offset);
+            if (in instanceof Scale scale)
+                return new Scale(scale.input, scale.factor * factor, scale.offset * factor + offset);
+            if (factor == 1 && offset == 0)
+                return in;
+            return new Scale(in, factor, offset);
+        }
+
+        @Override
+        Kernel compile(Compiler compiler) {
+            Kernel kernel = input.compile(compiler);
+            return (batch, out) -> {
+                kernel.eval(batch, out);
+                for (int i = 0; i < batch.count; i++)
+                    out[i] = out[i] * factor + offset;
+            };
+        }
+
+        @Override
+        void init(Terrain terrain) {
+            input.init(terrain);
+        }
+
+        @Override
+        public float getMin() {
+            return Math.min(input.getMin() * factor, input.getMax() * factor) + offset;
+        }
+
+        @Override
+        public float getMax() {
+            return Math.max(input.getMin() * factor, input.getMax() * factor) + offset;
+        }
+    }
+
+    private static final class Multiply extends HeightGraph {
+        final HeightGraph a, b;
+
+        Multiply(HeightGraph a, HeightGraph b) {
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        HeightGraph simplify() {
+            HeightGraph sa = a.simplify();
+            HeightGraph sb = b.simplify();
+            if (sa instanceof Constant ca)
+                return new Scale(sb, ca.value, 0).simplify();
+            if (sb instanceof Constant cb)
+                return new Scale(sa, cb.value, 0).simplify();
+            return new Multiply(sa, sb);
+        }
+
+        @Override
+        Kernel compile(Compiler compiler) {
+            Kernel ka = a.compile(compiler);
+            Kernel kb = b.compile(compiler);
+            int tmp = compiler.allocate();
+            return (batch, out) -> {
+                ka.eval(batch, out);
+                float[] buffer = batch.scratch[tmp];
+                kb.eval(batch, buffer);
+                for (int i = 0; i < batch.count; i++)
+                    out[i] *= buffer[i];
+            };
+        }
+
+        @Override
+        void init(Terrain terrain) {
+            a.init(terrain);
+            b.init(terrain);
+        }
+
+        @Override
+        public float getMin() {
+            return Math.min(Math.min(a.getMin() * b.getMin(), a.getMin() * b.getMax()), Math.min(a.getMax() * b.getMin(), a.getMax() * b.getMax()));
+        }
+
+        @Override
+        public float getMax() {
+            return Math.max(Math.max(a.getMin() * b.getMin(), a.getMin() * b.getMax()), Math.max(a.getMax() * b.getMin(), a.getMax() * b.getMax()));
+        }
+    }
+
+    private static final class Exponent extends HeightGraph {
+        final HeightGraph input;
+        final float exponent;
+
+        Exponent(HeightGraph input, float exponent) {
+            this.input = input;
+            this.exponent = exponent;
+        }
+
+        @Override
+        HeightGraph simplify() {
+            HeightGraph in = input.simplify();
+            if (exponent == 1)
+                return in;
+            if (in instanceof Constant constant)
+                return new Constant((float)Math.pow(constant.value, exponent));
+            return new Exponent(in, exponent);
+        }
+
+        @Override
+        Kernel compile(Compiler compiler) {
+            Kernel kernel = input.compile(compiler);
+            if (exponent == 2)
+                return (batch, out) -> {
+                    kernel.eval(batch, out);
+                    for (int i = 0; i < batch.count; i++)
+                        out[i] = out[i] * out[i];
+                };
+            if (exponent == 4)
+                return (batch, out) -> {
+                    kernel.eval(batch, out);
+                    for (int i = 0; i < batch.count; i++) {
+                        float squared = out[i] * out[i];
+                        out[i] = squared * squared;
+                    }
+                };
+            return (batch, out) -> {
+                kernel.eval(batch, out);
+                for (int i = 0; i < batch.count; i++)
+                    out[i] = (float)Math.pow(out[i], exponent);
+            };
+        }
+
+        @Override
+        void init(Terrain terrain) {
+            input.init(terrain);
+        }
+
+        @Override
+        public float getMin() {
+            return bound(false);
+        }
+
+        @Override
+        public float getMax() {
+            return bound(true);
+        }
+
+        /**
+         * The power is monotonic on either side of 0, so its bounds are among the powers of the input bounds and of 0.
+         * Integral exponents take negative inputs too, odd ones keep the sign. Fractional exponents are undefined
+         * below 0, the negative part of the input range doesn't count.
+         */
+        private float bound(boolean upper) {
+            double min = input.getMin(), max = input.getMax();
+            boolean integral = exponent == Math.rint(exponent);
+            if (!integral) {
+                min = Math.max(0, min);
+                max = Math.max(0, max);
+            }
+            double a = Math.pow(min, exponent);
+            double b = Math.pow(max, exponent);
+            double result = upper ? Math.max(a, b) : Math.min(a, b);
+            if (min < 0 && max > 0) {
+                // negative exponents have poles at 0, with the sign of the side for odd ones
+                double below = Math.pow(-0.0, exponent);
+                double above = Math.pow(0.0, exponent);
+                result = upper ? Math.max(result, Math.max(below, above)) : Math.min(result, Math.min(below, above));
+            }
+            return (float)result;
+        }
+    }
+
+    private static final class Curve extends HeightGraph {
+        final HeightGraph input;
+        final float[] xs, ys;
+
+        Curve(HeightGraph input, float[] xs, float[] ys) {
+            this.input = input;
+            this.xs = xs;
+            this.ys = ys;
+        }
+
+        @Override
+        HeightGraph simplify() {
+            return new Curve(input.simplify(), xs, ys);
+        }
+
+        @Override
+        Kernel compile(Compiler compiler) {
+            Kernel kernel = input.compile(compiler);
+            int last = xs.length - 1;
+            return (batch, out) -> {
+                kernel.eval(batch, out);
+                for (int i = 0; i < batch.count; i++) {
+                    float value = out[i];
+                    if (value <= xs[0]) {
+                        out[i] = ys[0];
+                    } else if (value >= xs[last]) {
+                        out[i] = ys[last];
+                    } else {
+                        int k = 1;
+                        while (xs[k] < value)
+                            k++;
+                        float f = (value - xs[k - 1]) / (xs[k] - xs[k - 1]);
+                        out[i] = ys[k - 1] + f * (ys[k] - ys[k - 1]);
+                    }
+                }
+            };
+        }
+
+        @Override
+        void init(Terrain terrain) {
+            input.init(terrain);
+        }
+
+        @Override
+        public float getMin() {
+            float min = Float.MAX_VALUE;
+            for (float y : ys)
+                min = Math.min(min, y);
+            return min;
+        }
+
+        @Override
+        public float getMax() {
+            float max = -Float.MAX_VALUE;
+            for (float y : ys)
+                max = Math.max(max, y);
+            return max;
+        }
+    }
+
+    private static final class Clamp extends HeightGraph {
+        final HeightGraph input;
+        final float min, max;
+
+        Clamp(HeightGraph input, float min, float max) {
+            this.input = input;
+            this.min = min;
+            this.max = max;
+        }
+
+        @Override
+        HeightGraph simplify() {
+            HeightGraph in = input.simplify();
+            if (in instanceof Constant constant)
+                return new Constant(Math.max(min, Math.min(max, constant.value)));
+            if (in.getMin() >= min && in.getMax() <= max)
+                return in;
+            return new Clamp(in, min, max);
+        }
+
+        @Override
+        Kernel compile(Compiler compiler) {
+            Kernel kernel = input.compile(compiler);
+            return (batch, out) -> {
+                kernel.eval(batch, out);
+                for (int i = 0; i < batch.count; i++)
+                    out[i] = Math.max(min, Math.min(max, out[i]));
+            };
+        }
+
+        @Override
+        void init(Terrain terrain) {
+            input.init(terrain);
+        }
+
+        @Override
+        public float getMin() {
+            return Math.max(min, input.getMin());
+        }
+
+        @Override
+        public float getMax() {
+            return Math.min(max, input.getMax());
+        }
+    }
+
+    private static final class NoiseOctave extends HeightGraph {
+        final long seed;
+        final float frequency, amplitude;
+
+        NoiseOctave(long seed, float frequency, float amplitude) {
+            this.seed = seed;
+            this.frequency = frequency;
+            this.amplitude = amplitude;
+        }
+
+        @Override
+        Kernel compile(Compiler compiler) {
+            return (batch, out) -> {
+                float[] u = batch.u;
+                float[] v = batch.v;
+                for (int i = 0; i < batch.count; i++)
+                    out[i] = amplitude * OpenSimplex2S.noise2(seed, (u[i] - 0.5f) * frequency, (v[i] - 0.5f) * frequency);
+            };
+        }
+
+        @Override
+        public float getMin() {
+            return -Math.abs(amplitude);
+        }
+
+        @Override
+        public float getMax() {
+            return Math.abs(amplitude);
+        }
+    }
+
+    private static final class HeightMap extends HeightGraph {
+        final float[] data;
+        final int width, height;
+        final float min, max;
+
+        HeightMap(float[] data, int width, int height) {
+            this.data = data;
+            this.width = width;
+            this.height = height;
+            float min = Float.MAX_VALUE;
+            float max = -Float.MAX_VALUE;
+            for (int i = 0; i < width * height; i++) {
+                min = Math.min(min, data[i]);
+                max = Math.max(max, data[i]);
+            }
+            this.min = min;
+            this.max = max;
+        }
+
+        @Override
+        Kernel compile(Compiler compiler) {
+            int maxX = width - 1;
+            int maxZ = height - 1;
+            return (batch, out) -> {
+                float[] u = batch.u;
+                float[] v = batch.v;
+                for (int i = 0; i < batch.count; i++) {
+                    float mx = Math.max(0, Math.min(maxX, u[i] * maxX));
+                    float mz = Math.max(0, Math.min(maxZ, v[i] * maxZ));
+                    int px = (int)mx;
+                    int pz = (int)mz;
+                    int px1 = Math.min(px + 1, maxX);
+                    int pz1 = Math.min(pz + 1, maxZ);
+                    float dx = mx - px;
+                    float dz = mz - pz;
+                    float h00 = data[pz * width + px];
+                    float h10 = data[pz * width + px1];
+                    float h01 = data[pz1 * width + px];
+                    float h11 = data[pz1 * width + px1];
+                    float h0 = h00 + dx * (h10 - h00);
+                    float h1 = h01 + dx * (h11 - h01);
+                    out[i] = h0 + dz * (h1 - h0);
+                }
+            };
+        }
+
+        @Override
+        public float getMin() {
+            return min;
+        }
+
+        @Override
+        public float getMax() {
+            return max;
+        }
+    }
+
+    private static final class Blend extends HeightGraph {
+        final HeightGraph a, b, mask;
+
+        Blend(HeightGraph a, HeightGraph b, HeightGraph mask) {
+            this.a = a;
+            this.b = b;
+            this.mask = mask;
+        }
+
+        @Override
+        HeightGraph simplify() {
+            HeightGraph sa = a.simplify();
+            HeightGraph sb = b.simplify();
+            HeightGraph sm = mask.simplify();
+            if (sm.getMax() <= 0)
+                return sa;
+            if (sm.getMin() >= 1)
+                return sb;
+            return new Blend(sa, sb, sm);
+        }
+
+        @Override
+        Kernel compile(Compiler compiler) {
+            Kernel ka = a.compile(compiler);
+            Kernel kb = b.compile(compiler);
+            Kernel km = mask.compile(compiler);
+            int tmpB = compiler.allocate();
+            int tmpMask = compiler.allocate();
+            return (batch, out) -> {
+                ka.eval(batch, out);
+                float[] bufferB = batch.scratch[tmpB];
+                float[] bufferMask = batch.scratch[tmpMask];
+                kb.eval(batch, bufferB);
+                km.eval(batch, bufferMask);
+                for (int i = 0; i < batch.count; i++) {
+                    float m = Math.max(0, Math.min(1, bufferMask[i]));
+                    out[i] += m * (bufferB[i] - out[i]);
+                }
+            };
+        }
+
+        @Override
+        void init(Terrain terrain) {
+            a.init(terrain);
+            b.init(terrain);
+            mask.init(terrain);
+        }
+
+        @Override
+        public float getMin() {
+            return Math.min(a.getMin(), b.getMin());
+        }
+
+        @Override
+        public float getMax() {
+            return Math.max(a.getMax(), b.getMax());
+        }
+    }
+
+    private static final class SamplerNode extends HeightGraph {
+        final HeightSampler sampler;
+
+        SamplerNode(HeightSampler sampler) {
+            this.sampler = sampler;
+        }
+
+        @Override
+        Kernel compile(Compiler compiler) {
+            return (batch, out) -> sampler.samplePoints(batch.x, batch.z, batch.count, out);
+        }
+
+        @Override
+        void init(Terrain terrain) {
+            sampler.init(terrain);
+        }
+
+        @Override
+        public float getMin() {
+            return sampler.getMinHeight();
+        }
+
+        @Override
+        public float getMax() {
+            return sampler.getMaxHeight();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package net.nothingtv.gdx.terrain;
+
+import net.nothingtv.gdx.tools.Async;
+
+/**
+ * Height sampler that evaluates a {@link HeightGraph}.
+ * <p>
+ * The graph is simplified and compiled into batch kernels in {@link #init(Terrain)}. Samples are evaluated in batches
+ * of {@link #BATCH_SIZE} locations, the coordinates are normalized once per batch and shared by all nodes.
+ */
+public class HeightGraphSampler extends DefaultHeightSampler {
+
+    /**
+     * number of locations evaluated by one pass through the kernels, small enough to keep the scratch buffers in the cache
+     */
+    public static final int BATCH_SIZE = 256;
+    // grids with fewer samples are not worth to be split over the cores
+    private static final int PARALLEL_THRESHOLD = 4 * BATCH_SIZE;
+
+    public final HeightGraph graph;
+    private HeightGraph compiledGraph;
+    private HeightGraph.Kernel kernel;
+    private int scratchBuffers;
+    private float inverseWidth, inverseHeight;
+    private ThreadLocal<HeightGraph.Batch> batches;
+
+    public HeightGraphSampler(HeightGraph graph) {
+        this.graph = graph;
+    }
+
+    @Override
+    public void init(Terrain terrain) {
+        super.init(terrain);
+        inverseWidth = 1f / terrain.config.width;
+        inverseHeight = 1f / terrain.config.height;
+        graph.init(terrain);
+        compiledGraph = graph.simplify();
+        HeightGraph.Compiler compiler = new HeightGraph.Compiler();
+        kernel = compiledGraph.compile(compiler);
+        scratchBuffers = compiler.scratchBuffers;
+        batches = ThreadLocal.withInitial(() -> new HeightGraph.Batch(BATCH_SIZE, scratchBuffers));
+    }
+
+    @Override
+    public float getHeight(float x, float z) {
+        HeightGraph.Batch batch = batches.get();
+        batch.x[0] = x;
+        batch.z[0] = z;
+        batch.u[0] = x * inverseWidth;
+        batch.v[0] = z * inverseHeight;
+        batch.count = 1;
+        kernel.eval(batch, batch.result);
+        return batch.result[0];
+    }
+
+    @Override
+    public void sampleGrid(float x0, float z0, float stepX, float stepZ, int nx, int nz, float[] out) {
+        if ((long)nx * nz < PARALLEL_THRESHOLD || nz == 1) {
+            sampleRows(x0, z0, stepX, stepZ, nx, 0, nz, out);
+        } else {
+            Async.parallelFor(0, nz, (from, to) -> sampleRows(x0, z0, stepX, stepZ, nx, from, to, out));
+        }
+    }
+
+    private void sampleRows(float x0, float z0, float stepX, float stepZ, int nx, int fromRow, int toRow, float[] out) {
+        HeightGraph.Batch batch = batches.get();
+        float[] result = batch.result;
+        for (int z = fromRow; z < toRow; z++) {
+            float sz = z0 + z * stepZ;
+            float v = sz * inverseHeight;
+            for (int start = 0; start < nx; start += BATCH_SIZE) {
+                int count = Math.min(BATCH_SIZE, nx - start);
+                for (int i = 0; i < count; i++) {
+                    float sx = x0 + (start + i) * stepX;
+                    batch.x[i] = sx;
+                    batch.z[i] = sz;
+                    batch.u[i] = sx * inverseWidth;
+                    batch.v[i] = v;
+                }
+                batch.count = count;
+                kernel.eval(batch, result);
+                System.arraycopy(result, 0, out, z * nx + start, count);
+            }
+        }
+    }
+
+    @Override
+    public void samplePoints(float[] xs, float[] zs, int count, float[] out) {
+        HeightGraph.Batch batch = batches.get();
+        float[] result = batch.result;
+        for (int start = 0; start < count; start += BATCH_SIZE) {
+            int n = Math.min(BATCH_SIZE, count - start);
+            for (int i = 0; i < n; i++) {
+                float x = xs[start + i];
+                float z = zs[start + i];
+                batch.x[i] = x;
+                batch.z[i] = z;
+                batch.u[i] = x * inverseWidth;
+                batch.v[i] = z * inverseHeight;
+            }
+            batch.count = n;
+            kernel.eval(batch, result);
+            System.arraycopy(result, 0, out, start, n);
+        }
+    }
+
+    @Override
+    public float getMinHeight() {
+        return (compiledGraph != null ? compiledGraph : graph).getMin();
+    }
+
+    @Override
+    public float getMaxHeight() {
+        return (compiledGraph != null ? compiledGraph : graph).getMax();
+    }
+}
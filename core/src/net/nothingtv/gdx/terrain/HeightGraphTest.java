@@ -0,0 +1,147 @@
+package net.nothingtv.gdx.terrain;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HeightGraphTest {
+
+    private static final int GRID = 64;
+
+    /**
+     * @return the values of the graph on a grid over the normalized coordinates
+     */
+    private static float[] evaluate(HeightGraph graph) {
+        HeightGraph.Compiler compiler = new HeightGraph.Compiler();
+        HeightGraph.Kernel kernel = graph.compile(compiler);
+        HeightGraph.Batch batch = new HeightGraph.Batch(GRID * GRID, compiler.scratchBuffers);
+        for (int i = 0; i < GRID * GRID; i++) {
+            batch.u[i] = (i % GRID) / (GRID - 1f);
+            batch.v[i] = (i / GRID) / (GRID - 1f);
+            batch.x[i] = batch.u[i];
+            batch.z[i] = batch.v[i];
+        }
+        batch.count = GRID * GRID;
+        kernel.eval(batch, batch.result);
+        return batch.result.clone();
+    }
+
+    /**
+     * @return a graph with values in [min, max]
+     */
+    private static HeightGraph range(float min, float max) {
+        return HeightGraph.add(HeightGraph.noiseOctave(7, 4, (max - min) / 2), HeightGraph.constant((max + min) / 2));
+    }
+
+    @Test
+    void exponentBounds() {
+        HeightGraph noise = HeightGraph.noiseOctave(3, 4, 1);
+        assertBounds(-1, 1, HeightGraph.exponent(noise, 3));
+        assertBounds(0, 1, HeightGraph.exponent(noise, 2));
+        assertBounds(1, 1, HeightGraph.exponent(noise, 0));
+        // fractional exponents are only defined for the positive part
+        assertBounds(0, 1, HeightGraph.exponent(noise, 0.5f));
+
+        assertBounds(1, 27, HeightGraph.exponent(range(1, 3), 3));
+        assertBounds(1 / 3f, 1, HeightGraph.exponent(range(1, 3), -1));
+        assertBounds(1, 4, HeightGraph.exponent(range(-2, -1), 2));
+        assertBounds(-8, -1, HeightGraph.exponent(range(-2, -1), 3));
+        assertBounds(-1, -0.5f, HeightGraph.exponent(range(-2, -1), -1));
+        assertBounds(0, 16, HeightGraph.exponent(range(-2, 1), 4));
+        assertBounds(-8, 1, HeightGraph.exponent(range(-2, 1), 3));
+        // a range around 0 has a pole for negative exponents
+        assertBounds(Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY, HeightGraph.exponent(range(-2, 1), -1));
+        assertBounds(0.25f, Float.POSITIVE_INFINITY, HeightGraph.exponent(range(-2, 1), -2));
+    }
+
+    private static void assertBounds(float min, float max, HeightGraph graph) {
+        assertEquals(min, graph.getMin(), 1e-5f);
+        assertEquals(max, graph.getMax(), 1e-5f);
+    }
+
+    @Test
+    void boundsContainTheValues() {
+        HeightGraph noise = HeightGraph.noiseOctave(3, 4, 1);
+        HeightGraph[] graphs = {
+                HeightGraph.exponent(noise, 3),
+                HeightGraph.exponent(noise, 2),
+                HeightGraph.exponent(range(-2, 1), 3),
+                HeightGraph.exponent(range(1, 3), 1.5f),
+                HeightGraph.scale(HeightGraph.exponent(range(-1, 2), 4), -0.5f),
+                HeightGraph.clamp(HeightGraph.exponent(noise, 3), -0.25f, 0.5f)
+        };
+        for (HeightGraph graph : graphs) {
+            float[] values = evaluate(graph.simplify());
+            float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+            for (float value : values) {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            assertTrue(min >= graph.getMin() - 1e-5f, min + " < " + graph.getMin());
+            assertTrue(max <= graph.getMax() + 1e-5f, max + " > " + graph.getMax());
+            // the noise covers most of its range, a negative power shows up in the values
+            if (graph.getMin() < 0)
+                assertTrue(min < 0);
+        }
+    }
+
+    @Test
+    void simplifyKeepsNeededClamps() {
+        HeightGraph noise = HeightGraph.noiseOctave(3, 4, 1);
+        // the cube of the noise is negative in places, the clamp must stay
+        HeightGraph cubed = HeightGraph.clamp(HeightGraph.exponent(noise, 3), 0, 1).simplify();
+        assertEquals("Clamp", cubed.getClass().getSimpleName());
+        for (float value : evaluate(cubed))
+            assertTrue(value >= 0);
+        // the square is inside the clamp's range, the clamp is dropped
+        HeightGraph squared = HeightGraph.clamp(HeightGraph.exponent(noise, 2), 0, 1).simplify();
+        assertEquals("Exponent", squared.getClass().getSimpleName());
+        // constants are folded through the power and the clamp
+        HeightGraph constant = HeightGraph.clamp(HeightGraph.exponent(HeightGraph.constant(-2), 3), -4, 4).simplify();
+        assertEquals(-4, constant.getMin());
+        assertEquals(-4, constant.getMax());
+    }
+
+    @Test
+    void graphReproducesSamplerStack() {
+        TerrainConfig config = new TerrainConfig(1024, 768, 1);
+        config.heightSampler = new DefaultHeightSampler();
+        Terrain terrain = new Terrain(config);
+        float heightScale = 80;
+        for (float exponent : new float[] {1, 2, 3, 1.7f}) {
+            // the usual stack: noise plus detail summed up and cached
+            MultiHeightSampler multi = new MultiHeightSampler();
+            multi.addSampler(new NoiseHeightSampler(17, heightScale, 5, 3, exponent));
+            multi.addSampler(new TestHeightSampler(4, 0.05f, 2));
+            CachingHeightSampler stack = new CachingHeightSampler(multi, 64 * CachingHeightSampler.TILE_BYTES, 1f);
+            stack.init(terrain);
+
+            HeightGraph noise = HeightGraph.scale(HeightGraph.exponent(HeightGraph.fractalNoise(17, 5, 3), exponent), heightScale);
+            HeightGraphSampler graph = new HeightGraphSampler(HeightGraph.add(noise, HeightGraph.sampler(new TestHeightSampler(4, 0.05f, 2))));
+            CachingHeightSampler cachedGraph = new CachingHeightSampler(graph, 64 * CachingHeightSampler.TILE_BYTES, 1f);
+            cachedGraph.init(terrain);
+
+            // both only differ by float rounding
+            float tolerance = 1e-4f * heightScale;
+            Random random = new Random(8);
+            for (int i = 0; i < 2000; i++) {
+                float x = random.nextFloat() * config.width, z = random.nextFloat() * config.height;
+                assertEquals(multi.getHeight(x, z), graph.getHeight(x, z), tolerance, "exponent " + exponent + " at " + x + "/" + z);
+                assertEquals(stack.getHeight(x, z), cachedGraph.getHeight(x, z), tolerance, "exponent " + exponent + " at " + x + "/" + z);
+            }
+            // a grid large enough to be split over the cores
+            int nx = 150, nz = 40;
+            float[] expected = new float[nx * nz], actual = new float[nx * nz], cached = new float[nx * nz];
+            multi.sampleGrid(100.5f, 200.25f, 1.5f, 2.5f, nx, nz, expected);
+            graph.sampleGrid(100.5f, 200.25f, 1.5f, 2.5f, nx, nz, actual);
+            cachedGraph.sampleGrid(100.5f, 200.25f, 1.5f, 2.5f, nx, nz, cached);
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i], actual[i], tolerance, "exponent " + exponent + " grid " + i);
+                assertEquals(stack.getHeight(100.5f + (i % nx) * 1.5f, 200.25f + (i / nx) * 2.5f), cached[i], tolerance, "exponent " + exponent + " grid " + i);
+            }
+        }
+    }
+}
@@ -1,77 +1,225 @@
 package net.nothingtv.gdx.terrain;
 
+import com.badlogic.gdx.files.FileHandle;
 import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.utils.GdxRuntimeException;
 
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Height sampler that interpolates a height map bilinearly.
+ * <p>
+ * The map is decoded once into an array of floats, usually in the range 0..1, which are then multiplied by the
+ * height scale and added to the height offset. Besides RGBA pixmaps (red channel, 8 bit) it reads 16 bit grayscale
+ * PNG files and headerless little endian R16 and R32F files.
+ */
 public class HeightMapHeightSampler extends DefaultHeightSampler {
 
-    private Pixmap heightMap;
+    private float[] heights;
+    private int mapWidth, mapHeight;
     private float heightScale;
     private float heightOffset;
-    private int terrainWidth, terrainHeight;
-    private boolean useScaleSamplePosition;
+    private float minValue, maxValue;
     private float mapX, mapZ;
 
     public HeightMapHeightSampler(Pixmap heightMap, float heightScale, float heightOffset) {
-        this.heightMap = heightMap;
-        this.heightScale = heightScale;
-        this.heightOffset = heightOffset;
+        set(heightMap, heightScale, heightOffset);
+    }
+
+    /**
+     * @param heights the decoded height values row by row
+     * @param mapWidth the number of values per row
+     * @param mapHeight the number of rows
+     * @param heightScale the factor for the height values
+     * @param heightOffset the value added to the scaled heights
+     */
+    public HeightMapHeightSampler(float[] heights, int mapWidth, int mapHeight, float heightScale, float heightOffset) {
+        set(heights, mapWidth, mapHeight, heightScale, heightOffset);
     }
 
     public void set(Pixmap heightMap, float heightScale, float heightOffset) {
-        this.heightMap = heightMap;
+        set(decode(heightMap), heightMap.getWidth(), heightMap.getHeight(), heightScale, heightOffset);
+    }
+
+    public void set(float[] heights, int mapWidth, int mapHeight, float heightScale, float heightOffset) {
+        if (heights.length < mapWidth * mapHeight)
+            throw new GdxRuntimeException("Incorrect map size");
+        this.heights = heights;
+        this.mapWidth = mapWidth;
+        this.mapHeight = mapHeight;
         this.heightScale = heightScale;
         this.heightOffset = heightOffset;
+        float min = Float.MAX_VALUE;
+        float max = -Float.MAX_VALUE;
+        for (int i = 0; i < mapWidth * mapHeight; i++) {
+            min = Math.min(min, heights[i]);
+            max = Math.max(max, heights[i]);
+        }
+        minValue = min;
+        maxValue = max;
+        if (terrain != null)
+            init(terrain);
+    }
+
+    /**
+     * Decode the red channel of an RGBA8888 pixmap, the values are in the range 0..255/256
+     */
+    public static float[] decode(Pixmap pixmap) {
+        int width = pixmap.getWidth();
+        int height = pixmap.getHeight();
+        float[] heights = new float[width * height];
+        if (pixmap.getFormat() == Pixmap.Format.RGBA8888) {
+            // read the bytes directly instead of one JNI call per pixel
+            ByteBuffer pixels = pixmap.getPixels();
+            for (int i = 0; i < heights.length; i++)
+                heights[i] = (pixels.get(i * 4) & 0xff) / 256f;
+        } else {
+            int i = 0;
+            for (int y = 0; y < height; y++)
+                for (int x = 0; x < width; x++)
+                    heights[i++] = (pixmap.getPixel(x, y) >> 24 & 0xff) / 256f;
+        }
+        return heights;
+    }
+
+    /**
+     * Read a 16 bit grayscale PNG file, the values are in the range 0..65535/65536
+     */
+    public static HeightMapHeightSampler fromPng16(FileHandle file, float heightScale, float heightOffset) {
+        BufferedImage image;
+        try (InputStream in = file.read()) {
+            image = ImageIO.read(in);
+        } catch (IOException e) {
+            throw new GdxRuntimeException("Couldn't read height map " + file, e);
+        }
+        if (image == null)
+            throw new GdxRuntimeException("Unsupported image format: " + file);
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Raster raster = image.getRaster();
+        float range = (1 << raster.getSampleModel().getSampleSize(0));
+        int[] row = new int[width];
+        float[] heights = new float[width * height];
+        for (int y = 0; y < height; y++) {
+            raster.getSamples(0, y, width, 1, 0, row);
+            for (int x = 0; x < width; x++)
+                heights[y * width + x] = row[x] / range;
+        }
+        return new HeightMapHeightSampler(heights, width, height, heightScale, heightOffset);
+    }
+
+    /**
+     * Read a headerless file of unsigned little endian 16 bit values, the values are in the range 0..65535/65536
+     */
+    public static HeightMapHeightSampler fromRaw16(FileHandle file, int width, int height, float heightScale, float heightOffset) {
+        ByteBuffer data = ByteBuffer.wrap(file.readBytes()).order(ByteOrder.LITTLE_ENDIAN);
+        if (data.remaining() < width * height * 2)
+            throw new GdxRuntimeException("Incorrect map size");
+        float[] heights = new float[width * height];
+        for (int i = 0; i < heights.length; i++)
+            heights[i] = (data.getShort(i * 2) & 0xffff) / 65536f;
+        return new HeightMapHeightSampler(heights, width, height, heightScale, heightOffset);
+    }
+
+    /**
+     * Read a headerless file of little endian 32 bit floats, the values are used as they are
+     */
+    public static HeightMapHeightSampler fromRaw32F(FileHandle file, int width, int height, float heightScale, float heightOffset) {
+        ByteBuffer data = ByteBuffer.wrap(file.readBytes()).order(ByteOrder.LITTLE_ENDIAN);
+        if (data.remaining() < width * height * 4)
+            throw new GdxRuntimeException("Incorrect map size");
+        float[] heights = new float[width * height];
+        data.asFloatBuffer().get(heights);
+        return new HeightMapHeightSampler(heights, width, height, heightScale, heightOffset);
     }
 
     @Override
     public void init(Terrain terrain) {
         super.init(terrain);
-        terrainWidth = terrain.config.width;
-        terrainHeight = terrain.config.height;
-        useScaleSamplePosition = terrainWidth != heightMap.getWidth() || terrainHeight != heightMap.getHeight();
-        if (useScaleSamplePosition) {
-            mapX = (float)heightMap.getWidth() / terrainWidth;
-            mapZ = (float)heightMap.getHeight() / terrainWidth;
-        } else {
-            mapX = 1;
-            mapZ = 1;
-        }
+        mapX = (float)mapWidth / terrain.config.width;
+        mapZ = (float)mapHeight / terrain.config.height;
     }
 
     @Override
     public float getHeight(float x, float z) {
-        int pixel;
-        if (useScaleSamplePosition) {
-            int px = (int)Math.floor(x * mapX);
-            int py = (int)Math.floor(z * mapZ);
-            float dx = x * mapX - px;
-            float dy = z * mapZ - py;
-            if (px > heightMap.getWidth()-1)
-                px = heightMap.getWidth()-1;
-            if (py > heightMap.getHeight()-1)
-                py = heightMap.getHeight()-1;
-            int px1 = Math.min(px + 1, heightMap.getWidth() - 1);
-            int py1 = Math.min(py + 1, heightMap.getHeight() - 1);
-            pixel = heightMap.getPixel(px, py);
-            int pixelR = heightMap.getPixel(px1, py);
-            int pixelB = heightMap.getPixel(px, py1);
-            int pixelBR = heightMap.getPixel(px1, py1);
-            float red = (pixel >> 24 & 0xff) / 256f;
-            float redR = (pixelR >> 24 & 0xff) / 256f;
-            float redB = (pixelB >> 24 & 0xff) / 256f;
-            float redBR = (pixelBR >> 24 & 0xff) / 256f;
-            float h1 = red + dx * (redR - red);
-            float h2 = redB + dx * (redBR - redB);
-            float h = h1 + dy * (h2 - h1);
-            return h * heightScale + heightOffset;
-        } else {
-            int px = (int)Math.floor(x);
-            int py = (int)Math.floor(z);
-            pixel = heightMap.getPixel(px, py);
+        float mx = Math.max(0, x * mapX);
+        float mz = Math.max(0, z * mapZ);
+        int px = Math.min((int)mx, mapWidth - 1);
+        int py = Math.min((int)mz, mapHeight - 1);
+        float dx = mx - px;
+        float dy = mz - py;
+        int px1 = Math.min(px + 1, mapWidth - 1);
+        int row = py * mapWidth;
+        int nextRow = Math.min(py + 1, mapHeight - 1) * mapWidth;
+        float[] heights = this.heights;
+        float h00 = heights[row + px];
+        float h10 = heights[row + px1];
+        float h01 = heights[nextRow + px];
+        float h11 = heights[nextRow + px1];
+        float h1 = h00 + dx * (h10 - h00);
+        float h2 = h01 + dx * (h11 - h01);
+        return (h1 + dy * (h2 - h1)) * heightScale + heightOffset;
+    }
+
+    @Override
+    public void getHeightAndGradient(float x, float z, float[] out) {
+        // central differences one map pixel apart
+        float stepX = 1f / mapX;
+        float stepZ = 1f / mapZ;
+        out[0] = getHeight(x, z);
+        out[1] = (getHeight(x + stepX, z) - getHeight(x - stepX, z)) / (2 * stepX);
+        out[2] = (getHeight(x, z + stepZ) - getHeight(x, z - stepZ)) / (2 * stepZ);
+    }
+
+    @Override
+    public void sampleGrid(float x0, float z0, float stepX, float stepZ, int nx, int nz, float[] out) {
+        // the map columns and blend factors are the same for every row
+        int[] columns = new int[nx];
+        int[] nextColumns = new int[nx];
+        float[] blendX = new float[nx];
+        for (int x = 0; x < nx; x++) {
+            float mx = Math.max(0, (x0 + x * stepX) * mapX);
+            int px = Math.min((int)mx, mapWidth - 1);
+            blendX[x] = mx - px;
+            columns[x] = px;
+            nextColumns[x] = Math.min(px + 1, mapWidth - 1);
+        }
+        float[] heights = this.heights;
+        float scale = heightScale;
+        float offset = heightOffset;
+        int i = 0;
+        for (int z = 0; z < nz; z++) {
+            float mz = Math.max(0, (z0 + z * stepZ) * mapZ);
+            int py = Math.min((int)mz, mapHeight - 1);
+            float dy = mz - py;
+            int row = py * mapWidth;
+            int nextRow = Math.min(py + 1, mapHeight - 1) * mapWidth;
+            for (int x = 0; x < nx; x++) {
+                float h00 = heights[row + columns[x]];
+                float h10 = heights[row + nextColumns[x]];
+                float h01 = heights[nextRow + columns[x]];
+                float h11 = heights[nextRow + nextColumns[x]];
+                float dx = blendX[x];
+                float h1 = h00 + dx * (h10 - h00);
+                float h2 = h01 + dx * (h11 - h01);
+                out[i++] = (h1 + dy * (h2 - h1)) * scale + offset;
+            }
         }
-        // actually the red channel should be enough if we assume a gray texture in rgba
-        // but this could handle colored textures if you really want to
-        //return ((pixel >> 8 & 0xff) + (pixel >> 16 & 0xff) + (pixel >> 24 & 0xff)) / 3f / 256f * heightScale + heightOffset;
-        return (pixel >> 24 & 0xff) / 256f * heightScale + heightOffset;
+    }
+
+    @Override
+    public float getMinHeight() {
+        return Math.min(minValue * heightScale, maxValue * heightScale) + heightOffset;
+    }
+
+    @Override
+    public float getMaxHeight() {
+        return Math.max(minValue * heightScale, maxValue * heightScale) + heightOffset;
     }
 }
@@ -0,0 +1,385 @@
+package net.nothingtv.gdx.terrain;
+
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.BoundingBox;
+import com.badlogic.gdx.math.collision.Ray;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import net.nothingtv.gdx.tools.Async;
+
+/**
+ * A min/max pyramid over a lattice of terrain heights for ray casts, line of sight and bounds without physics.
+ * <p>
+ * The heights are sampled once on a regular lattice, a cell between four lattice points is the bilinear patch
+ * through its corners. Level n of the pyramid holds the minimum and maximum height of blocks of 2^n x 2^n cells, the
+ * top level is a single block. Level 0 isn't stored, the bounds of a cell are the ones of its corners.
+ * <p>
+ * A ray walks the cells it crosses like a DDA, but on the coarsest level whose block it passes above: it climbs one
+ * level after every block it leaves and descends while it may touch a block, so open terrain is crossed in a few
+ * steps. The hit on a cell is the exact intersection with the cell's bilinear patch. A ray that starts below the
+ * surface hits at its start.
+ */
+public class HeightPyramid {
+
+    // the distance in cells a ray is moved past a block border to get into the next block
+    private static final double STEP_EPSILON = 1e-6;
+
+    private final Terrain terrain;
+    private final float originX, originZ, cellSize;
+    private final int cellsX, cellsZ;
+    private final float[] heights;
+    private final int levelCount;
+    private final int[] countX, countZ;
+    private final float[][] minY, maxY;
+
+    /**
+     * Create a pyramid over the whole terrain with one cell per vertex
+     */
+    public HeightPyramid(Terrain terrain) {
+        this(terrain, 0, 0, terrain.config.scale, terrain.config.width, terrain.config.height);
+    }
+
+    /**
+     * Create a pyramid over a rectangle of the terrain
+     * @param originX the world x coordinate of the first lattice point
+     * @param originZ the world z coordinate of the first lattice point
+     * @param cellSize the distance between two lattice points in world units
+     * @param cellsX the number of cells along x
+     * @param cellsZ the number of cells along z
+     */
+    public HeightPyramid(Terrain terrain, float originX, float originZ, float cellSize, int cellsX, int cellsZ) {
+        if (cellsX < 1 || cellsZ < 1 || cellSize <= 0)
+            throw new GdxRuntimeException("invalid pyramid size: " + cellsX + "x" + cellsZ + " cells of " + cellSize);
+        this.terrain = terrain;
+        this.originX = originX;
+        this.originZ = originZ;
+        this.cellSize = cellSize;
+        this.cellsX = cellsX;
+        this.cellsZ = cellsZ;
+        heights = new float[(cellsX + 1) * (cellsZ + 1)];
+        int levels = 1;
+        while ((cellsX - 1 >> (levels - 1)) > 0 || (cellsZ - 1 >> (levels - 1)) > 0)
+            levels++;
+        levelCount = levels;
+        countX = new int[levelCount];
+        countZ = new int[levelCount];
+        minY = new float[levelCount][];
+        maxY = new float[levelCount][];
+        for (int lod = 0; lod < levelCount; lod++) {
+            countX[lod] = (cellsX - 1 >> lod) + 1;
+            countZ[lod] = (cellsZ - 1 >> lod) + 1;
+            if (lod > 0) {
+                minY[lod] = new float[countX[lod] * countZ[lod]];
+                maxY[lod] = new float[countX[lod] * countZ[lod]];
+            }
+        }
+        update(0, 0, cellsX, cellsZ);
+    }
+
+    /**
+     * Sample the heights of an area again after the terrain changed there
+     * @param minX the smallest world x coordinate of the area
+     * @param minZ the smallest world z coordinate of the area
+     * @param maxX the largest world x coordinate of the area
+     * @param maxZ the largest world z coordinate of the area
+     */
+    public void update(float minX, float minZ, float maxX, float maxZ) {
+        int x0 = Math.max(0, (int) Math.floor((minX - originX) / cellSize));
+        int z0 = Math.max(0, (int) Math.floor((minZ - originZ) / cellSize));
+        int x1 = Math.min(cellsX, (int) Math.ceil((maxX - originX) / cellSize));
+        int z1 = Math.min(cellsZ, (int) Math.ceil((maxZ - originZ) / cellSize));
+        if (x0 > x1 || z0 > z1)
+            return;
+        update(x0, z0, x1, z1);
+    }
+
+    /**
+     * Sample the lattice points from x0/z0 to x1/z1 (inclusive) and update the blocks containing them
+     */
+    private void update(int x0, int z0, int x1, int z1) {
+        int nx = x1 - x0 + 1;
+        int stride = cellsX + 1;
+        Async.parallelFor(z0, z1 + 1, (from, to) -> {
+            float[] band = new float[nx * (to - from)];
+            terrain.getHeightsAt(originX + x0 * cellSize, originZ + from * cellSize, cellSize, cellSize, nx, to - from, band);
+            for (int z = from; z < to; z++)
+                System.arraycopy(band, (z - from) * nx, heights, z * stride + x0, nx);
+        });
+        // a lattice point belongs to the cells on both sides of it
+        int cx0 = Math.max(0, x0 - 1), cz0 = Math.max(0, z0 - 1);
+        int cx1 = Math.min(cellsX - 1, x1), cz1 = Math.min(cellsZ - 1, z1);
+        for (int lod = 1; lod < levelCount; lod++) {
+            int level = lod;
+            int bx0 = cx0 >> lod, bx1 = cx1 >> lod;
+            Async.parallelFor(cz0 >> lod, (cz1 >> lod) + 1, (from, to) -> {
+                for (int z = from; z < to; z++)
+                    for (int x = bx0; x <= bx1; x++)
+                        updateBlock(level, x, z);
+            });
+        }
+    }
+
+    private void updateBlock(int lod, int x, int z) {
+        float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+        for (int c = 0; c < 4; c++) {
+            int cx = x * 2 + (c & 1);
+            int cz = z * 2 + (c >> 1);
+            if (cx >= countX[lod - 1] || cz >= countZ[lod - 1])
+                continue;
+            min = Math.min(min, blockMin(lod - 1, cx, cz));
+            max = Math.max(max, blockMax(lod - 1, cx, cz));
+        }
+        minY[lod][z * countX[lod] + x] = min;
+        maxY[lod][z * countX[lod] + x] = max;
+    }
+
+    private float blockMin(int lod, int x, int z) {
+        if (lod > 0)
+            return minY[lod][z * countX[lod] + x];
+        int i = z * (cellsX + 1) + x;
+        return Math.min(Math.min(heights[i], heights[i + 1]), Math.min(heights[i + cellsX + 1], heights[i + cellsX + 2]));
+    }
+
+    private float blockMax(int lod, int x, int z) {
+        if (lod > 0)
+            return maxY[lod][z * countX[lod] + x];
+        int i = z * (cellsX + 1) + x;
+        return Math.max(Math.max(heights[i], heights[i + 1]), Math.max(heights[i + cellsX + 1], heights[i + cellsX + 2]));
+    }
+
+    public int getLevelCount() {
+        return levelCount;
+    }
+
+    public float getMinHeight() {
+        return blockMin(levelCount - 1, 0, 0);
+    }
+
+    public float getMaxHeight() {
+        return blockMax(levelCount - 1, 0, 0);
+    }
+
+    /**
+     * Get the height of the lattice's surface, the bilinear interpolation of the cell's corners
+     * @param x the world x coordinate, clamped to the pyramid
+     * @param z the world z coordinate, clamped to the pyramid
+     */
+    public float getHeight(float x, float z) {
+        float gx = Math.max(0, Math.min(cellsX, (x - originX) / cellSize));
+        float gz = Math.max(0, Math.min(cellsZ, (z - originZ) / cellSize));
+        int ix = Math.min((int) gx, cellsX - 1);
+        int iz = Math.min((int) gz, cellsZ - 1);
+        float fx = gx - ix, fz = gz - iz;
+        int i = iz * (cellsX + 1) + ix;
+        float h0 = heights[i] + fx * (heights[i + 1] - heights[i]);
+        float h1 = heights[i + cellsX + 1] + fx * (heights[i + cellsX + 2] - heights[i + cellsX + 1]);
+        return h0 + fz * (h1 - h0);
+    }
+
+    /**
+     * Get the bounding box of the terrain over an area, the height range covers all cells touching the area
+     * @param minX the smallest world x coordinate of the area
+     * @param minZ the smallest world z coordinate of the area
+     * @param maxX the largest world x coordinate of the area
+     * @param maxZ the largest world z coordinate of the area
+     * @param out receives the area and its height range
+     * @return false if the area isn't completely inside the pyramid, out is unchanged then
+     */
+    public boolean getBounds(float minX, float minZ, float maxX, float maxZ, BoundingBox out) {
+        // the range of a partly covered area would miss the heights outside the pyramid
+        if (minX < originX || minZ < originZ || maxX > originX + cellsX * cellSize || maxZ > originZ + cellsZ * cellSize)
+            return false;
+        int x0 = Math.max(0, (int) Math.floor((minX - originX) / cellSize));
+        int z0 = Math.max(0, (int) Math.floor((minZ - originZ) / cellSize));
+        int x1 = Math.min(cellsX, (int) Math.ceil((maxX - originX) / cellSize)) - 1;
+        int z1 = Math.min(cellsZ, (int) Math.ceil((maxZ - originZ) / cellSize)) - 1;
+        // an area without extent still touches a cell
+        x1 = Math.max(x1, Math.min(x0, cellsX - 1));
+        z1 = Math.max(z1, Math.min(z0, cellsZ - 1));
+        if (x0 > x1 || z0 > z1)
+            return false;
+        float[] range = {Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY};
+        heightRange(levelCount - 1, 0, 0, x0, z0, x1, z1, range);
+        out.min.set(minX, range[0], minZ);
+        out.max.set(maxX, range[1], maxZ);
+        out.update();
+        return true;
+    }
+
+    /**
+     * Add the height range of the cells x0/z0 to x1/z1 (inclusive) within a block to range
+     */
+    private void heightRange(int lod, int x, int z, int x0, int z0, int x1, int z1, float[] range) {
+        int bx0 = x << lod, bz0 = z << lod;
+        int bx1 = bx0 + (1 << lod) - 1, bz1 = bz0 + (1 << lod) - 1;
+        if (bx0 > x1 || bz0 > z1 || bx1 < x0 || bz1 < z0)
+            return;
+        if (lod == 0 || (bx0 >= x0 && bz0 >= z0 && bx1 <= x1 && bz1 <= z1)) {
+            range[0] = Math.min(range[0], blockMin(lod, x, z));
+            range[1] = Math.max(range[1], blockMax(lod, x, z));
+            return;
+        }
+        for (int c = 0; c < 4; c++) {
+            int cx = x * 2 + (c & 1);
+            int cz = z * 2 + (c >> 1);
+            if (cx < countX[lod - 1] && cz < countZ[lod - 1])
+                heightRange(lod - 1, cx, cz, x0, z0, x1, z1, range);
+        }
+    }
+
+    /**
+     * Cast a ray against the terrain
+     * @param ray the ray in world coordinates, its direction has to be normalized
+     * @param maxDistance the length of the ray
+     * @param hit receives the hit point, may be null
+     * @return the distance to the hit or -1 if the ray doesn't hit the terrain
+     */
+    public float raycast(Ray ray, float maxDistance, Vector3 hit) {
+        Vector3 o = ray.origin, d = ray.direction;
+        float t = intersect(o.x, o.y, o.z, d.x, d.y, d.z, maxDistance);
+        if (t >= 0 && hit != null)
+            ray.getEndPoint(hit, t);
+        return t;
+    }
+
+    /**
+     * @return true if the terrain doesn't block the line between the points
+     */
+    public boolean isVisible(Vector3 from, Vector3 to) {
+        return isVisible(from.x, from.y, from.z, to.x, to.y, to.z);
+    }
+
+    /**
+     * Check the lines of sight between pairs of points in parallel
+     * @param from the start points as x, y, z triples
+     * @param to the end points as x, y, z triples
+     * @param count the number of pairs
+     * @param visible receives true for every pair whose line isn't blocked by the terrain
+     */
+    public void isVisible(float[] from, float[] to, int count, boolean[] visible) {
+        Async.parallelFor(0, count, (first, end) -> {
+            for (int i = first; i < end; i++)
+                visible[i] = isVisible(from[i * 3], from[i * 3 + 1], from[i * 3 + 2], to[i * 3], to[i * 3 + 1], to[i * 3 + 2]);
+        });
+    }
+
+    private boolean isVisible(float x0, float y0, float z0, float x1, float y1, float z1) {
+        float dx = x1 - x0, dy = y1 - y0, dz = z1 - z0;
+        float length = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+        if (length == 0)
+            return y0 >= getHeight(x0, z0);
+        // the end point may lie on the surface itself
+        float t = intersect(x0, y0, z0, dx / length, dy / length, dz / length, length);
+        return t < 0 || t >= length - 1e-3f * cellSize;
+    }
+
+    /**
+     * Walk the ray through the pyramid, nothing is allocated
+     * @return the ray parameter of the first hit or -1
+     */
+    private float intersect(float ox, float oy, float oz, float dx, float dy, float dz, float maxT) {
+        // the ray in lattice coordinates, the heights stay in world units
+        double gx = (ox - originX) / cellSize, gz = (oz - originZ) / cellSize;
+        double gdx = dx / cellSize, gdz = dz / cellSize;
+        double tEnter = 0, tExit = maxT;
+        // clip the ray to the box of the pyramid, it's open downwards so a ray below the terrain hits at its start
+        double[] slab = {tEnter, tExit};
+        if (!clip(gx, gdx, 0, cellsX, slab) || !clip(gz, gdz, 0, cellsZ, slab)
+                || !clip(oy, dy, Double.NEGATIVE_INFINITY, getMaxHeight(), slab))
+            return -1;
+        tEnter = slab[0];
+        tExit = slab[1];
+
+        int top = levelCount - 1;
+        int lod = top;
+        double t = tEnter;
+        double stepT = STEP_EPSILON / Math.max(Math.abs(gdx), Math.abs(gdz));
+        while (t <= tExit) {
+            double px = gx + gdx * t, pz = gz + gdz * t;
+            int cx = Math.max(0, Math.min(cellsX - 1, (int) Math.floor(px)));
+            int cz = Math.max(0, Math.min(cellsZ - 1, (int) Math.floor(pz)));
+            int bx = cx >> lod, bz = cz >> lod;
+            // where the ray leaves the block
+            double blockX0 = bx << lod, blockX1 = Math.min((bx + 1) << lod, cellsX);
+            double blockZ0 = bz << lod, blockZ1 = Math.min((bz + 1) << lod, cellsZ);
+            double leaveX = gdx > 0 ? (blockX1 - gx) / gdx : gdx < 0 ? (blockX0 - gx) / gdx : Double.POSITIVE_INFINITY;
+            double leaveZ = gdz > 0 ? (blockZ1 - gz) / gdz : gdz < 0 ? (blockZ0 - gz) / gdz : Double.POSITIVE_INFINITY;
+            double leave = Math.min(tExit, Math.min(leaveX, leaveZ));
+            double rayMin = Math.min(oy + dy * t, oy + dy * leave);
+            if (rayMin > blockMax(lod, bx, bz)) {
+                // the ray passes above the block, continue behind it on the next coarser level
+                t = leave + stepT;
+                if (lod < top)
+                    lod++;
+                continue;
+            }
+            if (lod > 0) {
+                lod--;
+                continue;
+            }
+            double hit = intersectCell(cx, cz, gx, gz, gdx, gdz, oy, dy, t, leave);
+            if (hit >= 0)
+                return (float) hit;
+            t = leave + stepT;
+            if (lod < top)
+                lod++;
+        }
+        return -1;
+    }
+
+    /**
+     * Narrow the parameter range in slab to the part of the ray o + d*t between min and max
+     * @return false if nothing is left
+     */
+    private static boolean clip(double o, double d, double min, double max, double[] slab) {
+        if (d == 0)
+            return o >= min && o <= max;
+        double t0 = (min - o) / d, t1 = (max - o) / d;
+        if (t0 > t1) {
+            double swap = t0;
+            t0 = t1;
+            t1 = swap;
+        }
+        slab[0] = Math.max(slab[0], t0);
+        slab[1] = Math.min(slab[1], t1);
+        return slab[0] <= slab[1];
+    }
+
+    /**
+     * Intersect the ray with the bilinear patch of a cell between the parameters tA and tB
+     * @return the parameter of the hit or -1
+     */
+    private double intersectCell(int cx, int cz, double gx, double gz, double gdx, double gdz, double oy, double dy,
+                                 double tA, double tB) {
+        int i = cz * (cellsX + 1) + cx;
+        double h00 = heights[i], h10 = heights[i + 1], h01 = heights[i + cellsX + 1], h11 = heights[i + cellsX + 2];
+        double b = h10 - h00, c = h01 - h00, d = h00 - h10 - h01 + h11;
+        double u0 = gx + gdx * tA - cx, v0 = gz + gdz * tA - cz;
+        // the ray's height above the patch is a quadratic function of s = t - tA
+        double f0 = oy + dy * tA - (h00 + b * u0 + c * v0 + d * u0 * v0);
+        if (f0 <= 0)
+            return tA;
+        double qa = -d * gdx * gdz;
+        double qb = dy - (b * gdx + c * gdz + d * (u0 * gdz + v0 * gdx));
+        double length = tB - tA;
+        double s = -1;
+        if (Math.abs(qa) < 1e-12) {
+            if (qb < 0)
+                s = -f0 / qb;
+        } else {
+            double discriminant = qb * qb - 4 * qa * f0;
+            if (discriminant >= 0) {
+                double root = Math.sqrt(discriminant);
+                double s0 = (-qb - root) / (2 * qa), s1 = (-qb + root) / (2 * qa);
+                double first = Math.min(s0, s1), second = Math.max(s0, s1);
+                s = first >= 0 ? first : second;
+            }
+        }
+        if (s >= 0 && s <= length)
+            return tA + s;
+        // the end of the cell is below the surface although no root was found, rounding
+        double fB = f0 + length * (qb + length * qa);
+        if (fB <= 0)
+            return tA + length * f0 / (f0 - fB);
+        return -1;
+    }
+}
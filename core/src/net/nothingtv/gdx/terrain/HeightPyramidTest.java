@@ -0,0 +1,123 @@
+package net.nothingtv.gdx.terrain;
+
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.BoundingBox;
+import com.badlogic.gdx.math.collision.Ray;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HeightPyramidTest {
+
+    // world size of the terrain, 2 units per vertex
+    private static final float WIDTH = 512, HEIGHT = 384;
+    private static final float CELL = 2;
+
+    private static Terrain createTerrain() {
+        TerrainConfig config = new TerrainConfig(256, 192, CELL);
+        config.heightSampler = new TestHeightSampler(30, 0.01f, 1);
+        return new Terrain(config);
+    }
+
+    @Test
+    void raycastMatchesMarch() {
+        HeightPyramid pyramid = new HeightPyramid(createTerrain());
+        Random random = new Random(1);
+        int hits = 0;
+        for (int i = 0; i < 300; i++) {
+            Vector3 origin = new Vector3(random.nextFloat() * WIDTH, 20 + random.nextFloat() * 40, random.nextFloat() * HEIGHT);
+            Vector3 direction = new Vector3(random.nextFloat() * 2 - 1, 0.05f - random.nextFloat() * 0.3f, random.nextFloat() * 2 - 1).nor();
+            if (i % 10 == 0)
+                direction.set(0, -1, 0);
+            float maxDistance = 150;
+            float distance = pyramid.raycast(new Ray(origin, direction), maxDistance, null);
+
+            // march the ray in small steps while it's over the pyramid
+            float step = 0.01f;
+            float expected = -1;
+            for (int k = 0; k * step <= maxDistance; k++) {
+                float s = k * step;
+                float x = origin.x + direction.x * s, y = origin.y + direction.y * s, z = origin.z + direction.z * s;
+                if (x < 0 || z < 0 || x > WIDTH || z > HEIGHT)
+                    continue;
+                if (y <= pyramid.getHeight(x, z)) {
+                    expected = s;
+                    break;
+                }
+            }
+            assertEquals(expected < 0, distance < 0, "ray " + origin + " " + direction);
+            if (distance >= 0) {
+                assertEquals(expected, distance, 2 * step, "ray " + origin + " " + direction);
+                hits++;
+                // a ray that starts below the surface hits at its origin, the others on the surface
+                Vector3 hit = new Vector3();
+                pyramid.raycast(new Ray(origin, direction), maxDistance, hit);
+                if (distance > 0)
+                    assertEquals(pyramid.getHeight(hit.x, hit.z), hit.y, 1e-3f);
+                else
+                    assertEquals(origin, hit);
+            }
+        }
+        // both hits and misses are covered
+        assertTrue(hits > 30 && hits < 290, "hits " + hits);
+    }
+
+    @Test
+    void boundsMatchDenseSampling() {
+        HeightPyramid pyramid = new HeightPyramid(createTerrain());
+        Random random = new Random(2);
+        BoundingBox box = new BoundingBox();
+        for (int i = 0; i < 200; i++) {
+            float size = random.nextFloat() * 120;
+            float x0 = random.nextFloat() * (WIDTH - size), z0 = random.nextFloat() * (HEIGHT - size);
+            assertTrue(pyramid.getBounds(x0, z0, x0 + size, z0 + size, box));
+            // the corners of all cells touching the area
+            float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+            int cx0 = (int) Math.floor(x0 / CELL), cz0 = (int) Math.floor(z0 / CELL);
+            int cx1 = Math.max(cx0 + 1, (int) Math.ceil((x0 + size) / CELL));
+            int cz1 = Math.max(cz0 + 1, (int) Math.ceil((z0 + size) / CELL));
+            for (int cz = cz0; cz <= cz1; cz++) {
+                for (int cx = cx0; cx <= cx1; cx++) {
+                    float h = pyramid.getHeight(cx * CELL, cz * CELL);
+                    min = Math.min(min, h);
+                    max = Math.max(max, h);
+                }
+            }
+            assertEquals(min, box.min.y, 1e-4f);
+            assertEquals(max, box.max.y, 1e-4f);
+            // the surface between the lattice points stays within the bounds
+            for (int k = 0; k < 50; k++) {
+                float h = pyramid.getHeight(x0 + random.nextFloat() * size, z0 + random.nextFloat() * size);
+                assertTrue(h >= box.min.y - 1e-4f && h <= box.max.y + 1e-4f);
+            }
+        }
+    }
+
+    @Test
+    void boundsNeedTheWholeArea() {
+        Terrain terrain = createTerrain();
+        // a pyramid over the middle of the terrain only
+        HeightPyramid pyramid = new HeightPyramid(terrain, 128, 128, CELL, 64, 32);
+        BoundingBox box = new BoundingBox(new Vector3(1, 2, 3), new Vector3(4, 5, 6));
+        assertFalse(pyramid.getBounds(100, 140, 160, 150, box));
+        assertFalse(pyramid.getBounds(200, 150, 300, 170, box));
+        assertFalse(pyramid.getBounds(0, 0, 50, 50, box));
+        assertEquals(new Vector3(1, 2, 3), box.min);
+        assertEquals(new Vector3(4, 5, 6), box.max);
+        assertTrue(pyramid.getBounds(128, 128, 256, 192, box));
+
+        // chunks that are only partly covered keep their default height range
+        terrain.config.chunkEdgeLength = 64;
+        terrain.setHeightPyramid(pyramid);
+        Terrain.TerrainChunk inside = terrain.getOrCreateChunk(2, 2, 0);
+        Terrain.TerrainChunk partly = terrain.getOrCreateChunk(1, 2, 0);
+        assertEquals(pyramid.getMinHeight(), inside.boundingBox.min.y, 30);
+        assertTrue(inside.boundingBox.max.y - inside.boundingBox.min.y > 2);
+        assertEquals(-1, partly.boundingBox.min.y);
+        assertEquals(1, partly.boundingBox.max.y);
+    }
+}
@@ -18,6 +18,64 @@ public interface HeightSampler {
      */
     float getHeight(float x, float z);
 
+    /**
+     * Get the heights of a regular grid in vertex space, row by row with x varying fastest.
+     * Samplers that have per call setup should override this to do the setup once per grid.
+     * @param x0 the x coordinate of the first sample
+     * @param z0 the z coordinate of the first sample
+     * @param stepX the distance between two samples of a row
+     * @param stepZ the distance between two rows
+     * @param nx the number of samples per row
+     * @param nz the number of rows
+     * @param out receives the nx*nz heights
+     */
+    default void sampleGrid(float x0, float z0, float stepX, float stepZ, int nx, int nz, float[] out) {
+        int i = 0;
+        for (int z = 0; z < nz; z++) {
+            float sz = z0 + z * stepZ;
+            for (int x = 0; x < nx; x++)
+                out[i++] = getHeight(x0 + x * stepX, sz);
+        }
+    }
+
+    /**
+     * Get the heights at arbitrary locations given in vertex space
+     * @param xs the x coordinates
+     * @param zs the z coordinates
+     * @param count the number of locations
+     * @param out receives the count heights
+     */
+    default void samplePoints(float[] xs, float[] zs, int count, float[] out) {
+        for (int i = 0; i < count; i++)
+            out[i] = getHeight(xs[i], zs[i]);
+    }
+
+    /**
+     * Get the heights at arbitrary locations given in vertex space for samples that are footprint units apart.
+     * Samplers with prefiltered levels of detail may answer from a coarser level, the others ignore the footprint.
+     * @param xs the x coordinates
+     * @param zs the z coordinates
+     * @param count the number of locations
+     * @param footprint the distance between neighbouring samples in vertex space
+     * @param out receives the count heights
+     */
+    default void samplePoints(float[] xs, float[] zs, int count, float footprint, float[] out) {
+        samplePoints(xs, zs, count, out);
+    }
+
+    /**
+     * Get the height and its gradient at the location given in vertex space.
+     * Samplers that know their derivatives should override this, the default uses central differences one unit apart.
+     * @param x the x coordinate (0..terrain.width)
+     * @param z the z coordinate (0..terrain.height)
+     * @param out receives the height, the derivative along x and the derivative along z
+     */
+    default void getHeightAndGradient(float x, float z, float[] out) {
+        out[0] = getHeight(x, z);
+        out[1] = (getHeight(x + 1, z) - getHeight(x - 1, z)) * 0.5f;
+        out[2] = (getHeight(x, z + 1) - getHeight(x, z - 1)) * 0.5f;
+    }
+
     float getMinHeight();
     float getMaxHeight();
 }
@@ -13,4 +13,40 @@ public class MapHeightSampler extends DefaultHeightSampler {
     public float getHeight(float x, float z) {
         return map[(int)z * mapSize + (int)x];
     }
+
+    @Override
+    public void getHeightAndGradient(float x, float z, float[] out) {
+        int ix = (int)x;
+        int iz = (int)z;
+        int row = iz * mapSize;
+        out[0] = map[row + ix];
+        // central differences on the map, one sided at the borders
+        int left = Math.max(ix - 1, 0);
+        int right = Math.min(ix + 1, mapSize - 1);
+        int top = Math.max(iz - 1, 0);
+        int bottom = Math.min(iz + 1, map.length / mapSize - 1);
+        out[1] = right > left ? (map[row + right] - map[row + left]) / (right - left) : 0;
+        out[2] = bottom > top ? (map[bottom * mapSize + ix] - map[top * mapSize + ix]) / (bottom - top) : 0;
+    }
+
+    @Override
+    public void sampleGrid(float x0, float z0, float stepX, float stepZ, int nx, int nz, float[] out) {
+        int[] columns = new int[nx];
+        for (int x = 0; x < nx; x++)
+            columns[x] = (int)(x0 + x * stepX);
+        int i = 0;
+        for (int z = 0; z < nz; z++) {
+            int row = (int)(z0 + z * stepZ) * mapSize;
+            for (int x = 0; x < nx; x++)
+                out[i++] = map[row + columns[x]];
+        }
+    }
+
+    @Override
+    public void samplePoints(float[] xs, float[] zs, int count, float[] out) {
+        float[] map = this.map;
+        int mapSize = this.mapSize;
+        for (int i = 0; i < count; i++)
+            out[i] = map[(int)zs[i] * mapSize + (int)xs[i]];
+    }
 }
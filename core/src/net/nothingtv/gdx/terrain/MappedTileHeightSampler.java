@@ -0,0 +1,248 @@
+package net.nothingtv.gdx.terrain;
+
+import com.badlogic.gdx.utils.GdxRuntimeException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Height sampler that reads heights from a tiled, mip-mapped file which is mapped into memory.
+ * <p>
+ * The file starts with a header of {@link #HEADER_BYTES} bytes followed by the tiles of all levels, level 0 first.
+ * Each tile holds {@code (tileSize+1) x (tileSize+1)} little endian floats row by row, the last row and column repeat
+ * the first ones of the neighbouring tiles so a height is interpolated without touching another tile.
+ * Level n has a sample spacing of {@code sampleSpacing * 2^n} and is a filtered version of level n-1.
+ * <p>
+ * Nothing is copied into the heap, the heights are read from the page cache on demand and opening even a large file
+ * only maps it. Files are created by {@link MappedTileWriter}.
+ */
+public class MappedTileHeightSampler implements HeightSampler {
+
+    static final int MAGIC = 0x5448544E;
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 4096;
+    static final int MAX_LEVELS = 16;
+
+    final int tileSize;
+    final int tileSamples;
+    final int tileFloats;
+    final int levels;
+    final float width, height;
+    final float sampleSpacing;
+    final int[] tilesX, tilesZ;
+    final long[] firstTile;
+    final int tilesPerMapping;
+    final FloatBuffer[] mappings;
+    float minHeight, maxHeight;
+
+    MappedTileHeightSampler(int tileSize, int levels, float width, float height, float sampleSpacing, FloatBuffer[] mappings, int tilesPerMapping) {
+        this.tileSize = tileSize;
+        this.tileSamples = tileSize + 1;
+        this.tileFloats = tileSamples * tileSamples;
+        this.levels = levels;
+        this.width = width;
+        this.height = height;
+        this.sampleSpacing = sampleSpacing;
+        this.mappings = mappings;
+        this.tilesPerMapping = tilesPerMapping;
+        tilesX = new int[levels];
+        tilesZ = new int[levels];
+        firstTile = new long[levels];
+        long tiles = 0;
+        for (int level = 0; level < levels; level++) {
+            float spacing = sampleSpacing * (1 << level);
+            tilesX[level] = tilesFor(width, spacing, tileSize);
+            tilesZ[level] = tilesFor(height, spacing, tileSize);
+            firstTile[level] = tiles;
+            tiles += (long) tilesX[level] * tilesZ[level];
+        }
+    }
+
+    static int tilesFor(float extent, float spacing, int tileSize) {
+        int cells = (int)Math.ceil(extent / spacing);
+        return Math.max(1, (cells + tileSize - 1) / tileSize);
+    }
+
+    static long totalTiles(float width, float height, float sampleSpacing, int tileSize, int levels) {
+        long tiles = 0;
+        for (int level = 0; level < levels; level++) {
+            float spacing = sampleSpacing * (1 << level);
+            tiles += (long) tilesFor(width, spacing, tileSize) * tilesFor(height, spacing, tileSize);
+        }
+        return tiles;
+    }
+
+    /**
+     * Map the data part of a tile file, every mapping holds a whole number of tiles so no tile crosses two mappings
+     */
+    static MappedByteBuffer[] map(FileChannel channel, FileChannel.MapMode mode, long tiles, int tileBytes, int tilesPerMapping) throws IOException {
+        int count = (int)((tiles + tilesPerMapping - 1) / tilesPerMapping);
+        MappedByteBuffer[] mappings = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long first = (long) i * tilesPerMapping;
+            long size = Math.min(tilesPerMapping, tiles - first) * tileBytes;
+            mappings[i] = channel.map(mode, HEADER_BYTES + first * tileBytes, size);
+        }
+        return mappings;
+    }
+
+    static FloatBuffer[] asFloatBuffers(MappedByteBuffer[] mappings) {
+        FloatBuffer[] buffers = new FloatBuffer[mappings.length];
+        for (int i = 0; i < mappings.length; i++)
+            buffers[i] = mappings[i].order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        return buffers;
+    }
+
+    static int tilesPerMapping(int tileBytes) {
+        return Math.max(1, Integer.MAX_VALUE / tileBytes);
+    }
+
+    /**
+     * Open a tile file written by {@link MappedTileWriter}
+     * @param path the file
+     * @return the sampler reading from the mapped file
+     * @throws IOException if the file can't be read
+     */
+    public static MappedTileHeightSampler open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+                throw new GdxRuntimeException("not a height tile file: " + path);
+            int tileSize = header.getInt(8);
+            int levels = header.getInt(12);
+            float width = header.getFloat(16);
+            float height = header.getFloat(20);
+            float sampleSpacing = header.getFloat(24);
+            int tileBytes = (tileSize + 1) * (tileSize + 1) * Float.BYTES;
+            long tiles = totalTiles(width, height, sampleSpacing, tileSize, levels);
+            if (channel.size() < HEADER_BYTES + tiles * tileBytes)
+                throw new GdxRuntimeException("height tile file is truncated: " + path);
+            int tilesPerMapping = tilesPerMapping(tileBytes);
+            // the mappings stay valid after the channel is closed
+            FloatBuffer[] mappings = asFloatBuffers(map(channel, FileChannel.MapMode.READ_ONLY, tiles, tileBytes, tilesPerMapping));
+            MappedTileHeightSampler sampler = new MappedTileHeightSampler(tileSize, levels, width, height, sampleSpacing, mappings, tilesPerMapping);
+            sampler.minHeight = header.getFloat(28);
+            sampler.maxHeight = header.getFloat(32);
+            return sampler;
+        }
+    }
+
+    static void writeHeader(ByteBuffer header, MappedTileHeightSampler sampler) {
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0, MAGIC);
+        header.putInt(4, VERSION);
+        header.putInt(8, sampler.tileSize);
+        header.putInt(12, sampler.levels);
+        header.putFloat(16, sampler.width);
+        header.putFloat(20, sampler.height);
+        header.putFloat(24, sampler.sampleSpacing);
+        header.putFloat(28, sampler.minHeight);
+        header.putFloat(32, sampler.maxHeight);
+    }
+
+    @Override
+    public void init(Terrain terrain) {
+    }
+
+    /**
+     * Get a stored sample, the lattice coordinates are clamped to the level
+     * @param level the mip level
+     * @param gx the x coordinate in samples of this level
+     * @param gz the z coordinate in samples of this level
+     * @return the stored height
+     */
+    public float getSample(int level, int gx, int gz) {
+        gx = Math.max(0, Math.min(gx, tilesX[level] * tileSize));
+        gz = Math.max(0, Math.min(gz, tilesZ[level] * tileSize));
+        int tx = Math.min(gx / tileSize, tilesX[level] - 1);
+        int tz = Math.min(gz / tileSize, tilesZ[level] - 1);
+        long tile = firstTile[level] + (long) tz * tilesX[level] + tx;
+        FloatBuffer buffer = mappings[(int)(tile / tilesPerMapping)];
+        int base = (int)(tile % tilesPerMapping) * tileFloats;
+        return buffer.get(base + (gz - tz * tileSize) * tileSamples + gx - tx * tileSize);
+    }
+
+    /**
+     * Get the height at a location from a single level
+     * @param x the x coordinate in vertex space
+     * @param z the z coordinate in vertex space
+     * @param level the mip level, 0 is the finest
+     * @return the interpolated height
+     */
+    public float getHeight(float x, float z, int level) {
+        float spacing = sampleSpacing * (1 << level);
+        int lastX = tilesX[level] * tileSize;
+        int lastZ = tilesZ[level] * tileSize;
+        float gx = Math.max(0, Math.min(lastX, x / spacing));
+        float gz = Math.max(0, Math.min(lastZ, z / spacing));
+        int ix = Math.min((int)gx, lastX - 1);
+        int iz = Math.min((int)gz, lastZ - 1);
+        float fx = gx - ix;
+        float fz = gz - iz;
+        // ix and iz are never on the last sample of a tile, so all four samples are in the same tile
+        int tx = ix / tileSize;
+        int tz = iz / tileSize;
+        long tile = firstTile[level] + (long) tz * tilesX[level] + tx;
+        FloatBuffer buffer = mappings[(int)(tile / tilesPerMapping)];
+        int i = (int)(tile % tilesPerMapping) * tileFloats + (iz - tz * tileSize) * tileSamples + ix - tx * tileSize;
+        float h00 = buffer.get(i);
+        float h10 = buffer.get(i + 1);
+        float h01 = buffer.get(i + tileSamples);
+        float h11 = buffer.get(i + tileSamples + 1);
+        float h0 = h00 + fx * (h10 - h00);
+        float h1 = h01 + fx * (h11 - h01);
+        return h0 + fz * (h1 - h0);
+    }
+
+    @Override
+    public float getHeight(float x, float z) {
+        return getHeight(x, z, 0);
+    }
+
+    /**
+     * Get the height for a sample that covers footprint units, the two nearest levels are blended
+     */
+    public float getFilteredHeight(float x, float z, float footprint) {
+        float lod = footprint > sampleSpacing ? (float)(Math.log(footprint / sampleSpacing) / Math.log(2)) : 0;
+        int level = (int)lod;
+        if (level >= levels - 1)
+            return getHeight(x, z, levels - 1);
+        float t = lod - level;
+        float h = getHeight(x, z, level);
+        return t > 0 ? h + t * (getHeight(x, z, level + 1) - h) : h;
+    }
+
+    @Override
+    public void samplePoints(float[] xs, float[] zs, int count, float footprint, float[] out) {
+        for (int i = 0; i < count; i++)
+            out[i] = getFilteredHeight(xs[i], zs[i], footprint);
+    }
+
+    public int getLevels() {
+        return levels;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public float getSampleSpacing() {
+        return sampleSpacing;
+    }
+
+    @Override
+    public float getMinHeight() {
+        return minHeight;
+    }
+
+    @Override
+    public float getMaxHeight() {
+        return maxHeight;
+    }
+}
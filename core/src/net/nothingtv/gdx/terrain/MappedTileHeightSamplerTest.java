@@ -0,0 +1,104 @@
+package net.nothingtv.gdx.terrain;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MappedTileHeightSamplerTest {
+
+    private static final float WIDTH = 200, HEIGHT = 150;
+    private static final int TILE = 32;
+
+    private static MappedTileHeightSampler bake(HeightSampler sampler) throws IOException {
+        Path file = Files.createTempFile("heights", ".tiles");
+        file.toFile().deleteOnExit();
+        MappedTileWriter.write(file, sampler, WIDTH, HEIGHT, 1, TILE, 4);
+        return MappedTileHeightSampler.open(file);
+    }
+
+    @Test
+    void levelsMatchTheSource() throws IOException {
+        TestHeightSampler source = new TestHeightSampler(30, 0.05f, 3);
+        MappedTileHeightSampler mapped = bake(source);
+        assertEquals(4, mapped.getLevels());
+        assertEquals(TILE, mapped.getTileSize());
+
+        // level 0 holds the heights of the source
+        int lastX = mapped.tilesX[0] * TILE, lastZ = mapped.tilesZ[0] * TILE;
+        float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+        for (int gz = 0; gz <= lastZ; gz++) {
+            for (int gx = 0; gx <= lastX; gx++) {
+                float h = source.getHeight(gx, gz);
+                assertEquals(h, mapped.getSample(0, gx, gz), gx + "/" + gz);
+                min = Math.min(min, h);
+                max = Math.max(max, h);
+            }
+        }
+        assertEquals(min, mapped.getMinHeight());
+        assertEquals(max, mapped.getMaxHeight());
+
+        // every coarser level is the 1-2-1 filter of the level before, clamped at the borders
+        for (int level = 1; level < mapped.getLevels(); level++) {
+            int fine = level - 1;
+            for (int gz = 0; gz <= mapped.tilesZ[level] * TILE; gz++) {
+                for (int gx = 0; gx <= mapped.tilesX[level] * TILE; gx++) {
+                    float sum = 0;
+                    for (int dz = -1; dz <= 1; dz++) {
+                        for (int dx = -1; dx <= 1; dx++) {
+                            int weight = (2 - Math.abs(dx)) * (2 - Math.abs(dz));
+                            int fx = Math.max(0, Math.min(2 * gx + dx, mapped.tilesX[fine] * TILE));
+                            int fz = Math.max(0, Math.min(2 * gz + dz, mapped.tilesZ[fine] * TILE));
+                            sum += weight * mapped.getSample(fine, fx, fz);
+                        }
+                    }
+                    assertEquals(sum / 16, mapped.getSample(level, gx, gz), 1e-4f, "level " + level + " " + gx + "/" + gz);
+                }
+            }
+        }
+    }
+
+    @Test
+    void interpolationBetweenSamples() throws IOException {
+        MappedTileHeightSampler mapped = bake(new TestHeightSampler(30, 0.05f, 3));
+        Random random = new Random(4);
+        for (int i = 0; i < 1000; i++) {
+            float x = random.nextFloat() * WIDTH, z = random.nextFloat() * HEIGHT;
+            for (int level = 0; level < mapped.getLevels(); level++) {
+                float spacing = 1 << level;
+                int gx = (int)(x / spacing), gz = (int)(z / spacing);
+                float fx = x / spacing - gx, fz = z / spacing - gz;
+                float h0 = mapped.getSample(level, gx, gz) * (1 - fx) + mapped.getSample(level, gx + 1, gz) * fx;
+                float h1 = mapped.getSample(level, gx, gz + 1) * (1 - fx) + mapped.getSample(level, gx + 1, gz + 1) * fx;
+                assertEquals(h0 * (1 - fz) + h1 * fz, mapped.getHeight(x, z, level), 1e-3f);
+            }
+        }
+    }
+
+    @Test
+    void decoratorsForwardTheFootprint() throws IOException {
+        MappedTileHeightSampler mapped = bake(new TestHeightSampler(30, 0.05f, 3));
+        MultiHeightSampler multi = new MultiHeightSampler();
+        multi.addSampler(mapped);
+        CachingHeightSampler cache = new CachingHeightSampler(multi, 16 * CachingHeightSampler.TILE_BYTES, 1f);
+        Random random = new Random(5);
+        int count = 500;
+        float[] xs = new float[count], zs = new float[count], out = new float[count];
+        for (int i = 0; i < count; i++) {
+            xs[i] = random.nextFloat() * WIDTH;
+            zs[i] = random.nextFloat() * HEIGHT;
+        }
+        for (float footprint : new float[] {0.5f, 1, 1.5f, 2, 3, 6, 100}) {
+            cache.samplePoints(xs, zs, count, footprint, out);
+            for (int i = 0; i < count; i++) {
+                // the cache serves fine samples from its own lattice of level 0
+                float expected = footprint <= 1 ? mapped.getHeight(xs[i], zs[i]) : mapped.getFilteredHeight(xs[i], zs[i], footprint);
+                assertEquals(expected, out[i], 1e-3f, "footprint " + footprint);
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package net.nothingtv.gdx.terrain;
+
+import net.nothingtv.gdx.tools.Async;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Bakes the heights of a sampler into a file for {@link MappedTileHeightSampler}.
+ * <p>
+ * The tiles of level 0 are sampled in parallel, every coarser level is filtered from the level before with a
+ * 1-2-1 tent filter.
+ */
+public class MappedTileWriter {
+
+    /**
+     * Write a tile file
+     * @param path the file to create or overwrite
+     * @param sampler the source of the heights, it has to be initialized already
+     * @param width the width of the area in vertex space
+     * @param height the height (z extent) of the area in vertex space
+     * @param sampleSpacing the distance between two samples of level 0
+     * @param tileSize the number of cells per tile edge
+     * @param levels the number of mip levels, it's reduced if the coarsest levels would be smaller than one tile
+     * @return a sampler reading from the new file
+     * @throws IOException if the file can't be written
+     */
+    public static MappedTileHeightSampler write(Path path, HeightSampler sampler, float width, float height,
+                                                float sampleSpacing, int tileSize, int levels) throws IOException {
+        levels = Math.max(1, Math.min(levels, MappedTileHeightSampler.MAX_LEVELS));
+        while (levels > 1 && sampleSpacing * (1 << (levels - 2)) * tileSize >= Math.max(width, height))
+            levels--;
+        int tileBytes = (tileSize + 1) * (tileSize + 1) * Float.BYTES;
+        int tilesPerMapping = MappedTileHeightSampler.tilesPerMapping(tileBytes);
+        long tiles = MappedTileHeightSampler.totalTiles(width, height, sampleSpacing, tileSize, levels);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, MappedTileHeightSampler.HEADER_BYTES);
+            MappedByteBuffer[] mappings = MappedTileHeightSampler.map(channel, FileChannel.MapMode.READ_WRITE, tiles, tileBytes, tilesPerMapping);
+            MappedTileHeightSampler target = new MappedTileHeightSampler(tileSize, levels, width, height, sampleSpacing,
+                    MappedTileHeightSampler.asFloatBuffers(mappings), tilesPerMapping);
+
+            float[] range = sampleLevel0(sampler, target);
+            target.minHeight = range[0];
+            target.maxHeight = range[1];
+            for (int level = 1; level < levels; level++)
+                filterLevel(target, level);
+
+            for (MappedByteBuffer mapping : mappings)
+                mapping.force();
+            // the header is written last, an interrupted bake leaves a file that is rejected when opened
+            MappedTileHeightSampler.writeHeader(header, target);
+            header.force();
+            return MappedTileHeightSampler.open(path);
+        }
+    }
+
+    private static float[] sampleLevel0(HeightSampler sampler, MappedTileHeightSampler target) {
+        int tilesX = target.tilesX[0];
+        int tiles = tilesX * target.tilesZ[0];
+        float[] mins = new float[tiles];
+        float[] maxs = new float[tiles];
+        Async.parallelFor(0, tiles, (from, to) -> {
+            float[] heights = new float[target.tileFloats];
+            float spacing = target.sampleSpacing;
+            for (int t = from; t < to; t++) {
+                int tx = t % tilesX;
+                int tz = t / tilesX;
+                sampler.sampleGrid(tx * target.tileSize * spacing, tz * target.tileSize * spacing, spacing, spacing,
+                        target.tileSamples, target.tileSamples, heights);
+                float min = Float.MAX_VALUE;
+                float max = -Float.MAX_VALUE;
+                for (float h : heights) {
+                    min = Math.min(min, h);
+                    max = Math.max(max, h);
+                }
+                mins[t] = min;
+                maxs[t] = max;
+                putTile(target, t, heights);
+            }
+        });
+        float min = Float.MAX_VALUE;
+        float max = -Float.MAX_VALUE;
+        for (int t = 0; t < tiles; t++) {
+            min = Math.min(min, mins[t]);
+            max = Math.max(max, maxs[t]);
+        }
+        return new float[] { min, max };
+    }
+
+    private static void filterLevel(MappedTileHeightSampler target, int level) {
+        int tilesX = target.tilesX[level];
+        int tiles = tilesX * target.tilesZ[level];
+        int fine = level - 1;
+        int size = target.tileSize;
+        Async.parallelFor(0, tiles, (from, to) -> {
+            float[] heights = new float[target.tileFloats];
+            for (int t = from; t < to; t++) {
+                int tx = t % tilesX;
+                int tz = t / tilesX;
+                int i = 0;
+                for (int z = 0; z <= size; z++) {
+                    int fz = (tz * size + z) * 2;
+                    for (int x = 0; x <= size; x++) {
+                        int fx = (tx * size + x) * 2;
+                        float sum = 4 * target.getSample(fine, fx, fz)
+                                + 2 * (target.getSample(fine, fx - 1, fz) + target.getSample(fine, fx + 1, fz)
+                                + target.getSample(fine, fx, fz - 1) + target.getSample(fine, fx, fz + 1))
+                                + target.getSample(fine, fx - 1, fz - 1) + target.getSample(fine, fx + 1, fz - 1)
+                                + target.getSample(fine, fx - 1, fz + 1) + target.getSample(fine, fx + 1, fz + 1);
+                        heights[i++] = sum / 16;
+                    }
+                }
+                putTile(target, target.firstTile[level] + t, heights);
+            }
+        });
+    }
+
+    private static void putTile(MappedTileHeightSampler target, long tile, float[] heights) {
+        FloatBuffer buffer = target.mappings[(int)(tile / target.tilesPerMapping)];
+        buffer.put((int)(tile % target.tilesPerMapping) * target.tileFloats, heights);
+    }
+}
@@ -1,6 +1,7 @@
 package net.nothingtv.gdx.terrain;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class MultiHeightSampler extends DefaultHeightSampler {
@@ -24,4 +25,52 @@ public class MultiHeightSampler extends DefaultHeightSampler {
             h += sampler.getHeight(x, z);
         return h;
     }
+
+    @Override
+    public void getHeightAndGradient(float x, float z, float[] out) {
+        float h = 0, dx = 0, dz = 0;
+        for (HeightSampler sampler : samplers) {
+            sampler.getHeightAndGradient(x, z, out);
+            h += out[0];
+            dx += out[1];
+            dz += out[2];
+        }
+        out[0] = h;
+        out[1] = dx;
+        out[2] = dz;
+    }
+
+    @Override
+    public void sampleGrid(float x0, float z0, float stepX, float stepZ, int nx, int nz, float[] out) {
+        int n = nx * nz;
+        Arrays.fill(out, 0, n, 0f);
+        float[] layer = new float[n];
+        for (HeightSampler sampler : samplers) {
+            sampler.sampleGrid(x0, z0, stepX, stepZ, nx, nz, layer);
+            for (int i = 0; i < n; i++)
+                out[i] += layer[i];
+        }
+    }
+
+    @Override
+    public void samplePoints(float[] xs, float[] zs, int count, float[] out) {
+        Arrays.fill(out, 0, count, 0f);
+        float[] layer = new float[count];
+        for (HeightSampler sampler : samplers) {
+            sampler.samplePoints(xs, zs, count, layer);
+            for (int i = 0; i < count; i++)
+                out[i] += layer[i];
+        }
+    }
+
+    @Override
+    public void samplePoints(float[] xs, float[] zs, int count, float footprint, float[] out) {
+        Arrays.fill(out, 0, count, 0f);
+        float[] layer = new float[count];
+        for (HeightSampler sampler : samplers) {
+            sampler.samplePoints(xs, zs, count, footprint, layer);
+            for (int i = 0; i < count; i++)
+                out[i] += layer[i];
+        }
+    }
 }
@@ -1,5 +1,6 @@
 package net.nothingtv.gdx.terrain;
 
+import net.nothingtv.gdx.tools.Async;
 import net.nothingtv.gdx.tools.OpenSimplex2S;
 
 public class NoiseHeightSampler extends DefaultHeightSampler {
@@ -11,6 +12,14 @@ public class NoiseHeightSampler extends DefaultHeightSampler {
     private float mapWidth, mapHeight;
     private float exponent;
     private float maxHeight;
+    // per octave factors, these don't change between samples
+    private final float[] octaveFactor;
+    private final float[] octaveFrequency;
+    private final float gain;
+    private final int integralExponent;
+    private final ThreadLocal<float[]> gradient = ThreadLocal.withInitial(() -> new float[2]);
+    // grids with fewer noise evaluations are not worth to be split over the cores
+    private static final long PARALLEL_THRESHOLD = 16384;
 
     public NoiseHeightSampler(int seed, float heightScale, int octaves, float waveLength, float exponent) {
         this.seed = seed;
@@ -18,15 +27,21 @@ public class NoiseHeightSampler extends DefaultHeightSampler {
         this.octaves = octaves;
         this.waveLength = waveLength;
         this.exponent = exponent;
+        octaveFactor = new float[octaves];
+        octaveFrequency = new float[octaves];
         float e = 0;
         float gain = 0;
         float factor;
         for (int i = 0; i < octaves; i++) {
             factor = 1f/(1<<i);
+            octaveFactor[i] = factor;
+            octaveFrequency[i] = 1<<i;
             e += factor * 1.5f; // or whatever the noise function returns
             gain += factor;
         }
-        this.maxHeight = (float)Math.pow(e / gain, exponent) * heightScale;
+        this.gain = gain;
+        this.integralExponent = exponent >= 0 && exponent <= 16 && exponent == (int)exponent ? (int)exponent : -1;
+        this.maxHeight = shape(e);
     }
 
     @Override
@@ -41,16 +56,84 @@ public class NoiseHeightSampler extends DefaultHeightSampler {
         float nx = x / mapWidth - 0.5f;
         float nz = z / mapHeight - 0.5f;
         float e = 0;
-        float factor;
-        float gain = 0;
         for (int i = 0; i < octaves; i++) {
-            factor = 1f/(1<<i);
-            e += factor * (1f+OpenSimplex2S.noise2(seed + i, nx * waveLength * (1<<i), nz * waveLength * (1<<i)));
-            gain += factor;
+            e += octaveFactor[i] * (1f+OpenSimplex2S.noise2(seed + i, nx * waveLength * octaveFrequency[i], nz * waveLength * octaveFrequency[i]));
+        }
+        return shape(e);
+    }
+
+    @Override
+    public void getHeightAndGradient(float x, float z, float[] out) {
+        float[] gradient = this.gradient.get();
+        float nx = x / mapWidth - 0.5f;
+        float nz = z / mapHeight - 0.5f;
+        float e = 0, dx = 0, dz = 0;
+        for (int i = 0; i < octaves; i++) {
+            float frequency = waveLength * octaveFrequency[i];
+            e += octaveFactor[i] * (1f+OpenSimplex2S.noise2Gradient(seed + i, nx * waveLength * octaveFrequency[i], nz * waveLength * octaveFrequency[i], gradient));
+            dx += octaveFactor[i] * frequency * gradient[0];
+            dz += octaveFactor[i] * frequency * gradient[1];
         }
+        out[0] = shape(e);
+        // chain rule through the exponent and the normalization of the coordinates
+        float slope = exponent == 0 ? 0 : exponent * shapeWithExponent(e, exponent - 1) / gain;
+        out[1] = slope * dx / mapWidth;
+        out[2] = slope * dz / mapHeight;
+    }
+
+    private float shapeWithExponent(float e, float exponent) {
         return (float)Math.pow(e / gain, exponent) * heightScale;
     }
 
+    /**
+     * Apply the exponent and the height scale to the sum of the octaves.
+     * Integral exponents are multiplied out in double precision instead of calling Math.pow,
+     * the result differs by at most one ulp of the float result.
+     */
+    float shape(float e) {
+        double v = e / gain;
+        if (integralExponent < 0)
+            return (float)Math.pow(v, exponent) * heightScale;
+        double result = 1;
+        for (int n = integralExponent; n > 0; n >>= 1) {
+            if ((n & 1) != 0)
+                result *= v;
+            v *= v;
+        }
+        return (float)result * heightScale;
+    }
+
+    @Override
+    public void sampleGrid(float x0, float z0, float stepX, float stepZ, int nx, int nz, float[] out) {
+        // the normalized x coordinates are the same for every row
+        float[] columns = new float[nx];
+        for (int x = 0; x < nx; x++)
+            columns[x] = (x0 + x * stepX) / mapWidth - 0.5f;
+        if ((long)nx * nz * octaves < PARALLEL_THRESHOLD) {
+            sampleRows(columns, z0, stepZ, nx, 0, nz, out);
+        } else {
+            Async.parallelFor(0, nz, (from, to) -> sampleRows(columns, z0, stepZ, nx, from, to, out));
+        }
+    }
+
+    private void sampleRows(float[] columns, float z0, float stepZ, int nx, int fromRow, int toRow, float[] out) {
+        for (int z = fromRow; z < toRow; z++) {
+            float rowZ = (z0 + z * stepZ) / mapHeight - 0.5f;
+            int row = z * nx;
+            for (int x = 0; x < nx; x++)
+                out[row + x] = 0;
+            for (int i = 0; i < octaves; i++) {
+                float factor = octaveFactor[i];
+                float frequency = octaveFrequency[i];
+                float noiseZ = rowZ * waveLength * frequency;
+                for (int x = 0; x < nx; x++)
+                    out[row + x] += factor * (1f+OpenSimplex2S.noise2(seed + i, columns[x] * waveLength * frequency, noiseZ));
+            }
+            for (int x = 0; x < nx; x++)
+                out[row + x] = shape(out[row + x]);
+        }
+    }
+
     @Override
     public float getMaxHeight() {
         return maxHeight;
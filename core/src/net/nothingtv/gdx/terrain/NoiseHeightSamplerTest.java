@@ -0,0 +1,60 @@
+package net.nothingtv.gdx.terrain;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class NoiseHeightSamplerTest {
+
+    private static NoiseHeightSampler createSampler(float exponent) {
+        NoiseHeightSampler sampler = new NoiseHeightSampler(42, 1, 5, 4, exponent);
+        TerrainConfig config = new TerrainConfig(1024, 768, 1);
+        config.heightSampler = sampler;
+        sampler.init(new Terrain(config));
+        return sampler;
+    }
+
+    @Test
+    void gridMatchesPoints() {
+        NoiseHeightSampler sampler = createSampler(2);
+        // a small grid runs on the calling thread, a large one is split over the cores
+        int[][] sizes = {{17, 9}, {160, 120}};
+        for (int[] size : sizes) {
+            int nx = size[0], nz = size[1];
+            float x0 = -3.5f, z0 = 250.25f, stepX = 1.25f, stepZ = 0.75f;
+            float[] grid = new float[nx * nz];
+            sampler.sampleGrid(x0, z0, stepX, stepZ, nx, nz, grid);
+            for (int z = 0; z < nz; z++) {
+                for (int x = 0; x < nx; x++) {
+                    float h = sampler.getHeight(x0 + x * stepX, z0 + z * stepZ);
+                    assertEquals(Float.floatToIntBits(h), Float.floatToIntBits(grid[z * nx + x]), x + "/" + z);
+                }
+            }
+        }
+    }
+
+    @Test
+    void integralExponentsMatchPow() {
+        Random random = new Random(3);
+        // the octaves of the sampler sum up to 1 + 1/2 + 1/4 + 1/8 + 1/16
+        float gain = 1.9375f;
+        for (int exponent = 0; exponent <= 16; exponent++) {
+            NoiseHeightSampler sampler = createSampler(exponent);
+            for (int i = 0; i < 10000; i++) {
+                float e = random.nextFloat() * 2 * gain;
+                float expected = (float)Math.pow(e / gain, exponent);
+                float actual = sampler.shape(e);
+                assertTrue(Math.abs(expected - actual) <= Math.ulp(expected), "exponent " + exponent + " e " + e + ": " + actual + " != " + expected);
+            }
+        }
+        // other exponents still use Math.pow
+        NoiseHeightSampler sampler = createSampler(1.5f);
+        for (int i = 0; i < 1000; i++) {
+            float e = random.nextFloat() * 2 * gain;
+            assertEquals((float)Math.pow(e / gain, 1.5f), sampler.shape(e));
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package net.nothingtv.gdx.terrain;
+
+import net.nothingtv.gdx.tools.Async;
+
+import java.util.Random;
+
+/**
+ * Runs the droplets of {@link Erosion} on all cores.
+ * <p>
+ * The map is split into square tiles at least twice as large as the distance a droplet reaches. The tiles are
+ * processed in four phases like a checkerboard: within a phase only tiles with the same parity of their column and row
+ * run, so the droplets of concurrent tiles never touch the same nodes. Every phase runs a batch of droplets per tile,
+ * the phases repeat until all droplets are done.
+ * <p>
+ * Every tile has its own random stream seeded from {@link #seed} and the tile's index, the result depends only on the
+ * seed and the parameters and not on the number of threads. It differs from the sequential {@link Erosion}.
+ */
+public class ParallelErosion extends Erosion {
+
+    /**
+     * the number of droplets a tile runs in one phase
+     */
+    public int dropletsPerBatch = 64;
+
+    private Random[] tileRandoms;
+    private int tileSize;
+    private int tilesPerRow;
+    private int randomSeed;
+
+    @Override
+    public void Erode(float[] map, int mapSize, int numIterations, boolean resetSeed) {
+        Initialize(mapSize, false);
+        if (mapSize < 2)
+            return;
+        int newTileSize = Math.min(mapSize, 2 * dropletReach());
+        int newTilesPerRow = (mapSize + newTileSize - 1) / newTileSize;
+        if (resetSeed || tileRandoms == null || randomSeed != seed || newTileSize != tileSize || newTilesPerRow != tilesPerRow) {
+            tileSize = newTileSize;
+            tilesPerRow = newTilesPerRow;
+            randomSeed = seed;
+            tileRandoms = new Random[tilesPerRow * tilesPerRow];
+            for (int i = 0; i < tileRandoms.length; i++)
+                tileRandoms[i] = new Random(seed ^ (i + 1) * 0x9E3779B97F4A7C15L);
+        }
+
+        // the droplets are distributed by the area of the tiles where they can start
+        int tileCount = tilesPerRow * tilesPerRow;
+        int[] tileDroplets = new int[tileCount];
+        float startRange = mapSize - 1;
+        long assigned = 0;
+        for (int t = 0; t < tileCount; t++) {
+            tileDroplets[t] = (int) (numIterations * (double) startArea(t, mapSize) / ((double) startRange * startRange));
+            assigned += tileDroplets[t];
+        }
+        for (int t = 0; assigned < numIterations; t = (t + 1) % tileCount) {
+            if (startArea(t, mapSize) > 0) {
+                tileDroplets[t]++;
+                assigned++;
+            }
+        }
+        int maxDroplets = 0;
+        for (int droplets : tileDroplets)
+            maxDroplets = Math.max(maxDroplets, droplets);
+
+        int[][] phaseTiles = new int[4][];
+        for (int phase = 0; phase < 4; phase++) {
+            int px = phase & 1, py = phase >> 1;
+            int[] tiles = new int[((tilesPerRow + 1 - px) / 2) * ((tilesPerRow + 1 - py) / 2)];
+            int n = 0;
+            for (int ty = py; ty < tilesPerRow; ty += 2)
+                for (int tx = px; tx < tilesPerRow; tx += 2)
+                    tiles[n++] = ty * tilesPerRow + tx;
+            phaseTiles[phase] = tiles;
+        }
+
+        for (int batchStart = 0; batchStart < maxDroplets; batchStart += dropletsPerBatch) {
+            int first = batchStart;
+            for (int[] tiles : phaseTiles)
+                erodePhase(map, mapSize, tiles, tileDroplets, first);
+        }
+    }
+
+    /**
+     * Run one batch of droplets on the tiles of a phase, the tiles don't touch the same nodes so they run in parallel
+     * @param first the number of droplets the tiles ran in the batches before
+     */
+    void erodePhase(float[] map, int mapSize, int[] tiles, int[] tileDroplets, int first) {
+        Async.parallelFor(0, tiles.length, (from, to) -> {
+            DropletScratch dropletScratch = new DropletScratch(erosionBrush);
+            for (int i = from; i < to; i++)
+                erodeTile(map, mapSize, tiles[i], Math.min(dropletsPerBatch, tileDroplets[tiles[i]] - first), dropletScratch);
+        });
+    }
+
+    /**
+     * @return the area of a tile in which droplets can start
+     */
+    private float startArea(int tile, int mapSize) {
+        float startRange = mapSize - 1;
+        float x0 = (tile % tilesPerRow) * tileSize, y0 = (tile / tilesPerRow) * tileSize;
+        float width = Math.min(x0 + tileSize, startRange) - x0;
+        float height = Math.min(y0 + tileSize, startRange) - y0;
+        return width > 0 && height > 0 ? width * height : 0;
+    }
+
+    void erodeTile(float[] map, int mapSize, int tile, int droplets, DropletScratch dropletScratch) {
+        Random random = tileRandoms[tile];
+        float x0 = (tile % tilesPerRow) * tileSize, y0 = (tile / tilesPerRow) * tileSize;
+        float x1 = Math.min(x0 + tileSize, mapSize - 1), y1 = Math.min(y0 + tileSize, mapSize - 1);
+        for (int i = 0; i < droplets; i++) {
+            float posX = random.nextFloat(x0, x1);
+            float posY = random.nextFloat(y0, y1);
+            SimulateDroplet(map, mapSize, posX, posY, dropletScratch);
+        }
+    }
+}
@@ -10,6 +10,7 @@ import com.badlogic.gdx.graphics.g3d.attributes.IntAttribute;
 import com.badlogic.gdx.graphics.g3d.attributes.TextureAttribute;
 import com.badlogic.gdx.graphics.g3d.utils.ModelBuilder;
 import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.math.Matrix4;
 import com.badlogic.gdx.math.Vector3;
 import com.badlogic.gdx.math.collision.BoundingBox;
 import com.badlogic.gdx.physics.bullet.collision.*;
@@ -20,13 +21,22 @@ import com.badlogic.gdx.utils.GdxRuntimeException;
 import net.nothingtv.gdx.tools.Async;
 import net.nothingtv.gdx.tools.Physics;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
-import java.nio.ShortBuffer;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.function.BooleanSupplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -37,36 +47,69 @@ public class Terrain {
     public static class TerrainChunk implements Disposable {
         public enum ChunkState { Init, Prepared, InPreparation, Visible }
         BoundingBox boundingBox;
-        private ChunkState state;
-        long lastStateChange;
-        FloatBuffer vertexBuffer;
-        ShortBuffer indexBuffer;
-        btCollisionShape shape;
+        int chunkX, chunkZ;
+        private final AtomicReference<ChunkState> state = new AtomicReference<>(ChunkState.Init);
+        volatile long lastStateChange;
+        volatile ChunkRegistry registry;
+        ChunkShape shape;
         btCollisionObject collisionObject;
-        Future<btBvhTriangleMeshShape> futureShape;
+        Future<btCollisionShape> futureShape;
+        // counts the preparations, only the job of the current one may publish its shape
+        volatile int preparation;
+        // the collision level the chunk is prepared with and the replacement for another level
+        int lod;
+        // the number of observers whose held region contains the chunk
+        int holders;
+        Future<ChunkShape> futureLod;
+        // set when the chunk is disposed, a running job for a new collision level stops then
+        volatile boolean deleted;
+
+        public ChunkState getState() {
+            return state.get();
+        }
+
+        /**
+         * @return the estimated native and direct memory in bytes held by the chunk's collision shape
+         */
+        public long getResidentBytes() {
+            ChunkShape current = shape;
+            return current != null ? current.bytes : 0;
+        }
 
         public boolean isVisible() {
-            synchronized (this) {
-                return state == ChunkState.Visible;
-            }
+            return state.get() == ChunkState.Visible;
         }
 
         public boolean isPrepared() {
-            synchronized (this) {
-                return state == ChunkState.Visible || state == ChunkState.Prepared;
-            }
+            ChunkState current = state.get();
+            return current == ChunkState.Visible || current == ChunkState.Prepared;
         }
+
         public boolean isPreparing() {
-            synchronized (this) {
-                return state == ChunkState.InPreparation;
-            }
+            return state.get() == ChunkState.InPreparation;
         }
 
         public void setState(ChunkState newState) {
-            synchronized (this) {
-                state = newState;
-                lastStateChange = System.currentTimeMillis();
-            }
+            ChunkState oldState = state.getAndSet(newState);
+            stateChanged(oldState, newState);
+        }
+
+        /**
+         * Change the state only if it's the expected one
+         * @return true if the state was changed
+         */
+        public boolean compareAndSetState(ChunkState expected, ChunkState newState) {
+            if (!state.compareAndSet(expected, newState))
+                return false;
+            stateChanged(expected, newState);
+            return true;
+        }
+
+        private void stateChanged(ChunkState oldState, ChunkState newState) {
+            lastStateChange = System.currentTimeMillis();
+            ChunkRegistry registry = this.registry;
+            if (registry != null && oldState != newState)
+                registry.transition(oldState, newState);
         }
 
         @Override
@@ -79,6 +122,7 @@ public class Terrain {
 
         @Override
         public void dispose() {
+            deleted = true;
             if (collisionObject != null)
                 collisionObject.dispose();
             if (shape != null)
@@ -86,6 +130,58 @@ public class Terrain {
             if (futureShape != null && !futureShape.isDone()) {
                 futureShape.cancel(true);
             }
+            if (futureLod != null) {
+                // the job may finish a shape after all, it's disposed as soon as it's done
+                Future<ChunkShape> pending = futureLod;
+                if (pending.isDone())
+                    disposeResult(pending);
+                else
+                    Async.submit(() -> disposeResult(pending));
+            }
+        }
+    }
+
+    /**
+     * The collision shape of a chunk at one resolution together with the native data it uses
+     */
+    static class ChunkShape implements Disposable {
+        int lod;
+        btCollisionShape shape;
+        btStridingMeshInterface meshInterface;
+        FloatBuffer vertexBuffer;
+        GridIndices indices;
+        // the mapped cache file the buffers and the BVH of the shape live in
+        ByteBuffer cachedData;
+        // the position of the shape's origin in the world, heightfield shapes are centered
+        final Vector3 origin = new Vector3();
+        float minY, maxY;
+        // the estimated native and direct memory of the shape and the counter it's accounted in
+        long bytes;
+        AtomicLong account;
+
+        @Override
+        public void dispose() {
+            if (shape == null)
+                return;
+            shape.dispose();
+            shape = null;
+            if (meshInterface != null)
+                meshInterface.dispose();
+            if (account != null)
+                account.addAndGet(-bytes);
+        }
+    }
+
+    // rough size of the Bullet objects of a chunk besides its buffers: the shape, the mesh interface and the rigid body
+    private static final int CHUNK_OBJECT_BYTES = 2048;
+
+    private static void disposeResult(Future<ChunkShape> future) {
+        try {
+            ChunkShape shape = future.get();
+            if (shape != null)
+                shape.dispose();
+        } catch (Exception e) {
+            // nothing was created
         }
     }
 
@@ -95,16 +191,29 @@ public class Terrain {
     private HeightSampler heightSampler;
     public TerrainConfig config;
     private TerrainInstance modelInstance;
-    private final ConcurrentHashMap<Long, TerrainChunk> chunks = new ConcurrentHashMap<>();
-    private final List<Long> toBeRemoved = new ArrayList<>();
-    private final Vector3 tmpPos = new Vector3();
-    private float minHeight = 0f;
+    private Texture splatTexture;
+    private HeightPyramid heightPyramid;
+    private final ChunkRegistry chunks = new ChunkRegistry();
+    // chunks in the physics world and prepared chunks outside of it in the order they got there
+    private final List<TerrainChunk> visibleChunks = new ArrayList<>();
+    private final LinkedHashSet<TerrainChunk> idleChunks = new LinkedHashSet<>();
+    // chunks whose preparation finished on a worker thread, they are moved to the idle chunks if they aren't activated
+    private final Queue<TerrainChunk> preparedChunks = new ConcurrentLinkedQueue<>();
+    private final List<TerrainObserver> observers = new ArrayList<>();
+    private TerrainObserver defaultObserver;
+    private final List<TerrainChunk> lodCandidates = new ArrayList<>();
+    private final AtomicLong residentBytes = new AtomicLong();
+    private final LongAccumulator peakResidentBytes = new LongAccumulator(Math::max, 0);
+    private final AtomicLong evictions = new AtomicLong();
+    private volatile ChunkShapeCache shapeCache;
+    private final ThreadLocal<float[]> heightAndGradient = ThreadLocal.withInitial(() -> new float[3]);
+    // the x and z coordinates of point batches in vertex space, grown as needed
+    private final ThreadLocal<float[][]> scaledPoints = ThreadLocal.withInitial(() -> new float[2][0]);
 
     public Terrain(TerrainConfig config) {
         this.config = config;
         if (config.heightSampler instanceof DefaultHeightSampler defaultHeightSampler)
             defaultHeightSampler.terrain = this;
-        minHeight = config.heightSampler.getMinHeight();
     }
 
     public float getMinHeight() {
@@ -155,7 +264,11 @@ public class Terrain {
         ModelBuilder modelBuilder = new ModelBuilder();
         Model dummyModel = modelBuilder.createBox(config.width, 1f, config.height, material, VertexAttributes.Usage.Position|VertexAttributes.Usage.Normal|VertexAttributes.Usage.TextureCoordinates);
 
-        modelInstance = new TerrainInstance(dummyModel, this);
+        modelInstance = switch (config.renderMode) {
+            case Clipmap -> new ClipmapTerrainInstance(dummyModel, this);
+            case Cdlod -> new CdlodTerrainInstance(dummyModel, this);
+            default -> new TerrainInstance(dummyModel, this);
+        };
         return modelInstance;
     }
 
@@ -178,60 +291,141 @@ public class Terrain {
         if (config.chunkEdgeLength == 0) {
             config.chunkEdgeLength = config.width * config.scale / config.terrainDivideFactor;
         }
+        if (config.chunkCacheDirectory != null && config.collisionMode == TerrainConfig.CollisionMode.TriangleMesh && shapeCache == null) {
+            try {
+                shapeCache = new ChunkShapeCache(config.chunkCacheDirectory, ChunkShapeCache.fingerprint(this));
+            } catch (IOException e) {
+                System.err.println("cannot use the terrain chunk cache");
+                LOG.log(Level.WARNING, "Cannot use the terrain chunk cache in " + config.chunkCacheDirectory, e);
+            }
+        }
         ensureChunkLoaded(pos, true);
     }
 
+    /**
+     * @return the Morton code of the chunk coordinates at the given world position
+     */
     public long chunkKey(float x, float z) {
-        int cz = (int)Math.floor(z / config.chunkEdgeLength);
-        int cx = (int)Math.floor(x / config.chunkEdgeLength);
-        return (cz < 0 ? 1000000000000000L : 0L) | (Math.abs(cz) & 0xfffffffL) << 62 | (cx < 0 ? 10000000L : 0L) | (Math.abs(cx) & 0xfffffff);
+        return ChunkRegistry.mortonKey(chunkCoordinate(x), chunkCoordinate(z));
+    }
+
+    int chunkCoordinate(float v) {
+        return (int)Math.floor(v / config.chunkEdgeLength);
+    }
+
+    public ChunkRegistry getChunks() {
+        return chunks;
+    }
+
+    /**
+     * @return the disk cache of the chunk shapes or null if it's not used
+     */
+    public ChunkShapeCache getShapeCache() {
+        return shapeCache;
     }
 
     private TerrainChunk getChunkAt(Vector3 pos) {
-        return chunks.get(chunkKey(pos.x, pos.z));
+        return chunks.get(chunkCoordinate(pos.x), chunkCoordinate(pos.z));
     }
 
     public void ensureChunkLoaded(Vector3 pos, boolean waitForIt) {
         TerrainChunk chunk = getChunkAt(pos);
         if (chunk != null && chunk.isVisible())
             return;
-        if (chunk == null) {
-            chunk = new TerrainChunk();
-            float chunkX = config.chunkEdgeLength * (int)Math.floor(pos.x / config.chunkEdgeLength);
-            float chunkZ = config.chunkEdgeLength * (int)Math.floor(pos.z / config.chunkEdgeLength);
-            Vector3 min = new Vector3(chunkX, pos.y-1, chunkZ);
-            Vector3 max = new Vector3(chunkX + config.chunkEdgeLength, pos.y+1, chunkZ + config.chunkEdgeLength);
-            chunk.boundingBox = new BoundingBox(min, max);
-            chunk.setState(TerrainChunk.ChunkState.Init);
-            long key = chunkKey(pos.x, pos.z);
-            if (!chunk.boundingBox.contains(pos)) {
-                System.err.printf("bounding box %s is wrong, does not contain %s%n", chunk.boundingBox, pos);
-            }
-            if (chunks.containsKey(key)) {
-                System.err.println("duplicate key in terrain chunks");
-                throw new GdxRuntimeException("duplicate key in terrain chunks");
-            }
-            chunks.put(key, chunk);
-        }
+        if (chunk == null)
+            chunk = getOrCreateChunk(chunkCoordinate(pos.x), chunkCoordinate(pos.z), pos.y);
         loadChunk(chunk, waitForIt);
     }
 
+    /**
+     * Get the chunk at the chunk coordinates, a new chunk in state Init is registered if there is none yet
+     * @param y the height used for the bounding box until the chunk is prepared
+     */
+    TerrainChunk getOrCreateChunk(int chunkX, int chunkZ, float y) {
+        TerrainChunk chunk = chunks.get(chunkX, chunkZ);
+        if (chunk != null)
+            return chunk;
+        chunk = new TerrainChunk();
+        chunk.chunkX = chunkX;
+        chunk.chunkZ = chunkZ;
+        float x = config.chunkEdgeLength * chunkX;
+        float z = config.chunkEdgeLength * chunkZ;
+        Vector3 min = new Vector3(x, y-1, z);
+        Vector3 max = new Vector3(x + config.chunkEdgeLength, y+1, z + config.chunkEdgeLength);
+        chunk.boundingBox = new BoundingBox(min, max);
+        // the pyramid knows the height range before the chunk is prepared, if it covers the whole chunk
+        if (heightPyramid != null)
+            heightPyramid.getBounds(x, z, x + config.chunkEdgeLength, z + config.chunkEdgeLength, chunk.boundingBox);
+        for (TerrainObserver observer : observers) {
+            if (observer.holds(chunkX, chunkZ))
+                chunk.holders++;
+        }
+        if (!chunks.add(chunk)) {
+            System.err.println("duplicate key in terrain chunks");
+            throw new GdxRuntimeException("duplicate key in terrain chunks");
+        }
+        return chunk;
+    }
+
+    /**
+     * Submit the preparation of a chunk in state Init. A cancelled job of the chunk may still be running, it
+     * belongs to an older preparation and discards its result.
+     * @return true if the preparation was submitted
+     */
+    boolean requestPreparation(TerrainChunk chunk) {
+        synchronized (chunk) {
+            if (!chunk.compareAndSetState(TerrainChunk.ChunkState.Init, TerrainChunk.ChunkState.InPreparation))
+                return false;
+            idleChunks.remove(chunk);
+            int preparation = ++chunk.preparation;
+            chunk.lod = collisionLod(chunk);
+            chunk.futureShape = prepareChunkAsync(chunk, preparation);
+            return true;
+        }
+    }
+
+    /**
+     * Stop the preparation of a chunk, a job that already runs discards its result. The chunk is idle then and
+     * deleted like an unloaded chunk unless it's requested again.
+     * @return true if the chunk was in preparation
+     */
+    boolean cancelPreparation(TerrainChunk chunk) {
+        Future<btCollisionShape> running;
+        synchronized (chunk) {
+            if (!chunk.compareAndSetState(TerrainChunk.ChunkState.InPreparation, TerrainChunk.ChunkState.Init))
+                return false;
+            running = chunk.futureShape;
+        }
+        if (running != null)
+            running.cancel(false);
+        idleChunks.add(chunk);
+        return true;
+    }
+
     protected void loadChunk(TerrainChunk chunk, boolean waitForIt) {
         if (chunk.isVisible()) return;
         //System.out.printf("loading chunk %s (%d/%d), waiting=%s%n", chunk, (int)(chunk.boundingBox.getCenterX() / config.chunkEdgeLength), (int)(chunk.boundingBox.getCenterZ() / config.chunkEdgeLength), waitForIt);
         if (!chunk.isPrepared()) {
-            if (!chunk.isPreparing()) {
-                chunk.futureShape = prepareChunkAsync(chunk);
-            }
+            requestPreparation(chunk);
             if (!waitForIt)
                 return;
-            try {
-                chunk.futureShape.get();
-            } catch (Exception e) {
-                System.err.println("cannot prepare terrain chunk");
-                LOG.log(Level.WARNING, "Cannot prepare terrain chunk", e);
+            // a cancelled preparation is followed by a new one, the cancelled job can't publish its shape anymore
+            while (!chunk.isPrepared()) {
+                if (!chunk.isPreparing())
+                    requestPreparation(chunk);
+                try {
+                    chunk.futureShape.get();
+                } catch (CancellationException e) {
+                    // submitted again above
+                } catch (Exception e) {
+                    System.err.println("cannot prepare terrain chunk");
+                    LOG.log(Level.WARNING, "Cannot prepare terrain chunk", e);
+                    return;
+                }
             }
         }
+        if (chunk.isVisible())
+            return;
         activateChunk(chunk);
     }
 
@@ -242,90 +436,395 @@ public class Terrain {
             return;
         }
         //System.out.printf("activate chunk %s%n", chunk);
-        Vector3 localInertia = new Vector3();
-        chunk.shape.calculateLocalInertia(0, localInertia);
-        btRigidBody.btRigidBodyConstructionInfo info = new btRigidBody.btRigidBodyConstructionInfo(0, null, chunk.shape, localInertia);
-        btRigidBody rigidBody = new btRigidBody(info);
-        rigidBody.userData = chunk;
+        btRigidBody rigidBody = createRigidBody(chunk, chunk.shape);
+        if (chunk.collisionObject != null)
+            chunk.collisionObject.dispose();
         if (Physics.currentPhysicsWorld != null)
             Physics.currentPhysicsWorld.addRigidBody(rigidBody);
-        info.dispose();
         chunk.collisionObject = rigidBody;
         chunk.setState(TerrainChunk.ChunkState.Visible);
+        idleChunks.remove(chunk);
+        visibleChunks.add(chunk);
     }
 
-    protected Future<btBvhTriangleMeshShape> prepareChunkAsync(TerrainChunk chunk) {
-        chunk.setState(TerrainChunk.ChunkState.InPreparation);
-        return Async.submit(() -> prepareChunk(chunk));
+    private btRigidBody createRigidBody(TerrainChunk chunk, ChunkShape shape) {
+        Vector3 localInertia = new Vector3();
+        shape.shape.calculateLocalInertia(0, localInertia);
+        btRigidBody.btRigidBodyConstructionInfo info = new btRigidBody.btRigidBodyConstructionInfo(0, null, shape.shape, localInertia);
+        btRigidBody rigidBody = new btRigidBody(info);
+        if (!shape.origin.isZero())
+            rigidBody.setWorldTransform(new Matrix4().setToTranslation(shape.origin));
+        rigidBody.userData = chunk;
+        info.dispose();
+        return rigidBody;
     }
 
-    protected btBvhTriangleMeshShape prepareChunk(TerrainChunk chunk) {
-        chunk.setState(TerrainChunk.ChunkState.InPreparation);
-        // for physics we need the position only
-        int vertexSize = 3;
+    /**
+     * Start preparing the chunk on a worker thread, the caller has moved the chunk to InPreparation already
+     * @param preparation the number of the preparation the job belongs to
+     */
+    protected Future<btCollisionShape> prepareChunkAsync(TerrainChunk chunk, int preparation) {
+        return Async.submit(() -> prepareChunk(chunk, preparation));
+    }
+
+    /**
+     * Create the shape of a chunk and publish it if the preparation is still the chunk's current one
+     * @param preparation the number of the preparation the job belongs to
+     * @return the shape or null if the preparation was cancelled
+     */
+    protected btCollisionShape prepareChunk(TerrainChunk chunk, int preparation) {
+        ChunkShape shape = createShape(chunk, chunk.lod, () -> chunk.isPreparing() && chunk.preparation == preparation);
+        if (shape == null)
+            return null;
+        synchronized (chunk) {
+            if (chunk.isPreparing() && chunk.preparation == preparation) {
+                chunk.shape = shape;
+                chunk.boundingBox.min.y = shape.minY;
+                chunk.boundingBox.max.y = shape.maxY;
+                chunk.boundingBox.update();
+                chunk.setState(TerrainChunk.ChunkState.Prepared);
+                preparedChunks.add(chunk);
+                return shape.shape;
+            }
+        }
+        // cancelled while it was prepared, another preparation may run for the chunk already
+        shape.dispose();
+        return null;
+    }
+
+    /**
+     * Create the collision shape of a chunk at a collision level
+     * @param lod the collision level, level n has chunkResolution / 2^n vertices per unit
+     * @param wanted checked before the expensive part, the shape isn't created anymore if it returns false
+     * @return the shape or null if it's not wanted anymore
+     */
+    protected ChunkShape createShape(TerrainChunk chunk, int lod, BooleanSupplier wanted) {
+        float resolution = config.chunkResolution / (1 << lod);
         // how many vertices should be used
-        int vy = MathUtils.ceil(config.chunkEdgeLength * config.chunkResolution)+1;
-        int vx = MathUtils.ceil(config.chunkEdgeLength * config.chunkResolution)+1;
+        int cells = Math.max(1, MathUtils.ceil(config.chunkEdgeLength * resolution));
+        int vx = cells + 1;
+        int vy = cells + 1;
+        float step = config.chunkEdgeLength / cells;
 
-        FloatBuffer vb = BufferUtils.newFloatBuffer(vx * vy * vertexSize);
+        ChunkShapeCache cache = config.collisionMode == TerrainConfig.CollisionMode.TriangleMesh ? shapeCache : null;
+        ChunkShapeCache.Entry cached = cache != null ? cache.load(this, chunk.chunkX, chunk.chunkZ, resolution, vx, vy) : null;
+        if (cached != null)
+            return account(createCachedShape(chunk, cached, lod, vx, vy));
+
+        float[] heights = new float[vx * vy];
+        getHeightsAt(chunk.boundingBox.min.x, chunk.boundingBox.min.z, step, step, vx, vy, heights);
+        if (!wanted.getAsBoolean())
+            return null;
 
         float minY = Float.MAX_VALUE;
         float maxY = -Float.MAX_VALUE;
+        for (float h : heights) {
+            minY = Math.min(minY, h);
+            maxY = Math.max(maxY, h);
+        }
+
+        ChunkShape shape = new ChunkShape();
+        shape.lod = lod;
+        shape.minY = minY;
+        shape.maxY = maxY;
+        if (config.collisionMode == TerrainConfig.CollisionMode.Heightfield)
+            createHeightfieldShape(chunk, shape, heights, vx, vy, step);
+        else
+            createTriangleMeshShape(chunk, shape, heights, vx, vy, step);
+        if (cache != null && shape.shape instanceof btBvhTriangleMeshShape meshShape) {
+            try {
+                cache.store(chunk.chunkX, chunk.chunkZ, resolution, vx, vy, shape.vertexBuffer, meshShape.getOptimizedBvh(), minY, maxY);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Cannot store terrain chunk " + chunk.chunkX + "/" + chunk.chunkZ, e);
+            }
+        }
+        return account(shape);
+    }
+
+    /**
+     * Estimate the memory of a new shape and add it to the resident bytes of the terrain. The shared indices are
+     * not counted, mapped cache files are counted with their full size.
+     */
+    private ChunkShape account(ChunkShape shape) {
+        long bytes = CHUNK_OBJECT_BYTES;
+        if (shape.cachedData != null)
+            bytes += shape.cachedData.capacity();
+        else if (shape.vertexBuffer != null)
+            bytes += (long) shape.vertexBuffer.capacity() * Float.BYTES;
+        if (shape.cachedData == null && shape.shape instanceof btBvhTriangleMeshShape meshShape)
+            bytes += meshShape.getOptimizedBvh().calculateSerializeBufferSize();
+        shape.bytes = bytes;
+        shape.account = residentBytes;
+        peakResidentBytes.accumulate(residentBytes.addAndGet(bytes));
+        return shape;
+    }
+
+    private void createTriangleMeshShape(TerrainChunk chunk, ChunkShape shape, float[] heights, int vx, int vy, float step) {
+        // for physics we need the position only
+        int vertexSize = 3;
+        FloatBuffer vb = BufferUtils.newFloatBuffer(vx * vy * vertexSize);
+        int hi = 0;
         for (int z = 0; z < vy; z++) {
-            float worldZ = z * config.chunkResolution + chunk.boundingBox.min.z;
+            float worldZ = z * step + chunk.boundingBox.min.z;
             for (int x = 0; x < vx; x++) {
-                float worldX = x * config.chunkResolution + chunk.boundingBox.min.x;
-                float worldY = getHeightAt(worldX, worldZ);
+                float worldX = x * step + chunk.boundingBox.min.x;
                 vb.put(worldX);
-                vb.put(worldY);
+                vb.put(heights[hi++]);
                 vb.put(worldZ);
-                minY = Math.min(minY, worldY);
-                maxY = Math.max(maxY, worldY);
             }
         }
         vb.flip();
 
-        ShortBuffer ib = BufferUtils.newShortBuffer((vx-1) * (vy-1) * 6);
-        for (int z = 0; z < vy-1; z++) {
-            for (int x = 0; x < vx-1; x++) {
-                ib.put((short)(x + vx*z));
-                ib.put((short)(x + vx*(z+1)));
-                ib.put((short)(x+1 + vx*z));
-                ib.put((short)(x+1 + vx*z));
-                ib.put((short)(x + vx*(z+1)));
-                ib.put((short)(x+1 + vx*(z+1)));
+        shape.vertexBuffer = vb;
+        shape.meshInterface = createMeshInterface(chunk, shape, vx, vy);
+        shape.shape = new btBvhTriangleMeshShape(shape.meshInterface, true);
+    }
+
+    /**
+     * The vertices are the shape's own, the indices are shared by all shapes of the same size
+     */
+    private static btTriangleIndexVertexArray createMeshInterface(TerrainChunk chunk, ChunkShape shape, int vx, int vy) {
+        shape.indices = GridIndices.get(vx, vy);
+        btIndexedMesh btMesh = new btIndexedMesh();
+        btMesh.tag = chunk;
+        btMesh.setVertices(shape.vertexBuffer, 3 * 4, vx * vy, 0);
+        shape.indices.apply(btMesh);
+        btTriangleIndexVertexArray va = new btTriangleIndexVertexArray();
+        va.addIndexedMesh(btMesh, shape.indices.indexType());
+        return va;
+    }
+
+    /**
+     * Create the shape from a cache entry, the BVH is used where it was mapped, so the entry is kept in the shape
+     */
+    private ChunkShape createCachedShape(TerrainChunk chunk, ChunkShapeCache.Entry entry, int lod, int vx, int vy) {
+        ChunkShape shape = new ChunkShape();
+        shape.lod = lod;
+        shape.vertexBuffer = entry.vertices;
+        shape.cachedData = entry.data;
+        shape.minY = entry.minY;
+        shape.maxY = entry.maxY;
+        shape.meshInterface = createMeshInterface(chunk, shape, vx, vy);
+        btBvhTriangleMeshShape meshShape = new btBvhTriangleMeshShape(shape.meshInterface, true, false);
+        btOptimizedBvh bvh = btOptimizedBvh.deSerializeInPlace(entry.bvhAddress(), entry.bvhData.capacity(), false);
+        if (bvh != null)
+            meshShape.setOptimizedBvh(bvh);
+        else
+            meshShape.buildOptimizedBvh();
+        shape.shape = meshShape;
+        return shape;
+    }
+
+    /**
+     * Bullet reads the heights from the buffer while the shape lives, so the buffer is kept in the shape.
+     * The shape is centered around its origin, the rigid body is moved to the center of the chunk when it's activated.
+     */
+    private void createHeightfieldShape(TerrainChunk chunk, ChunkShape shape, float[] heights, int vx, int vy, float step) {
+        FloatBuffer hb = BufferUtils.newFloatBuffer(vx * vy);
+        hb.put(heights);
+        hb.flip();
+        // same diagonal as the triangle mesh without flipped quad edges
+        btHeightfieldTerrainShape heightfield = new btHeightfieldTerrainShape(vx, vy, hb, 1f, shape.minY, shape.maxY, 1, false);
+        heightfield.setLocalScaling(new Vector3(step, 1, step));
+        shape.shape = heightfield;
+        shape.vertexBuffer = hb;
+        shape.origin.set(chunk.boundingBox.min.x + (vx - 1) * step / 2, (shape.minY + shape.maxY) / 2, chunk.boundingBox.min.z + (vy - 1) * step / 2);
+    }
+
+    /**
+     * Get the collision level a chunk should have from its distance to the closest observer. Inside a band of
+     * chunkLodHysteresis around the level distances the chunk keeps the level it has, so an observer walking along
+     * a boundary doesn't rebuild chunks over and over.
+     * @return 0 for the full resolution up to chunkCollisionLods - 1
+     */
+    int collisionLod(TerrainChunk chunk) {
+        int levels = config.chunkCollisionLods;
+        if (levels <= 1)
+            return 0;
+        float distance = observerDistance(chunk);
+        int current = chunk.shape != null ? chunk.shape.lod : chunk.lod;
+        int lod = 0;
+        float threshold = config.chunkLodDistance;
+        while (lod < levels - 1) {
+            float band = current > lod ? 1 - config.chunkLodHysteresis : 1 + config.chunkLodHysteresis;
+            if (distance <= threshold * band)
+                break;
+            lod++;
+            threshold *= 2;
+        }
+        return lod;
+    }
+
+    /**
+     * @return the distance from the chunk's area to the closest observer, 0 if there is none
+     */
+    private float observerDistance(TerrainChunk chunk) {
+        if (observers.isEmpty())
+            return 0;
+        BoundingBox box = chunk.boundingBox;
+        float closest = Float.MAX_VALUE;
+        for (TerrainObserver observer : observers) {
+            Vector3 pos = observer.position;
+            float dx = Math.max(0, Math.max(box.min.x - pos.x, pos.x - box.max.x));
+            float dz = Math.max(0, Math.max(box.min.z - pos.z, pos.z - box.max.z));
+            closest = Math.min(closest, dx * dx + dz * dz);
+        }
+        return (float)Math.sqrt(closest);
+    }
+
+    /**
+     * Rebuild the chunks in the physics world whose collision level doesn't fit their distance anymore.
+     * The new shapes are created on worker threads, the closest chunks first, and replace the old ones here
+     * between two simulation steps, the old body is removed and the new one added in the same call.
+     */
+    protected void updateCollisionLods() {
+        if (config.chunkCollisionLods <= 1)
+            return;
+        int running = 0;
+        lodCandidates.clear();
+        for (TerrainChunk chunk : visibleChunks) {
+            if (chunk.futureLod != null) {
+                if (!chunk.futureLod.isDone()) {
+                    running++;
+                    continue;
+                }
+                swapShape(chunk, chunk.futureLod);
+                chunk.futureLod = null;
             }
+            if (collisionLod(chunk) != chunk.shape.lod)
+                lodCandidates.add(chunk);
         }
-        ib.flip();
+        if (lodCandidates.isEmpty() || running >= config.chunkMaxInFlight)
+            return;
+        // a finer level needs more memory, only coarser ones are built while the budget is exceeded
+        if (isOverBudget())
+            lodCandidates.removeIf(chunk -> collisionLod(chunk) < chunk.shape.lod);
+        lodCandidates.sort(Comparator.comparingDouble(this::observerDistance));
+        for (int i = 0; i < lodCandidates.size() && running < config.chunkMaxInFlight; i++, running++) {
+            TerrainChunk chunk = lodCandidates.get(i);
+            int lod = collisionLod(chunk);
+            chunk.lod = lod;
+            chunk.futureLod = Async.submit(() -> createShape(chunk, lod, () -> chunk.isPrepared() && !chunk.deleted));
+        }
+    }
 
-        btTriangleIndexVertexArray va = new btTriangleIndexVertexArray();
-        btIndexedMesh btMesh = new btIndexedMesh();
-        btMesh.set(chunk, vb, vertexSize * 4, vx * vy, 0, ib, 0, ib.limit());
-        va.addIndexedMesh(btMesh, PHY_ScalarType.PHY_SHORT);
-        btBvhTriangleMeshShape shape = new btBvhTriangleMeshShape(va, true);
-        chunk.vertexBuffer = vb;
-        chunk.indexBuffer = ib;
-        chunk.shape = shape;
-
-        chunk.boundingBox.min.y = minY;
-        chunk.boundingBox.max.y = maxY;
+    private void swapShape(TerrainChunk chunk, Future<ChunkShape> future) {
+        ChunkShape next;
+        try {
+            next = future.get();
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Cannot change the collision level of terrain chunk " + chunk.chunkX + "/" + chunk.chunkZ, e);
+            return;
+        }
+        if (next == null)
+            return;
+        if (!chunk.isVisible()) {
+            next.dispose();
+            return;
+        }
+        btRigidBody rigidBody = createRigidBody(chunk, next);
+        if (Physics.currentPhysicsWorld != null) {
+            Physics.currentPhysicsWorld.removeCollisionObject(chunk.collisionObject);
+            Physics.currentPhysicsWorld.addRigidBody(rigidBody);
+        }
+        chunk.collisionObject.dispose();
+        chunk.shape.dispose();
+        chunk.collisionObject = rigidBody;
+        chunk.shape = next;
+        chunk.boundingBox.min.y = next.minY;
+        chunk.boundingBox.max.y = next.maxY;
         chunk.boundingBox.update();
+    }
 
-        chunk.setState(TerrainChunk.ChunkState.Prepared);
-        return shape;
+    public HeightPyramid getHeightPyramid() {
+        return heightPyramid;
+    }
+
+    /**
+     * Set the pyramid used for the bounding boxes of chunks that are not prepared yet
+     * @param heightPyramid a pyramid over this terrain or null
+     */
+    public void setHeightPyramid(HeightPyramid heightPyramid) {
+        this.heightPyramid = heightPyramid;
     }
 
     public float getHeightAt(float x, float z) {
         return getHeightSampler().getHeight(x / config.scale, z / config.scale);
     }
 
+    /**
+     * Get the heights of a regular grid in world coordinates, row by row with x varying fastest
+     * @param x0 the x coordinate of the first sample
+     * @param z0 the z coordinate of the first sample
+     * @param stepX the distance between two samples of a row
+     * @param stepZ the distance between two rows
+     * @param nx the number of samples per row
+     * @param nz the number of rows
+     * @param out receives the nx*nz heights
+     */
+    public void getHeightsAt(float x0, float z0, float stepX, float stepZ, int nx, int nz, float[] out) {
+        float scale = config.scale;
+        getHeightSampler().sampleGrid(x0 / scale, z0 / scale, stepX / scale, stepZ / scale, nx, nz, out);
+    }
+
+    /**
+     * Get the heights at arbitrary locations in world coordinates
+     * @param xs the x coordinates
+     * @param zs the z coordinates
+     * @param count the number of locations
+     * @param out receives the count heights
+     */
+    public void getHeightsAt(float[] xs, float[] zs, int count, float[] out) {
+        getHeightsAt(xs, zs, count, 0, out);
+    }
+
+    /**
+     * Get the heights at arbitrary locations in world coordinates that are about footprint units apart,
+     * samplers with levels of detail may use a coarser level for them
+     * @param xs the x coordinates
+     * @param zs the z coordinates
+     * @param count the number of locations
+     * @param footprint the distance between neighbouring samples in world units
+     * @param out receives the count heights
+     */
+    public void getHeightsAt(float[] xs, float[] zs, int count, float footprint, float[] out) {
+        float scale = config.scale;
+        if (scale != 1) {
+            float[][] scaled = scaledPoints.get();
+            if (scaled[0].length < count) {
+                scaled[0] = new float[count];
+                scaled[1] = new float[count];
+            }
+            float[] scaledX = scaled[0];
+            float[] scaledZ = scaled[1];
+            for (int i = 0; i < count; i++) {
+                scaledX[i] = xs[i] / scale;
+                scaledZ[i] = zs[i] / scale;
+            }
+            xs = scaledX;
+            zs = scaledZ;
+        }
+        getHeightSampler().samplePoints(xs, zs, count, footprint / scale, out);
+    }
+
     public void getNormalAt(float x, float z, Vector3 out) {
-        float d = 1f;
-        float l = getHeightAt(x-d, z) - minHeight;
-        float r = getHeightAt(x+d, z) - minHeight;
-        float t = getHeightAt(x, z-d) - minHeight;
-        float b = getHeightAt(x, z+d) - minHeight;
-        out.set(-2 * (r-l), 4, -2 * (b-t)).nor();
+        getHeightAndNormalAt(x, z, out);
+    }
+
+    /**
+     * Get the height and the normal at a location in world coordinates from one height and gradient sample
+     * @param x the x coordinate
+     * @param z the z coordinate
+     * @param normal receives the normal
+     * @return the height
+     */
+    public float getHeightAndNormalAt(float x, float z, Vector3 normal) {
+        float[] sample = heightAndGradient.get();
+        float scale = config.scale;
+        getHeightSampler().getHeightAndGradient(x / scale, z / scale, sample);
+        // the gradient is in vertex space, the normal in world space
+        normal.set(-sample[1] / scale, 1, -sample[2] / scale).nor();
+        return sample[0];
     }
 
     public int getSplatAt(float x, float z) {
@@ -338,57 +837,226 @@ public class Terrain {
         Texture alpha = new Texture(pixmap);
         alpha.setFilter(Texture.TextureFilter.Linear, Texture.TextureFilter.Linear);
         ((TextureAttribute)modelInstance.materials.first().get(TerrainTextureAttribute.Alpha1)).textureDescription.texture = alpha;
+        // a texture created here before is replaced, the one from the configuration is owned by the caller
+        if (splatTexture != null)
+            splatTexture.dispose();
+        splatTexture = alpha;
     }
 
-    public void update(Vector3 pos) {
-        // check for neighboring terrain chunks
-        TerrainChunk currentChunk = getChunkAt(pos);
-        if (currentChunk == null) {
-            System.err.printf("Found no current terrain chunk for %s!%n", pos);
+    /**
+     * Upload a part of a changed splat map, the whole map is set if its size differs from the current one
+     * @param pixmap the splat map
+     * @param x the first column of the changed part
+     * @param y the first row of the changed part
+     * @param width the number of changed columns
+     * @param height the number of changed rows
+     */
+    public void updateSplatMap(Pixmap pixmap, int x, int y, int width, int height) {
+        TextureAttribute attribute = (TextureAttribute)modelInstance.materials.first().get(TerrainTextureAttribute.Alpha1);
+        Texture alpha = attribute == null ? null : attribute.textureDescription.texture;
+        if (alpha == null || alpha.getWidth() != pixmap.getWidth() || alpha.getHeight() != pixmap.getHeight()) {
+            setSplatMap(pixmap);
+            return;
+        }
+        if (width <= 0 || height <= 0)
+            return;
+        Pixmap part = new Pixmap(width, height, pixmap.getFormat());
+        part.setBlending(Pixmap.Blending.None);
+        part.drawPixmap(pixmap, x, y, width, height, 0, 0, width, height);
+        alpha.draw(part, x, y);
+        part.dispose();
+    }
+
+    /**
+     * Register someone who needs the chunks around a position in the physics world
+     * @param loadDistance the distance at which chunks are loaded
+     * @param unloadDistance the distance at which chunks are released again, it should be larger than the load distance
+     * @return the observer, its position is set with {@link TerrainObserver#setPosition(Vector3)}
+     */
+    public TerrainObserver addObserver(float loadDistance, float unloadDistance) {
+        TerrainObserver observer = new TerrainObserver(this, loadDistance, unloadDistance);
+        observers.add(observer);
+        return observer;
+    }
+
+    /**
+     * Remove an observer, the chunks only it held are unloaded on the next update
+     */
+    public void removeObserver(TerrainObserver observer) {
+        if (observers.remove(observer))
+            releaseChunks(observer);
+        if (observer == defaultObserver)
+            defaultObserver = null;
+    }
+
+    public List<TerrainObserver> getObservers() {
+        return observers;
+    }
+
+    /**
+     * @return the observer used by {@link #update(Vector3)}, it's created with the distances of the configuration
+     */
+    public TerrainObserver getDefaultObserver() {
+        if (defaultObserver == null)
+            defaultObserver = addObserver(config.chunkLoadDistance, config.chunkUnloadDistance);
+        return defaultObserver;
+    }
+
+    /**
+     * Drop the references of an observer on the chunks of its held region
+     */
+    void releaseChunks(TerrainObserver observer) {
+        if (!observer.placed)
+            return;
+        observer.placed = false;
+        int cx = observer.chunkX;
+        int cz = observer.chunkZ;
+        int radius = observer.holdRadius;
+        chunks.forEachInRect(cx - radius, cz - radius, cx + radius, cz + radius, chunk -> {
+            if (TerrainObserver.holds(cx, cz, radius, chunk.chunkX, chunk.chunkZ))
+                chunk.holders--;
+        });
+    }
+
+    /**
+     * Move the held region of an observer to the chunk it is in now. Only the chunks of both the old and the new
+     * region are visited and only the ones that entered or left the region change their count.
+     */
+    void moveObserver(TerrainObserver observer) {
+        int cx = chunkCoordinate(observer.position.x);
+        int cz = chunkCoordinate(observer.position.z);
+        int radius = TerrainObserver.holdRadius(observer.loadDistance, observer.unloadDistance, config.chunkEdgeLength);
+        if (observer.placed && observer.chunkX == cx && observer.chunkZ == cz && observer.holdRadius == radius)
             return;
+        int oldX = observer.chunkX;
+        int oldZ = observer.chunkZ;
+        int oldRadius = observer.holdRadius;
+        boolean overlapping = observer.placed && Math.max(Math.abs(cx - oldX), Math.abs(cz - oldZ)) <= radius + oldRadius;
+        if (!overlapping) {
+            releaseChunks(observer);
+            chunks.forEachInRect(cx - radius, cz - radius, cx + radius, cz + radius, chunk -> {
+                if (TerrainObserver.holds(cx, cz, radius, chunk.chunkX, chunk.chunkZ))
+                    chunk.holders++;
+            });
+        } else {
+            chunks.forEachInRect(Math.min(cx - radius, oldX - oldRadius), Math.min(cz - radius, oldZ - oldRadius),
+                    Math.max(cx + radius, oldX + oldRadius), Math.max(cz + radius, oldZ + oldRadius), chunk -> {
+                boolean held = TerrainObserver.holds(oldX, oldZ, oldRadius, chunk.chunkX, chunk.chunkZ);
+                if (held != TerrainObserver.holds(cx, cz, radius, chunk.chunkX, chunk.chunkZ))
+                    chunk.holders += held ? -1 : 1;
+            });
         }
-        tmpPos.set(pos).add(0, 0, -config.chunkLoadDistance);
-        ensureChunkLoaded(tmpPos, false);
-        tmpPos.set(pos).add(0, 0, config.chunkLoadDistance);
-        ensureChunkLoaded(tmpPos, false);
-        tmpPos.set(pos).add(config.chunkLoadDistance, 0, -config.chunkLoadDistance);
-        ensureChunkLoaded(tmpPos, false);
-        tmpPos.set(pos).add(config.chunkLoadDistance, 0, 0);
-        ensureChunkLoaded(tmpPos, false);
-        tmpPos.set(pos).add(config.chunkLoadDistance, 0, config.chunkLoadDistance);
-        ensureChunkLoaded(tmpPos, false);
-        tmpPos.set(pos).add(-config.chunkLoadDistance, 0, -config.chunkLoadDistance);
-        ensureChunkLoaded(tmpPos, false);
-        tmpPos.set(pos).add(-config.chunkLoadDistance, 0, 0);
-        ensureChunkLoaded(tmpPos, false);
-        tmpPos.set(pos).add(-config.chunkLoadDistance, 0, config.chunkLoadDistance);
-        ensureChunkLoaded(tmpPos, false);
-        checkLoadedChunks(pos);
+        observer.chunkX = cx;
+        observer.chunkZ = cz;
+        observer.holdRadius = radius;
+        observer.placed = true;
+    }
+
+    /**
+     * Stream the chunks around all observers, this is expected to be called regularly
+     */
+    public void update() {
+        for (TerrainObserver observer : observers)
+            moveObserver(observer);
+        for (TerrainObserver observer : observers)
+            observer.streamer.update();
+        updateCollisionLods();
+        checkLoadedChunks();
+    }
+
+    /**
+     * Stream the chunks around the player, this is expected to be called regularly
+     * @param pos the position of the player
+     */
+    public void update(Vector3 pos) {
+        getDefaultObserver().setPosition(pos);
+        update();
+    }
+
+    /**
+     * @return the streamer of the default observer
+     */
+    public ChunkStreamer getStreamer() {
+        return getDefaultObserver().getStreamer();
     }
 
     protected void unloadChunk(TerrainChunk chunk) {
-        if (chunk.isVisible()) {
-            Physics.currentPhysicsWorld.removeCollisionObject(chunk.collisionObject);
-            chunk.setState(TerrainChunk.ChunkState.Prepared);
+        if (chunk.compareAndSetState(TerrainChunk.ChunkState.Visible, TerrainChunk.ChunkState.Prepared)) {
+            if (Physics.currentPhysicsWorld != null)
+                Physics.currentPhysicsWorld.removeCollisionObject(chunk.collisionObject);
+            idleChunks.add(chunk);
             //System.out.printf("Terrain chunk %s removed from physics simulation.%n", chunk);
         }
     }
 
-    public void checkLoadedChunks(Vector3 pos) {
-        for (Map.Entry<Long, TerrainChunk> entry : chunks.entrySet()) {
-            TerrainChunk chunk = entry.getValue();
-            if (!chunk.isVisible()) {
-                if (chunk.isPrepared() && System.currentTimeMillis() - chunk.lastStateChange > config.chunkDeletionTime)
-                    toBeRemoved.add(entry.getKey());
-                continue;
-            }
-            float dx = Math.abs(chunk.boundingBox.getCenterX() - pos.x);
-            float dz = Math.abs(chunk.boundingBox.getCenterZ() - pos.z);
-            if (dx + dz > config.chunkUnloadDistance) {
+    /**
+     * Unload the chunks no observer holds anymore and delete the idle chunks that were outside the physics world
+     * long enough, either unloaded, never activated or with a cancelled preparation. Only the chunks in the physics
+     * world and the idle ones are checked, not every chunk that was ever created.
+     */
+    public void checkLoadedChunks() {
+        for (int i = visibleChunks.size() - 1; i >= 0; i--) {
+            TerrainChunk chunk = visibleChunks.get(i);
+            if (chunk.holders <= 0) {
+                // swap remove, the order doesn't matter
+                visibleChunks.set(i, visibleChunks.get(visibleChunks.size() - 1));
+                visibleChunks.remove(visibleChunks.size() - 1);
                 unloadChunk(chunk);
             }
         }
-        toBeRemoved.forEach(c -> chunks.remove(c).dispose());
-        toBeRemoved.clear();
+        for (TerrainChunk chunk = preparedChunks.poll(); chunk != null; chunk = preparedChunks.poll()) {
+            if (chunk.getState() == TerrainChunk.ChunkState.Prepared)
+                idleChunks.add(chunk);
+        }
+        // the chunks became idle in order so the oldest is always first
+        long deletionTime = (long)(config.chunkDeletionTime * 1000);
+        long now = System.currentTimeMillis();
+        while (!idleChunks.isEmpty() && now - idleChunks.iterator().next().lastStateChange > deletionTime)
+            deleteChunk(pollIdleChunk());
+        // the least recently used chunks are deleted early if the memory budget is exceeded, unloaded chunks as well
+        // as prepared ones that were never activated
+        while (isOverBudget() && !idleChunks.isEmpty()) {
+            deleteChunk(pollIdleChunk());
+            evictions.incrementAndGet();
+        }
+    }
+
+    private TerrainChunk pollIdleChunk() {
+        Iterator<TerrainChunk> oldest = idleChunks.iterator();
+        TerrainChunk chunk = oldest.next();
+        oldest.remove();
+        return chunk;
+    }
+
+    private void deleteChunk(TerrainChunk chunk) {
+        if (chunk.isVisible() || chunk.isPreparing())
+            return;
+        chunks.remove(chunk.chunkX, chunk.chunkZ);
+        chunk.dispose();
+    }
+
+    /**
+     * @return true if a memory budget is set and the chunks use more than that
+     */
+    public boolean isOverBudget() {
+        return config.chunkMemoryBudget > 0 && residentBytes.get() > config.chunkMemoryBudget;
+    }
+
+    /**
+     * @return the estimated native and direct memory in bytes of all chunk shapes of this terrain
+     */
+    public long getResidentBytes() {
+        return residentBytes.get();
+    }
+
+    public long getPeakResidentBytes() {
+        return peakResidentBytes.get();
+    }
+
+    /**
+     * @return the number of chunks that were deleted early because of the memory budget
+     */
+    public long getEvictions() {
+        return evictions.get();
     }
 }
@@ -5,11 +5,44 @@ import com.badlogic.gdx.graphics.Texture;
 import com.badlogic.gdx.utils.Array;
 import com.badlogic.gdx.utils.GdxRuntimeException;
 
+import java.nio.file.Path;
+
 /**
  * Holds the configuration of the terrain
  */
 public class TerrainConfig {
 
+    /**
+     * the kind of collision shape used for the physics chunks
+     */
+    public enum CollisionMode {
+        /**
+         * a triangle mesh with a bounding volume hierarchy, 24 bytes per cell plus the hierarchy
+         */
+        TriangleMesh,
+        /**
+         * a height field over the chunk's heights, 4 bytes per sample and nothing to build
+         */
+        Heightfield
+    }
+
+    /**
+     * the kind of mesh used to render the terrain
+     */
+    public enum RenderMode {
+        /**
+         * rays and arcs in front of the camera, rebuilt when the camera turns
+         */
+        Radial,
+        /**
+         * nested square levels around the camera, only the strips the camera moved into are sampled
+         */
+        Clipmap,
+        /**
+         * quadtree nodes selected by distance and frustum, drawn with one shared patch that morphs between the levels
+         */
+        Cdlod
+    }
 
     public static class TerrainLayer {
         /**
@@ -40,6 +73,47 @@ public class TerrainConfig {
      * resolution of the physics collision mesh in vertex per unit
      */
     public float chunkResolution = 1;
+    /**
+     * the collision shape used for the physics chunks
+     */
+    public CollisionMode collisionMode = CollisionMode.TriangleMesh;
+    /**
+     * number of collision resolutions, level n has chunkResolution / 2^n vertex per unit, 1 means full resolution only
+     */
+    public int chunkCollisionLods = 1;
+    /**
+     * chunks farther away than this use collision level 1, the distance doubles with every further level
+     */
+    public float chunkLodDistance = 100;
+    /**
+     * relative width of the band around the level distances in which a chunk keeps its collision level
+     */
+    public float chunkLodHysteresis = 0.2f;
+    /**
+     * directory where the triangle mesh collision shapes of the chunks are cached, null disables the cache
+     */
+    public Path chunkCacheDirectory;
+
+    /**
+     * the mesh used to render the terrain
+     */
+    public RenderMode renderMode = RenderMode.Radial;
+    /**
+     * number of cells per edge of a clipmap level, a multiple of 4
+     */
+    public int clipmapSize = 64;
+    /**
+     * number of clipmap levels, 0 means enough levels to reach the camera's far plane
+     */
+    public int clipmapLevels = 0;
+    /**
+     * number of cells per edge of the patch of a CDLOD node, an even number
+     */
+    public int cdlodPatchSize = 32;
+    /**
+     * range of the finest CDLOD level, it doubles with every coarser level, it is raised to three times cdlodPatchSize * scale
+     */
+    public float cdlodLodDistance = 128;
 
     /**
      * increase arcs distances by this factor
@@ -58,6 +132,23 @@ public class TerrainConfig {
      * delete the terrain chunk after this tim in seconds after the last state changed
      */
     public float chunkDeletionTime = 60f;
+    /**
+     * maximum memory in bytes for the collision data of the chunks, the least recently used chunks that are not in the
+     * physics world are deleted early to stay below it, 0 means no limit
+     */
+    public long chunkMemoryBudget = 0;
+    /**
+     * maximum number of chunks that are prepared at the same time
+     */
+    public int chunkMaxInFlight = 4;
+    /**
+     * maximum number of prepared chunks added to the physics world per update
+     */
+    public int chunkActivationsPerUpdate = 2;
+    /**
+     * the player's position this many seconds ahead is used to load chunks early
+     */
+    public float chunkPredictionTime = 2f;
     /**
      * the scale that dictates how big the terrain gets, width*scale x height*scale
      */
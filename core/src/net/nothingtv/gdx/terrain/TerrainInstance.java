@@ -5,39 +5,87 @@ import com.badlogic.gdx.graphics.Camera;
 import com.badlogic.gdx.graphics.GL20;
 import com.badlogic.gdx.graphics.Mesh;
 import com.badlogic.gdx.graphics.VertexAttribute;
+import com.badlogic.gdx.graphics.VertexAttributes;
 import com.badlogic.gdx.graphics.g3d.Model;
 import com.badlogic.gdx.graphics.g3d.ModelInstance;
 import com.badlogic.gdx.graphics.g3d.model.MeshPart;
 import com.badlogic.gdx.graphics.g3d.model.Node;
 import com.badlogic.gdx.graphics.g3d.model.NodePart;
+import com.badlogic.gdx.graphics.glutils.IndexBufferObject;
+import com.badlogic.gdx.graphics.glutils.VertexBufferObjectSubData;
 import com.badlogic.gdx.math.MathUtils;
 import com.badlogic.gdx.math.Matrix4;
 import com.badlogic.gdx.math.Quaternion;
 import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.utils.GdxRuntimeException;
 import net.mgsx.gltf.exporters.GLTFExporter;
 import net.mgsx.gltf.scene3d.scene.Updatable;
 
+import net.nothingtv.gdx.tools.Async;
+
 import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public class TerrainInstance extends ModelInstance implements Updatable {
 
     public int vertices;
     public int visibleNodes;
     public boolean debugBounds = false;
+    /**
+     * generate the mesh on a worker thread, the first mesh is always generated on the calling thread
+     */
+    public boolean backgroundUpdate = true;
     public Terrain terrain;
-    private float[] procVertices;
+    // the front buffer is uploaded, the back buffer is written by the generation on a worker thread
+    private float[] procVertices, backVertices;
     private float[] segmentGrid;
     private short[] procIndices;
+    private float[] sampleX, sampleZ;
+    // the sample positions the vertices were calculated for, only vertices whose position changed are calculated again
+    private float[] lastSampleX, lastSampleZ;
+    private boolean[] changed;
+    // per arc the range of rays with changed vertices, from inclusive and to exclusive
+    private int[] changedFrom, changedTo;
+    // per arc the range of rays changed in the back buffer since the last swap
+    private int[] pendingFrom, pendingTo;
+    private Future<Integer> generation;
+    private volatile boolean invalidated = true;
+    private boolean firstGeneration = true;
+    private boolean droppedLast;
+    // each arc is sampled with the footprint of its vertices
+    private float[] arcFootprint;
+    private int rays;
     private Node procNode;
     private MeshPart procMeshPart;
+    private VertexBufferObjectSubData vertexData;
     private final float fov = 120;
     private float uvScale = 0.1f;
     private final float depthFactor;
     private final Matrix4 camMatrix = new Matrix4();
-    private final Vector3 tmpVector = new Vector3();
-    private final Vector3 tmpNormal = new Vector3();
     private float lastCameraAngle;
     private final Vector3 lastCamPosition = new Vector3();
+    // a generation is dropped if the camera turned or moved this much since it was started
+    private static final float STALE_ANGLE = 20f;
+    private static final float STALE_DISTANCE2 = 32f;
+    // the scratch buffers of updateRays per thread, grown to the widest band
+    private final ThreadLocal<RayScratch> rayScratch = ThreadLocal.withInitial(RayScratch::new);
+
+    private static class RayScratch {
+        float[] xs = new float[0], zs = new float[0], heights = new float[0];
+        int[] indices = new int[0];
+        final Vector3 normal = new Vector3();
+
+        void ensureCapacity(int width) {
+            if (xs.length >= width)
+                return;
+            xs = new float[width];
+            zs = new float[width];
+            heights = new float[width];
+            indices = new int[width];
+        }
+    }
 
     public TerrainInstance(Model model, Terrain terrain) {
         super(model);
@@ -49,7 +97,7 @@ public class TerrainInstance extends ModelInstance implements Updatable {
         if (procNode == null) {
             lastCameraAngle = Float.MAX_VALUE;
             int arcs = (int) Math.ceil(Math.log(camera.far) / Math.log(depthFactor));
-            int rays = Math.max(arcs * 2, 30);
+            rays = Math.max(arcs * 2, 30);
             nodes.forEach(n -> n.parts.forEach(p -> p.enabled = false));
             procNode = new Node();
             NodePart procPart = new NodePart();
@@ -59,7 +107,20 @@ public class TerrainInstance extends ModelInstance implements Updatable {
             // calculate the segment grid in local space
             segmentGrid = new float[2 * rays * arcs];
             procVertices = new float[8 * rays * arcs];
+            backVertices = new float[8 * rays * arcs];
             procIndices = new short[6 * (rays -1) * (arcs -1)];
+            sampleX = new float[rays * arcs];
+            sampleZ = new float[rays * arcs];
+            lastSampleX = new float[rays * arcs];
+            lastSampleZ = new float[rays * arcs];
+            changed = new boolean[rays * arcs];
+            changedFrom = new int[arcs];
+            changedTo = new int[arcs];
+            pendingFrom = new int[arcs];
+            pendingTo = new int[arcs];
+            Arrays.fill(pendingFrom, rays);
+            arcFootprint = new float[arcs];
+            invalidate();
 
             System.out.printf("TerrainInstance: create a segment of %d rays and %d arcs%n", rays, arcs);
 
@@ -72,6 +133,8 @@ public class TerrainInstance extends ModelInstance implements Updatable {
             int vi = 0;
             for (int z = 0; z < arcs; z++) {
                 float dist = (float)Math.pow(depthFactor, z);
+                // the larger of the distances to the next arc and to the neighbouring ray
+                arcFootprint[z] = Math.max(dist * (depthFactor - 1), dist * fov * MathUtils.degreesToRadians / rays);
                 for (int x = 0; x < rays; x++) {
                     segmentGrid[vi++] = localRay[x].x * dist;
                     segmentGrid[vi++] = localRay[x].z * dist - 2.2f;
@@ -91,8 +154,10 @@ public class TerrainInstance extends ModelInstance implements Updatable {
                     procIndices[ii++] = (short)(1 + r + a * rays);
                 }
             }
-            procMeshPart.mesh = new Mesh(false, procVertices.length, procIndices.length,
-                    VertexAttribute.Position(), VertexAttribute.Normal(), VertexAttribute.TexCoords(0));
+            // the vertex buffer is kept to upload changed ranges of it with glBufferSubData
+            vertexData = new VertexBufferObjectSubData(false, rays * arcs,
+                    new VertexAttributes(VertexAttribute.Position(), VertexAttribute.Normal(), VertexAttribute.TexCoords(0)));
+            procMeshPart.mesh = new Mesh(vertexData, new IndexBufferObject(true, procIndices.length), false) {};
             procMeshPart.primitiveType = GL20.GL_TRIANGLES;
             procMeshPart.offset = 0;
             procMeshPart.size = procIndices.length;
@@ -102,38 +167,42 @@ public class TerrainInstance extends ModelInstance implements Updatable {
             visibleNodes = 1;
             vertices = ii;
             procMeshPart.mesh.setIndices(procIndices);
+            procMeshPart.mesh.setVertices(procVertices);
         }
 
-        FloatBuffer vertexBuffer = procMeshPart.mesh.getVerticesBuffer(true);
-        vertexBuffer.position(0);
-        vertexBuffer.limit(vertexBuffer.capacity());
-
         // TODO: use a matrix instead of the various calculations
         //camMatrix.idt().trn(camera.position.x, 0, camera.position.z).rotateTowardDirection(dir, Vector3.Y);
         camMatrix.setToLookAt(camera.direction, Vector3.Y);
         float cameraAngle = new Quaternion().setFromMatrix(camMatrix).getAngleAround(Vector3.Y);
-        if (Math.abs(lastCameraAngle - cameraAngle) < 5f && camera.position.dst2(lastCamPosition) < 2f)
+
+        if (generation != null) {
+            if (!generation.isDone())
+                return;
+            finishGeneration();
+            // a result the camera moved far away from is dropped once, its changes are uploaded with the next one
+            boolean stale = Math.abs(cameraAngle - lastCameraAngle) >= STALE_ANGLE
+                    || camera.position.dst2(lastCamPosition) >= STALE_DISTANCE2;
+            if (hasPendingChanges()) {
+                if (stale && !droppedLast) {
+                    droppedLast = true;
+                } else {
+                    swapBuffers();
+                    droppedLast = false;
+                }
+            }
+        }
+        if (!droppedLast && Math.abs(lastCameraAngle - cameraAngle) < 5f && camera.position.dst2(lastCamPosition) < 2f)
             return;
         lastCameraAngle = cameraAngle;
         lastCamPosition.set(camera.position);
-        for (int i = 0; i < procVertices.length/8; i++) {
-            tmpVector.set(segmentGrid[i*2], 0, segmentGrid[i*2+1]);
-            tmpVector.rotate(Vector3.Y, 180-cameraAngle);
-            //tmpVector.add(MathUtils.floor(camera.position.x), 0, MathUtils.floor(camera.position.z));
-            tmpVector.add(camera.position.x, 0, camera.position.z);
-            tmpVector.x = MathUtils.round(tmpVector.x);
-            tmpVector.z = MathUtils.round(tmpVector.z);
-            terrain.getNormalAt(tmpVector.x, tmpVector.z, tmpNormal);
-            vertexBuffer.put(tmpVector.x);
-            vertexBuffer.put(terrain.getHeightAt(tmpVector.x, tmpVector.z));
-            vertexBuffer.put(tmpVector.z);
-            vertexBuffer.put(tmpNormal.x);
-            vertexBuffer.put(tmpNormal.y);
-            vertexBuffer.put(tmpNormal.z);
-            vertexBuffer.put(tmpVector.x * uvScale);
-            vertexBuffer.put(tmpVector.z * uvScale);
+        float x = camera.position.x, z = camera.position.z;
+        if (backgroundUpdate && !firstGeneration) {
+            generation = Async.submit(() -> generate(x, z, cameraAngle));
+        } else {
+            generate(x, z, cameraAngle);
+            swapBuffers();
+            firstGeneration = false;
         }
-        vertexBuffer.flip();
 
         if (debugBounds) {
             System.out.printf("Exporting mesh to %s%n", Gdx.files.external("/tmp/mesh-dump.gltf").file().getAbsolutePath());
@@ -142,6 +211,187 @@ public class TerrainInstance extends ModelInstance implements Updatable {
         }
     }
 
+    private void finishGeneration() {
+        try {
+            generation.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GdxRuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new GdxRuntimeException("cannot generate the terrain mesh", e.getCause());
+        } finally {
+            generation = null;
+        }
+    }
+
+    /**
+     * Calculate the vertices for a camera pose into the back buffer, this runs on a worker thread
+     * @return the number of changed vertices
+     */
+    private int generate(float cameraX, float cameraZ, float cameraAngle) {
+        if (invalidated) {
+            invalidated = false;
+            Arrays.fill(lastSampleX, Float.NaN);
+        }
+        Vector3 position = new Vector3();
+        int numVertices = sampleX.length;
+        for (int i = 0; i < numVertices; i++) {
+            position.set(segmentGrid[i*2], 0, segmentGrid[i*2+1]);
+            position.rotate(Vector3.Y, 180-cameraAngle);
+            position.add(cameraX, 0, cameraZ);
+            sampleX[i] = MathUtils.round(position.x);
+            sampleZ[i] = MathUtils.round(position.z);
+        }
+        int changedVertices = findChangedVertices();
+        if (changedVertices == 0)
+            return 0;
+        // the rays are split into bands for the worker threads, every band samples its part of each arc
+        Async.parallelFor(0, rays, this::updateRays);
+        System.arraycopy(sampleX, 0, lastSampleX, 0, numVertices);
+        System.arraycopy(sampleZ, 0, lastSampleZ, 0, numVertices);
+        for (int a = 0; a < arcFootprint.length; a++) {
+            pendingFrom[a] = Math.min(pendingFrom[a], changedFrom[a]);
+            pendingTo[a] = Math.max(pendingTo[a], changedTo[a]);
+        }
+        return changedVertices;
+    }
+
+    private boolean hasPendingChanges() {
+        for (int a = 0; a < arcFootprint.length; a++)
+            if (pendingFrom[a] < pendingTo[a])
+                return true;
+        return false;
+    }
+
+    /**
+     * Make the back buffer the front buffer and upload the vertices that changed since the last swap, they are
+     * copied to the new back buffer too so both are the same again
+     */
+    private void swapBuffers() {
+        float[] front = backVertices;
+        backVertices = procVertices;
+        procVertices = front;
+        Gdx.gl.glBindBuffer(GL20.GL_ARRAY_BUFFER, vertexData.getBufferHandle());
+        int start = -1;
+        int end = -1;
+        for (int a = 0; a < arcFootprint.length; a++) {
+            if (pendingFrom[a] >= pendingTo[a])
+                continue;
+            int from = a * rays + pendingFrom[a];
+            int to = a * rays + pendingTo[a];
+            // ranges less than one arc apart are uploaded together
+            if (start >= 0 && from - end > rays) {
+                uploadVertices(start, end);
+                start = -1;
+            }
+            if (start < 0)
+                start = from;
+            end = to;
+        }
+        if (start >= 0)
+            uploadVertices(start, end);
+        Gdx.gl.glBindBuffer(GL20.GL_ARRAY_BUFFER, 0);
+        Arrays.fill(pendingFrom, rays);
+        Arrays.fill(pendingTo, 0);
+    }
+
+    /**
+     * Calculate all vertices again on the next update, e.g. after the heights of the terrain changed
+     */
+    public void invalidate() {
+        invalidated = true;
+        lastCameraAngle = Float.MAX_VALUE;
+    }
+
+    /**
+     * Mark the vertices whose sample position changed since the last update
+     * @return the number of changed vertices
+     */
+    private int findChangedVertices() {
+        int count = 0;
+        for (int a = 0; a < arcFootprint.length; a++) {
+            int from = rays;
+            int to = 0;
+            for (int r = 0, i = a * rays; r < rays; r++, i++) {
+                // NaN never equals, an invalidated vertex is always changed
+                boolean moved = sampleX[i] != lastSampleX[i] || sampleZ[i] != lastSampleZ[i];
+                changed[i] = moved;
+                if (moved) {
+                    from = Math.min(from, r);
+                    to = r + 1;
+                    count++;
+                }
+            }
+            changedFrom[a] = from;
+            changedTo[a] = to;
+        }
+        return count;
+    }
+
+    /**
+     * Calculate the changed vertices of the rays from (inclusive) to (exclusive) of all arcs. Arcs whose vertices are
+     * at most one vertex spacing apart take the height from the same sample as the normal, the others ask for the
+     * heights of their footprint, samplers with levels of detail answer them from a coarser level.
+     */
+    private void updateRays(int from, int to) {
+        RayScratch scratch = rayScratch.get();
+        scratch.ensureCapacity(to - from);
+        float[] xs = scratch.xs;
+        float[] zs = scratch.zs;
+        float[] heights = scratch.heights;
+        int[] indices = scratch.indices;
+        Vector3 normal = scratch.normal;
+        float[] vertices = backVertices;
+        for (int a = 0; a < arcFootprint.length; a++) {
+            int count = 0;
+            int end = Math.min(to, changedTo[a]);
+            for (int r = Math.max(from, changedFrom[a]); r < end; r++) {
+                int i = a * rays + r;
+                if (!changed[i])
+                    continue;
+                xs[count] = sampleX[i];
+                zs[count] = sampleZ[i];
+                indices[count++] = i;
+            }
+            if (count == 0)
+                continue;
+            boolean coarse = arcFootprint[a] > terrain.config.scale;
+            if (coarse)
+                terrain.getHeightsAt(xs, zs, count, arcFootprint[a], heights);
+            for (int k = 0; k < count; k++) {
+                float x = xs[k];
+                float z = zs[k];
+                float height = terrain.getHeightAndNormalAt(x, z, normal);
+                int vi = indices[k] * 8;
+                vertices[vi] = x;
+                vertices[vi + 1] = coarse ? heights[k] : height;
+                vertices[vi + 2] = z;
+                vertices[vi + 3] = normal.x;
+                vertices[vi + 4] = normal.y;
+                vertices[vi + 5] = normal.z;
+                vertices[vi + 6] = x * uvScale;
+                vertices[vi + 7] = z * uvScale;
+            }
+        }
+    }
+
+    /**
+     * Copy the vertices from start (inclusive) to end (exclusive) into the mesh and the back buffer and upload only
+     * them, Mesh.updateVertices would upload the whole buffer
+     */
+    private void uploadVertices(int start, int end) {
+        FloatBuffer buffer = vertexData.getBuffer(false);
+        int limit = buffer.limit();
+        buffer.position(start * 8);
+        buffer.put(procVertices, start * 8, (end - start) * 8);
+        System.arraycopy(procVertices, start * 8, backVertices, start * 8, (end - start) * 8);
+        buffer.limit(end * 8);
+        buffer.position(start * 8);
+        Gdx.gl.glBufferSubData(GL20.GL_ARRAY_BUFFER, start * 8 * Float.BYTES, (end - start) * 8 * Float.BYTES, buffer);
+        buffer.limit(limit);
+        buffer.position(0);
+    }
+
     @Override
     public void update(Camera camera, float delta) {
         proceduralNodes(camera);
@@ -0,0 +1,86 @@
+package net.nothingtv.gdx.terrain;
+
+import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.math.Vector3;
+
+/**
+ * Someone who needs the terrain chunks around a position in the physics world, e.g. a player or a group of NPCs.
+ * <p>
+ * Observers are registered with {@link Terrain#addObserver(float, float)}. Each one streams in the chunks within its
+ * load distance and holds a reference on the chunks within its unload distance. A chunk is removed from the physics
+ * world only when no observer holds it anymore. The held region is a square of chunks around the chunk the observer
+ * is in, it's updated only for the chunks that enter or leave it when the observer moves to another chunk. It contains
+ * every chunk the observer's streamer loads around its position, so no chunk is unloaded within the load distance.
+ */
+public class TerrainObserver {
+
+    final Terrain terrain;
+    final Vector3 position = new Vector3();
+    final ChunkStreamer streamer;
+    float loadDistance;
+    float unloadDistance;
+    // the chunk the held region is centered on and its radius in chunks, valid if placed is set
+    int chunkX, chunkZ;
+    int holdRadius;
+    boolean placed;
+
+    TerrainObserver(Terrain terrain, float loadDistance, float unloadDistance) {
+        this.terrain = terrain;
+        this.loadDistance = loadDistance;
+        this.unloadDistance = unloadDistance;
+        streamer = new ChunkStreamer(terrain, this);
+    }
+
+    public void setPosition(Vector3 pos) {
+        position.set(pos);
+    }
+
+    public void setPosition(float x, float y, float z) {
+        position.set(x, y, z);
+    }
+
+    public Vector3 getPosition() {
+        return position;
+    }
+
+    public float getLoadDistance() {
+        return loadDistance;
+    }
+
+    public float getUnloadDistance() {
+        return unloadDistance;
+    }
+
+    /**
+     * Change the distances, the held region is rebuilt on the next update of the terrain
+     */
+    public void setDistances(float loadDistance, float unloadDistance) {
+        this.loadDistance = loadDistance;
+        this.unloadDistance = unloadDistance;
+        terrain.releaseChunks(this);
+    }
+
+    public ChunkStreamer getStreamer() {
+        return streamer;
+    }
+
+    /**
+     * @return true if the chunk is in the region held by this observer
+     */
+    boolean holds(int chunkX, int chunkZ) {
+        return placed && holds(this.chunkX, this.chunkZ, holdRadius, chunkX, chunkZ);
+    }
+
+    static boolean holds(int centerX, int centerZ, int radius, int chunkX, int chunkZ) {
+        return Math.max(Math.abs(chunkX - centerX), Math.abs(chunkZ - centerZ)) <= radius;
+    }
+
+    /**
+     * The streamer loads the chunks that touch the square of the load distance around the position, which can be
+     * anywhere in the center chunk. One chunk more than the larger distance covers all of them.
+     * @return the radius in chunks of the held region
+     */
+    static int holdRadius(float loadDistance, float unloadDistance, float chunkEdgeLength) {
+        return MathUtils.ceil((Math.max(loadDistance, unloadDistance) + chunkEdgeLength) / chunkEdgeLength);
+    }
+}
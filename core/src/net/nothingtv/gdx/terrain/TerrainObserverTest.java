@@ -0,0 +1,80 @@
+package net.nothingtv.gdx.terrain;
+
+import com.badlogic.gdx.math.Vector3;
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TerrainObserverTest {
+
+    private static final float EDGE = 128;
+
+    private static Terrain createTerrain() {
+        TerrainConfig config = new TerrainConfig(4096, 4096, 1);
+        config.heightSampler = new TestHeightSampler(30, 0.01f, 1);
+        config.chunkEdgeLength = EDGE;
+        return new Terrain(config);
+    }
+
+    @Test
+    void loadRegionIsHeld() {
+        Random random = new Random(5);
+        float[][] distances = {{250, 500}, {128, 128}, {300, 200}, {64, 1000}, {500, 501}};
+        for (float[] distance : distances) {
+            int radius = TerrainObserver.holdRadius(distance[0], distance[1], EDGE);
+            for (int i = 0; i < 200; i++) {
+                float x = random.nextFloat() * 4096, z = random.nextFloat() * 4096;
+                int cx = (int)Math.floor(x / EDGE), cz = (int)Math.floor(z / EDGE);
+                Vector3 pos = new Vector3(x, 0, z);
+                for (int chunkZ = cz - radius - 2; chunkZ <= cz + radius + 2; chunkZ++) {
+                    for (int chunkX = cx - radius - 2; chunkX <= cx + radius + 2; chunkX++) {
+                        if (ChunkStreamer.touches(chunkX, chunkZ, pos, distance[0], EDGE))
+                            assertTrue(TerrainObserver.holds(cx, cz, radius, chunkX, chunkZ), chunkX + "/" + chunkZ + " at " + pos);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void noChunkIsUnloadedWithinTheLoadDistance() {
+        Terrain terrain = createTerrain();
+        TerrainObserver observer = terrain.addObserver(250, 500);
+        Random random = new Random(11);
+        float x = 2000, z = 2000;
+        Set<Terrain.TerrainChunk> loaded = new LinkedHashSet<>();
+        for (int step = 0; step < 300; step++) {
+            // a random walk with a jump now and then
+            if (step % 50 == 49) {
+                x = 500 + random.nextFloat() * 3000;
+                z = 500 + random.nextFloat() * 3000;
+            } else {
+                x += (random.nextFloat() - 0.5f) * 100;
+                z += (random.nextFloat() - 0.5f) * 100;
+            }
+            observer.setPosition(x, 0, z);
+            terrain.moveObserver(observer);
+            // the chunks the streamer would load around the position
+            int fromX = terrain.chunkCoordinate(x - 250), toX = terrain.chunkCoordinate(x + 250);
+            int fromZ = terrain.chunkCoordinate(z - 250), toZ = terrain.chunkCoordinate(z + 250);
+            for (int cz = fromZ; cz <= toZ; cz++) {
+                for (int cx = fromX; cx <= toX; cx++) {
+                    if (ChunkStreamer.touches(cx, cz, observer.position, 250, EDGE))
+                        loaded.add(terrain.getOrCreateChunk(cx, cz, 0));
+                }
+            }
+            for (Terrain.TerrainChunk chunk : loaded) {
+                boolean inLoadDistance = ChunkStreamer.touches(chunk.chunkX, chunk.chunkZ, observer.position, 250, EDGE);
+                if (inLoadDistance)
+                    assertEquals(1, chunk.holders, chunk.chunkX + "/" + chunk.chunkZ);
+                // the incrementally updated count matches the held region
+                assertEquals(observer.holds(chunk.chunkX, chunk.chunkZ) ? 1 : 0, chunk.holders);
+            }
+        }
+    }
+}
@@ -3,11 +3,16 @@ package net.nothingtv.gdx.terrain;
 import com.badlogic.gdx.Gdx;
 import com.badlogic.gdx.graphics.Pixmap;
 import com.badlogic.gdx.graphics.PixmapIO;
+import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.math.Rectangle;
 import com.badlogic.gdx.math.Vector3;
 import com.badlogic.gdx.utils.Json;
+import net.nothingtv.gdx.tools.Async;
 import net.nothingtv.gdx.tools.Tools;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
 
 public class TerrainSplatGenerator {
     public static class Configuration {
@@ -31,6 +36,35 @@ public class TerrainSplatGenerator {
 
     private final Terrain terrain;
     public final Configuration config;
+    /**
+     * write the generated map and the configuration to splatmap-generated.png and terrain.json on a worker thread
+     */
+    public boolean exportFiles = true;
+    /**
+     * the first pass of {@link #updateProgressive()} has the resolution divided by this
+     */
+    public int previewDivisor = 8;
+    // the generated map, it's reused by the following calls as long as the resolution doesn't change
+    private Pixmap pixmap;
+    // the latest pass of the progressive generation that isn't uploaded yet
+    private final AtomicReference<Pass> refined = new AtomicReference<>();
+    // incremented for every generation, the passes of older ones are cancelled
+    private volatile int passGeneration;
+
+    /**
+     * A refined map of a progressive generation
+     */
+    private static class Pass {
+        final int generation;
+        final Pixmap pixmap;
+        final boolean full;
+
+        Pass(int generation, Pixmap pixmap, boolean full) {
+            this.generation = generation;
+            this.pixmap = pixmap;
+            this.full = full;
+        }
+    }
 
     public static Configuration createDefaultConfiguration(int numLayers) {
         Configuration configuration = new Configuration();
@@ -52,54 +86,244 @@ public class TerrainSplatGenerator {
         terrain.setSplatMap(generate());
     }
 
+    /**
+     * Show a low resolution map at once and refine it on a worker thread, the refined maps are uploaded by
+     * {@link #updateRefined()}. A refinement that is still running is cancelled.
+     */
+    public void updateProgressive() {
+        if (previewDivisor <= 1) {
+            update();
+            return;
+        }
+        int generation = ++passGeneration;
+        // the configuration is changed by the UI, the passes use a copy
+        Json json = new Json();
+        String serialized = json.toJson(config);
+        Configuration snapshot = json.fromJson(Configuration.class, serialized);
+        int resolution = snapshot.resolution;
+        int previewResolution = Math.max(1, resolution / previewDivisor);
+        Pixmap preview = new Pixmap(previewResolution, previewResolution, Pixmap.Format.RGBA8888);
+        generate(preview, snapshot, 0, 0, previewResolution, previewResolution, false, () -> false);
+        terrain.setSplatMap(preview);
+        preview.dispose();
+        if (previewResolution < resolution)
+            Async.submit(() -> refine(generation, snapshot, serialized, previewResolution * 2));
+    }
+
+    /**
+     * Generate passes of doubling resolution up to the configured one, this runs on a worker thread
+     */
+    private void refine(int generation, Configuration snapshot, String serialized, int firstResolution) {
+        BooleanSupplier cancelled = () -> passGeneration != generation;
+        int resolution = snapshot.resolution;
+        for (int r = Math.min(firstResolution, resolution); ; r = Math.min(r * 2, resolution)) {
+            Pixmap target = new Pixmap(r, r, Pixmap.Format.RGBA8888);
+            boolean full = r == resolution;
+            if (!generate(target, snapshot, 0, 0, r, r, full, cancelled)) {
+                target.dispose();
+                return;
+            }
+            Pixmap exported = full && exportFiles ? copy(target) : null;
+            Pass previous = refined.getAndSet(new Pass(generation, target, full));
+            if (previous != null)
+                previous.pixmap.dispose();
+            if (exported != null)
+                writeFiles(exported, serialized);
+            if (full)
+                return;
+        }
+    }
+
+    /**
+     * Upload the latest refined map of {@link #updateProgressive()} if there is one, call it once per frame
+     * @return true if the splat map changed
+     */
+    public boolean updateRefined() {
+        Pass pass = refined.getAndSet(null);
+        if (pass == null)
+            return false;
+        if (pass.generation != passGeneration) {
+            pass.pixmap.dispose();
+            return false;
+        }
+        terrain.setSplatMap(pass.pixmap);
+        if (pass.full) {
+            // the full resolution map is kept for regenerate
+            if (pixmap != null)
+                pixmap.dispose();
+            pixmap = pass.pixmap;
+        } else {
+            pass.pixmap.dispose();
+        }
+        return true;
+    }
+
+    /**
+     * Generate the part of the splat map over a changed area of the terrain and upload only that part
+     * @param dirty the changed area in terrain coordinates (0..width, 0..height)
+     */
+    public void update(Rectangle dirty) {
+        if (pixmap == null || pixmap.getWidth() != config.resolution) {
+            update();
+            return;
+        }
+        Rectangle region = pixelRegion(dirty);
+        generate(region);
+        terrain.updateSplatMap(pixmap, (int)region.x, (int)region.y, (int)region.width, (int)region.height);
+    }
+
+    /**
+     * Generate the whole splat map, the rows are generated in parallel
+     * @return the splat map, the same pixmap is returned by the following calls as long as the resolution is the same
+     */
     public Pixmap generate() {
         int resolution = config.resolution;
+        if (pixmap == null || pixmap.getWidth() != resolution) {
+            pixmap = new Pixmap(resolution, resolution, Pixmap.Format.RGBA8888);
+        }
+        // a progressive generation that is still running is outdated now
+        passGeneration++;
+        generate(pixmap, config, 0, 0, resolution, resolution, true, () -> false);
+        if (exportFiles)
+            export();
+        return pixmap;
+    }
+
+    /**
+     * Generate the part of the splat map over a changed area of the terrain, e.g. after the heights were modified there
+     * @param dirty the changed area in terrain coordinates (0..width, 0..height)
+     * @return the splat map
+     */
+    public Pixmap regenerate(Rectangle dirty) {
+        if (pixmap == null || pixmap.getWidth() != config.resolution)
+            return generate();
+        generate(pixelRegion(dirty));
+        return pixmap;
+    }
+
+    /**
+     * @return the pixels covering an area in terrain coordinates, clamped to the map
+     */
+    private Rectangle pixelRegion(Rectangle dirty) {
+        int resolution = config.resolution;
+        float toPixelX = resolution / (float)terrain.config.width;
+        float toPixelZ = resolution / (float)terrain.config.height;
+        // the slope uses the neighbouring heights so one more pixel on each side
+        int x0 = MathUtils.clamp(MathUtils.floor(dirty.x * toPixelX) - 1, 0, resolution);
+        int z0 = MathUtils.clamp(MathUtils.floor(dirty.y * toPixelZ) - 1, 0, resolution);
+        int x1 = MathUtils.clamp(MathUtils.ceil((dirty.x + dirty.width) * toPixelX) + 1, 0, resolution);
+        int z1 = MathUtils.clamp(MathUtils.ceil((dirty.y + dirty.height) * toPixelZ) + 1, 0, resolution);
+        return new Rectangle(x0, z0, Math.max(0, x1 - x0), Math.max(0, z1 - z0));
+    }
+
+    private void generate(Rectangle region) {
+        generate(pixmap, config, (int)region.x, (int)region.y, (int)(region.x + region.width), (int)(region.y + region.height), false, () -> false);
+    }
+
+    /**
+     * Calculate the pixels from x0/z0 (inclusive) to x1/z1 (exclusive), split into stripes of rows that are
+     * calculated in parallel. The height and the normal are sampled once per pixel.
+     * @param target the map to write, its width is the resolution
+     * @param config the configuration to generate the map with
+     * @param cancelled checked for every row, the generation stops if it returns true
+     * @return false if the generation was cancelled
+     */
+    private boolean generate(Pixmap target, Configuration config, int x0, int z0, int x1, int z1, boolean reportSlopes,
+                             BooleanSupplier cancelled) {
+        if (x0 >= x1 || z0 >= z1)
+            return true;
+        int resolution = target.getWidth();
         float minHeight = terrain.getMinHeight();
         float maxHeight = terrain.getMaxHeight();
-        ByteBuffer buffer = ByteBuffer.allocateDirect(resolution * resolution * 4);
-        Pixmap pixmap = new Pixmap(resolution, resolution, Pixmap.Format.RGBA8888);
-        float[] weights = new float[4];
-        Vector3 normal = new Vector3();
-        float minSlope = Float.MAX_VALUE;
-        float maxSlope = -Float.MAX_VALUE;
-        for (int z = 0; z < resolution; z++) {
-            float terrainZ = (float)z / resolution * terrain.config.height;
-            for (int x = 0; x < resolution; x++) {
-                float terrainX = (float)x / resolution * terrain.config.width;
-                float weightSum = 0;
-                for (int i = 0; i < config.numLayers; i++) {
-                    LayerConfiguration layer = config.layers[i];
-                    weights[i] = 0;
-                    if (layer.elevationWeight > 0) {
-                        float h = terrain.getHeightAt(terrainX, terrainZ);
-                        float normHeight = (h - minHeight) / (maxHeight - minHeight);
-                        weights[i] += layer.elevationWeight * Tools.smoothInRange(normHeight, layer.heightBegin, layer.heightEnd, layer.smoothBegin, layer.smoothEnd);
-                    }
-                    if (layer.slopeWeight > 0) {
-                        terrain.getNormalAt(terrainX, terrainZ, normal);
-                        float slope = 1f - normal.y;
+        // the pixels are written with absolute puts so the stripes don't share the buffer's position
+        ByteBuffer buffer = target.getPixels();
+        float stepX = (float)terrain.config.width / resolution;
+        boolean useSlope = false;
+        for (int i = 0; i < config.numLayers; i++)
+            useSlope |= config.layers[i].slopeWeight > 0;
+        boolean slopeNeeded = useSlope;
+        float[] slopeRange = { Float.MAX_VALUE, -Float.MAX_VALUE };
+        Async.parallelFor(z0, z1, (from, to) -> {
+            float[] weights = new float[4];
+            Vector3 normal = new Vector3();
+            float[] rowHeights = new float[x1 - x0];
+            float minSlope = Float.MAX_VALUE;
+            float maxSlope = -Float.MAX_VALUE;
+            for (int z = from; z < to && !cancelled.getAsBoolean(); z++) {
+                float terrainZ = (float)z / resolution * terrain.config.height;
+                if (!slopeNeeded)
+                    terrain.getHeightsAt(x0 * stepX, terrainZ, stepX, 0, x1 - x0, 1, rowHeights);
+                int offset = (z * resolution + x0) * 4;
+                for (int x = x0; x < x1; x++) {
+                    float terrainX = (float)x / resolution * terrain.config.width;
+                    float h;
+                    float slope = 0;
+                    if (slopeNeeded) {
+                        h = terrain.getHeightAndNormalAt(terrainX, terrainZ, normal);
+                        slope = 1f - normal.y;
                         minSlope = Math.min(minSlope, slope);
                         maxSlope = Math.max(maxSlope, slope);
-                        weights[i] += layer.slopeWeight * Tools.smoothInRange(slope, layer.slopeBegin, layer.slopeEnd, layer.slopeSmoothBegin, layer.slopeSmoothEnd);
+                    } else {
+                        h = rowHeights[x - x0];
                     }
-                    weightSum += weights[i];
-                }
-                if (weightSum < 1) {
-                    weights[config.defaultLayer] = 1f - weightSum;
-                    weightSum = 1f;
-                }
-                // the shader expects a=layer0, r=1, g=2, b=3 (msb to lsb)
-                for (int i = 3; i > 0; i--) {
-                    buffer.put((byte)Math.round(255f * weights[i]/weightSum));
+                    float normHeight = (h - minHeight) / (maxHeight - minHeight);
+                    float weightSum = 0;
+                    for (int i = 0; i < config.numLayers; i++) {
+                        LayerConfiguration layer = config.layers[i];
+                        weights[i] = 0;
+                        if (layer.elevationWeight > 0) {
+                            weights[i] += layer.elevationWeight * Tools.smoothInRange(normHeight, layer.heightBegin, layer.heightEnd, layer.smoothBegin, layer.smoothEnd);
+                        }
+                        if (layer.slopeWeight > 0) {
+                            weights[i] += layer.slopeWeight * Tools.smoothInRange(slope, layer.slopeBegin, layer.slopeEnd, layer.slopeSmoothBegin, layer.slopeSmoothEnd);
+                        }
+                        weightSum += weights[i];
+                    }
+                    if (weightSum < 1) {
+                        weights[config.defaultLayer] = 1f - weightSum;
+                        weightSum = 1f;
+                    }
+                    // the shader expects a=layer0, r=1, g=2, b=3 (msb to lsb)
+                    for (int i = 3; i > 0; i--) {
+                        buffer.put(offset++, (byte)Math.round(255f * weights[i]/weightSum));
+                    }
+                    buffer.put(offset++, (byte)Math.round(255f * weights[0]/weightSum));
                 }
-                buffer.put((byte)Math.round(255f * weights[0]/weightSum));
             }
+            synchronized (slopeRange) {
+                slopeRange[0] = Math.min(slopeRange[0], minSlope);
+                slopeRange[1] = Math.max(slopeRange[1], maxSlope);
+            }
+        });
+        if (cancelled.getAsBoolean())
+            return false;
+        if (reportSlopes)
+            System.out.printf("found slopes in the range of %f to %f%n", slopeRange[0], slopeRange[1]);
+        return true;
+    }
+
+    /**
+     * Write a copy of the map and the configuration to splatmap-generated.png and terrain.json on a worker thread
+     */
+    public void export() {
+        Pixmap copy = copy(pixmap);
+        String json = new Json().toJson(config);
+        Async.submit(() -> writeFiles(copy, json));
+    }
+
+    private static Pixmap copy(Pixmap pixmap) {
+        Pixmap copy = new Pixmap(pixmap.getWidth(), pixmap.getHeight(), pixmap.getFormat());
+        copy.setBlending(Pixmap.Blending.None);
+        copy.drawPixmap(pixmap, 0, 0);
+        return copy;
+    }
+
+    private static void writeFiles(Pixmap pixmap, String json) {
+        try {
+            PixmapIO.writePNG(Gdx.files.local("splatmap-generated.png"), pixmap);
+            Gdx.files.local("terrain.json").writeString(json, false);
+        } finally {
+            pixmap.dispose();
         }
-        buffer.flip();
-        pixmap.setPixels(buffer);
-        System.out.printf("found slopes in the range of %f to %f%n", minSlope, maxSlope);
-        PixmapIO.writePNG(Gdx.files.local("splatmap-generated.png"), pixmap);
-        new Json().toJson(config, Gdx.files.local("terrain.json"));
-        return pixmap;
     }
 }
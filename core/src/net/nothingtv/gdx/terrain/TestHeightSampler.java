@@ -7,6 +7,7 @@ public class TestHeightSampler extends DefaultHeightSampler {
     private float heightScale;
     private float horizontalScale;
     private long seed;
+    private final ThreadLocal<float[]> gradient = ThreadLocal.withInitial(() -> new float[2]);
 
     /**
      * Generate a heightmap using OpenSimplex noise
@@ -25,4 +26,12 @@ public class TestHeightSampler extends DefaultHeightSampler {
         return OpenSimplex2S.noise2(seed, x * horizontalScale, z * horizontalScale) * heightScale;
     }
 
+    @Override
+    public void getHeightAndGradient(float x, float z, float[] out) {
+        float[] gradient = this.gradient.get();
+        out[0] = OpenSimplex2S.noise2Gradient(seed, x * horizontalScale, z * horizontalScale, gradient) * heightScale;
+        out[1] = gradient[0] * horizontalScale * heightScale;
+        out[2] = gradient[1] * horizontalScale * heightScale;
+    }
+
 }
@@ -3,10 +3,24 @@ package net.nothingtv.gdx.tools;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.Future;
 
 public class Async {
 
+    /**
+     * A piece of work over the index range [from, to)
+     */
+    public interface RangeTask {
+        void run(int from, int to);
+    }
+
+    /**
+     * number of ranges a {@link #parallelFor(int, int, RangeTask)} call is split into
+     */
+    public static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
     public static Async getInstance() {
         if (instance == null)
             init();
@@ -15,6 +29,8 @@ public class Async {
 
     private static Async instance;
     private final ExecutorService executor;
+    // runs the parts of parallelFor, one thread per core however many loops run at the same time
+    private final ForkJoinPool parallelPool;
 
     private Async() {
         executor = Executors.newCachedThreadPool(r -> {
@@ -22,10 +38,12 @@ public class Async {
             thr.setDaemon(true);
             return thr;
         });
+        parallelPool = new ForkJoinPool(PARALLELISM);
     }
 
     private void internalShutDown() {
         executor.shutdown();
+        parallelPool.shutdown();
     }
 
     public static void init() {
@@ -46,4 +64,39 @@ public class Async {
     public static <T> Future<T> submit(Callable<T> callable) {
         return getInstance().executor.submit(callable);
     }
+
+    /**
+     * Split the range [from, to) into contiguous parts, one per core, and run them in parallel.
+     * The first part runs on the calling thread, the method returns when all parts are done.
+     * The other parts run on a pool with one thread per core. A nested call from one of its threads queues its parts
+     * there as well and works on them while it waits, so concurrent and nested loops never need more threads.
+     * @param from the first index
+     * @param to the index after the last one
+     * @param task the work to be done for a part of the range
+     */
+    public static void parallelFor(int from, int to, RangeTask task) {
+        int n = to - from;
+        int parts = Math.min(n, PARALLELISM);
+        if (parts <= 1) {
+            if (n > 0)
+                task.run(from, to);
+            return;
+        }
+        ForkJoinPool pool = getInstance().parallelPool;
+        boolean nested = ForkJoinTask.getPool() == pool;
+        ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[parts - 1];
+        for (int p = 1; p < parts; p++) {
+            int start = from + (int)((long)n * p / parts);
+            int end = from + (int)((long)n * (p + 1) / parts);
+            tasks[p - 1] = ForkJoinTask.adapt(() -> task.run(start, end));
+            if (nested)
+                tasks[p - 1].fork();
+            else
+                pool.execute(tasks[p - 1]);
+        }
+        task.run(from, from + n / parts);
+        // a thread of the pool helps with the queued parts while it waits
+        for (ForkJoinTask<?> part : tasks)
+            part.join();
+    }
 }
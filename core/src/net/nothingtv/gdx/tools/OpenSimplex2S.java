@@ -182,6 +182,132 @@ public class OpenSimplex2S {
         return value;
     }
 
+    /**
+     * 2D  OpenSimplex2S/SuperSimplex noise base with the analytic gradient.
+     * The unskewed vertex offsets change 1:1 with x and y, so the gradient of every contribution a^4 * (g . d)
+     * is a^4 * g - 8 * a^3 * (g . d) * d.
+     */
+    private static float noise2_UnskewedBaseGradient(long seed, double xs, double ys, float[] gradient) {
+        gradient[0] = 0;
+        gradient[1] = 0;
+
+        // Get base points and offsets.
+        int xsb = fastFloor(xs), ysb = fastFloor(ys);
+        float xi = (float)(xs - xsb), yi = (float)(ys - ysb);
+
+        // Prime pre-multiplication for hash.
+        long xsbp = xsb * PRIME_X, ysbp = ysb * PRIME_Y;
+
+        // Unskew.
+        float t = (xi + yi) * (float)UNSKEW_2D;
+        float dx0 = xi + t, dy0 = yi + t;
+
+        // First vertex.
+        float a0 = RSQUARED_2D - dx0 * dx0 - dy0 * dy0;
+        float value = gradContribution(seed, xsbp, ysbp, dx0, dy0, a0, gradient);
+
+        // Second vertex.
+        float a1 = (float)(2 * (1 + 2 * UNSKEW_2D) * (1 / UNSKEW_2D + 2)) * t + ((float)(-2 * (1 + 2 * UNSKEW_2D) * (1 + 2 * UNSKEW_2D)) + a0);
+        float dx1 = dx0 - (float)(1 + 2 * UNSKEW_2D);
+        float dy1 = dy0 - (float)(1 + 2 * UNSKEW_2D);
+        value += gradContribution(seed, xsbp + PRIME_X, ysbp + PRIME_Y, dx1, dy1, a1, gradient);
+
+        // Third and fourth vertices.
+        // Nested conditionals were faster than compact bit logic/arithmetic.
+        float xmyi = xi - yi;
+        if (t < UNSKEW_2D) {
+            if (xi + xmyi > 1) {
+                float dx2 = dx0 - (float)(3 * UNSKEW_2D + 2);
+                float dy2 = dy0 - (float)(3 * UNSKEW_2D + 1);
+                float a2 = RSQUARED_2D - dx2 * dx2 - dy2 * dy2;
+                if (a2 > 0) {
+                    value += gradContribution(seed, xsbp + (PRIME_X << 1), ysbp + PRIME_Y, dx2, dy2, a2, gradient);
+                }
+            }
+            else
+            {
+                float dx2 = dx0 - (float)UNSKEW_2D;
+                float dy2 = dy0 - (float)(UNSKEW_2D + 1);
+                float a2 = RSQUARED_2D - dx2 * dx2 - dy2 * dy2;
+                if (a2 > 0) {
+                    value += gradContribution(seed, xsbp, ysbp + PRIME_Y, dx2, dy2, a2, gradient);
+                }
+            }
+
+            if (yi - xmyi > 1) {
+                float dx3 = dx0 - (float)(3 * UNSKEW_2D + 1);
+                float dy3 = dy0 - (float)(3 * UNSKEW_2D + 2);
+                float a3 = RSQUARED_2D - dx3 * dx3 - dy3 * dy3;
+                if (a3 > 0) {
+                    value += gradContribution(seed, xsbp + PRIME_X, ysbp + (PRIME_Y << 1), dx3, dy3, a3, gradient);
+                }
+            }
+            else
+            {
+                float dx3 = dx0 - (float)(UNSKEW_2D + 1);
+                float dy3 = dy0 - (float)UNSKEW_2D;
+                float a3 = RSQUARED_2D - dx3 * dx3 - dy3 * dy3;
+                if (a3 > 0) {
+                    value += gradContribution(seed, xsbp + PRIME_X, ysbp, dx3, dy3, a3, gradient);
+                }
+            }
+        }
+        else
+        {
+            if (xi + xmyi < 0) {
+                float dx2 = dx0 + (float)(1 + UNSKEW_2D);
+                float dy2 = dy0 + (float)UNSKEW_2D;
+                float a2 = RSQUARED_2D - dx2 * dx2 - dy2 * dy2;
+                if (a2 > 0) {
+                    value += gradContribution(seed, xsbp - PRIME_X, ysbp, dx2, dy2, a2, gradient);
+                }
+            }
+            else
+            {
+                float dx2 = dx0 - (float)(UNSKEW_2D + 1);
+                float dy2 = dy0 - (float)UNSKEW_2D;
+                float a2 = RSQUARED_2D - dx2 * dx2 - dy2 * dy2;
+                if (a2 > 0) {
+                    value += gradContribution(seed, xsbp + PRIME_X, ysbp, dx2, dy2, a2, gradient);
+                }
+            }
+
+            if (yi < xmyi) {
+                float dx2 = dx0 + (float)UNSKEW_2D;
+                float dy2 = dy0 + (float)(UNSKEW_2D + 1);
+                float a2 = RSQUARED_2D - dx2 * dx2 - dy2 * dy2;
+                if (a2 > 0) {
+                    value += gradContribution(seed, xsbp, ysbp - PRIME_Y, dx2, dy2, a2, gradient);
+                }
+            }
+            else
+            {
+                float dx2 = dx0 - (float)UNSKEW_2D;
+                float dy2 = dy0 - (float)(UNSKEW_2D + 1);
+                float a2 = RSQUARED_2D - dx2 * dx2 - dy2 * dy2;
+                if (a2 > 0) {
+                    value += gradContribution(seed, xsbp, ysbp + PRIME_Y, dx2, dy2, a2, gradient);
+                }
+            }
+        }
+
+        return value;
+    }
+
+    /**
+     * 2D OpenSimplex2S/SuperSimplex noise, standard lattice orientation, and its gradient.
+     * The value is bit identical to {@link #noise2(long, double, double)}.
+     * @param seed the seed
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @param gradient receives the partial derivatives along x and y
+     * @return the noise value
+     */
+    public static float noise2Gradient(long seed, double x, double y, float[] gradient) {
+        double s = SKEW_2D * (x + y);
+        return noise2_UnskewedBaseGradient(seed, x + s, y + s, gradient);
+    }
+
     /**
      * 3D OpenSimplex2S/SuperSimplex noise, with better visual isotropy in (X, Y).
      * Recommended for 3D terrain and time-varied animations.
@@ -551,6 +677,25 @@ public class OpenSimplex2S {
         return GRADIENTS_2D[gi | 0] * dx + GRADIENTS_2D[gi | 1] * dy;
     }
 
+    /**
+     * The value of one vertex contribution, its gradient is added to the gradient array
+     */
+    private static float gradContribution(long seed, long xsvp, long ysvp, float dx, float dy, float a, float[] gradient) {
+        long hash = seed ^ xsvp ^ ysvp;
+        hash *= HASH_MULTIPLIER;
+        hash ^= hash >> (64 - N_GRADS_2D_EXPONENT + 1);
+        int gi = (int)hash & ((N_GRADS_2D - 1) << 1);
+        float gx = GRADIENTS_2D[gi | 0];
+        float gy = GRADIENTS_2D[gi | 1];
+        float g = gx * dx + gy * dy;
+        float a2 = a * a;
+        float a4 = a2 * a2;
+        float f = -8 * a2 * a * g;
+        gradient[0] += a4 * gx + f * dx;
+        gradient[1] += a4 * gy + f * dy;
+        return a4 * g;
+    }
+
     private static float grad(long seed, long xrvp, long yrvp, long zrvp, float dx, float dy, float dz) {
         long hash = (seed ^ xrvp) ^ (yrvp ^ zrvp);
         hash *= HASH_MULTIPLIER;